@@ -22,6 +22,7 @@ import org.example.p2pfileshare.util.AppConfig;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 public class SearchTabController {
@@ -242,8 +243,21 @@ public class SearchTabController {
         //   thì SearchResult phải có field relativePath. Nếu chưa có, tạm dùng fileName.
         String remotePath = sel.getFileName();
 
+        // mọi peer trả về cùng tên + size đều làm nguồn (swarm), peer được chọn đứng đầu
+        List<PeerInfo> sources = new ArrayList<>();
+        sources.add(sel.getOwner());
+        for (SearchResult r : searchResults) {
+            if (r.getOwner() != null && !sources.contains(r.getOwner())
+                    && r.getFileName().equals(sel.getFileName()) && r.getSize() == sel.getSize()) {
+                sources.add(r.getOwner());
+            }
+        }
+        if (sources.size() > 1) {
+            downloadStatusLabel.setText("Đang chuẩn bị tải từ " + sources.size() + " peer: " + sel.getFileName());
+        }
+
         currentJob = fileShareService.startDownload(
-                sel.getOwner(),
+                sources,
                 remotePath,
                 saveTo,
 
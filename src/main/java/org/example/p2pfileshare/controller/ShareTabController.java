@@ -219,6 +219,7 @@ public class ShareTabController {
     // Refresh lại bảng file
     @FXML
     private void onRefreshSharedFiles() {
+        fileShareService.rescanSharedFiles();
         refreshSharedFiles();
 
         if (globalStatusLabel != null) {
@@ -227,7 +228,7 @@ public class ShareTabController {
     }
 
     private void refreshSharedFiles() {
-        List<SharedFileLocal> list = fileShareService.listSharedFiles(); // lấy danh sách file chia sẻ từ ổ cứng
+        List<SharedFileLocal> list = fileShareService.listSharedFiles(); // lấy danh sách file chia sẻ từ index
         sharedFiles.setAll(list); // cập nhật lên bảng
         sharedFileTable.refresh(); // làm mới bảng
     }
@@ -3,8 +3,13 @@ package org.example.p2pfileshare.model;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.BitSet;
 
+/**
+ * Bitmap chunk đã tải xong (lưu ra .bitmap để resume) + bitmap chunk đang có worker nhận.
+ * Nhiều kết nối tải song song cùng dùng 1 object: claim / mark / save đều synchronized.
+ */
 public class DownloadProgress {
     private final String fileName;
     private final long fileSize;
@@ -12,6 +17,10 @@ public class DownloadProgress {
     private final int totalChunks;
     private final String fileSha256;
     private final BitSet completedChunks;
+    // chunk đã có worker nhận (đang tải hoặc lỗi chờ tải lại), không lưu ra file
+    private final BitSet claimedChunks;
+    // mọi index < claimCursor đều đã tải hoặc đã có người nhận: claim quét từ đây, không từ 0
+    private int claimCursor;
 
     public DownloadProgress(String fileName, long fileSize, int chunkSize,
                             int totalChunks, String fileSha256) {
@@ -21,35 +30,81 @@ public class DownloadProgress {
         this.totalChunks = totalChunks;
         this.fileSha256 = fileSha256;
         this.completedChunks = new BitSet(totalChunks);
+        this.claimedChunks = new BitSet(totalChunks);
     }
 
-    public void markChunkComplete(int chunkIndex) {
+    public synchronized void markChunkComplete(int chunkIndex) {
         completedChunks.set(chunkIndex);
+        claimedChunks.clear(chunkIndex);
     }
 
-    public boolean isChunkComplete(int chunkIndex) {
+    /** Bỏ đánh dấu chunk đã tải (kiểm lại thấy hỏng) để lần sau tải lại */
+    public synchronized void markChunkMissing(int chunkIndex) {
+        completedChunks.clear(chunkIndex);
+        claimCursor = Math.min(claimCursor, chunkIndex);
+    }
+
+    public synchronized boolean isChunkComplete(int chunkIndex) {
         return completedChunks.get(chunkIndex);
     }
 
-    public boolean isComplete() {
+    /** Chunk chưa tải đầu tiên từ fromIndex trở đi, -1 nếu không còn */
+    public synchronized int nextMissingChunk(int fromIndex) {
+        int i = completedChunks.nextClearBit(fromIndex);
+        return i < totalChunks ? i : -1;
+    }
+
+    /**
+     * Nhận tối đa max chunk chưa tải và chưa ai nhận (từ đầu file), đánh dấu đã nhận trong cùng 1 bước
+     * -> 2 worker không bao giờ tải trùng chunk.
+     *
+     * @return index theo thứ tự tăng dần, rỗng nếu không còn chunk nào để nhận
+     */
+    public synchronized int[] claimMissingChunks(int max) {
+        int[] claimed = new int[Math.max(0, max)];
+        int n = 0;
+        int i = completedChunks.nextClearBit(claimCursor);
+        for (; i < totalChunks && n < claimed.length; i = completedChunks.nextClearBit(i + 1)) {
+            if (claimedChunks.get(i)) continue;
+            claimedChunks.set(i);
+            claimed[n++] = i;
+        }
+        claimCursor = Math.min(i, totalChunks);
+        return Arrays.copyOf(claimed, n);
+    }
+
+    /** Trả lại chunk đã nhận mà chưa tải xong (worker mất kết nối) để worker khác nhận */
+    public synchronized void releaseChunk(int chunkIndex) {
+        claimedChunks.clear(chunkIndex);
+        claimCursor = Math.min(claimCursor, chunkIndex);
+    }
+
+    /** Bỏ hết claim (xong 1 lượt tải song song, chunk lỗi còn lại được tải lại từ đầu) */
+    public synchronized void releaseAllClaims() {
+        claimedChunks.clear();
+        claimCursor = 0;
+    }
+
+    public synchronized boolean isComplete() {
         return completedChunks.cardinality() == totalChunks;
     }
 
-    public double getProgressPercent() {
+    public synchronized double getProgressPercent() {
         return (completedChunks.cardinality() * 100.0) / totalChunks;
     }
 
-    public int getCompletedChunks() {
+    public synchronized int getCompletedChunks() {
         return completedChunks.cardinality();
     }
 
-    public BitSet getCompletedChunksBitSet() {
-        return completedChunks;
+    /** Bản sao, đọc thoải mái trong lúc worker vẫn đang đánh dấu */
+    public synchronized BitSet getCompletedChunksBitSet() {
+        return (BitSet) completedChunks.clone();
     }
 
     // --- Persist bitmap (resume thật sự) ---
 
-    public void loadBitmap(Path bitmapFile) throws IOException {
+    public synchronized void loadBitmap(Path bitmapFile) throws IOException {
         if (!Files.exists(bitmapFile)) return;
         byte[] data = Files.readAllBytes(bitmapFile);
         BitSet loaded = BitSet.valueOf(data);
@@ -60,13 +115,15 @@ public class DownloadProgress {
         }
     }
 
-    public void saveBitmap(Path bitmapFile) throws IOException {
+    public synchronized void saveBitmap(Path bitmapFile) throws IOException {
         byte[] data = completedChunks.toByteArray();
         Files.write(bitmapFile, data);
     }
 
-    public void clearAll() {
+    public synchronized void clearAll() {
         completedChunks.clear();
+        claimedChunks.clear();
+        claimCursor = 0;
     }
 
     // Getters
@@ -1,5 +1,7 @@
 package org.example.p2pfileshare.model;
 
+import org.example.p2pfileshare.util.HashAlgorithm;
+
 import java.util.List;
 
 public class FileMetadata {
@@ -7,17 +9,56 @@ public class FileMetadata {
     private final long fileSize;
     private final int chunkSize;
     private final int totalChunks;
+    // hash cả file theo hashAlgorithm (tên giữ từ hồi chỉ có SHA-256)
     private final String fileSha256;
-    private final List<String> chunkHashes; // SHA-256 của từng chunk
+    private final List<String> chunkHashes; // hash của từng chunk
+    // thuật toán thống nhất với server trong FILE_META_REQUEST
+    private final HashAlgorithm hashAlgorithm;
+    // metadata dạng Merkle: chỉ có gốc, hash chunk tới kèm proof theo từng chunk
+    private final String merkleRoot;
+    // peer nguồn mới tải dở file này: chỉ có các chunk trong GET_HAVE
+    // (hash chunk / gốc Merkle là của manifest lần tải đó)
+    private final boolean partial;
 
     public FileMetadata(String fileName, long fileSize, int chunkSize,
                        int totalChunks, String fileSha256, List<String> chunkHashes) {
+        this(fileName, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes, HashAlgorithm.SHA_256);
+    }
+
+    public FileMetadata(String fileName, long fileSize, int chunkSize, int totalChunks,
+                        String fileSha256, List<String> chunkHashes, HashAlgorithm hashAlgorithm) {
+        this(fileName, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes, hashAlgorithm, null, false);
+    }
+
+    private FileMetadata(String fileName, long fileSize, int chunkSize, int totalChunks, String fileSha256,
+                         List<String> chunkHashes, HashAlgorithm hashAlgorithm, String merkleRoot, boolean partial) {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.chunkSize = chunkSize;
         this.totalChunks = totalChunks;
         this.fileSha256 = fileSha256;
         this.chunkHashes = chunkHashes;
+        this.hashAlgorithm = hashAlgorithm;
+        this.merkleRoot = merkleRoot;
+        this.partial = partial;
+    }
+
+    /** Metadata chỉ gồm gốc Merkle, kích thước không phụ thuộc số chunk (luôn SHA-256) */
+    public static FileMetadata withMerkleRoot(String fileName, long fileSize, int chunkSize,
+                                              int totalChunks, String fileSha256, String merkleRoot) {
+        return new FileMetadata(fileName, fileSize, chunkSize, totalChunks, fileSha256, List.of(),
+                HashAlgorithm.SHA_256, merkleRoot, false);
+    }
+
+    /**
+     * Metadata của peer đang tải dở file (FILE_META_PARTIAL): manifest của lần tải đó,
+     * đủ hash từng chunk (merkleRoot = null) hoặc chỉ gốc Merkle (chunkHashes rỗng)
+     */
+    public static FileMetadata partial(String fileName, long fileSize, int chunkSize, int totalChunks,
+                                       String fileSha256, List<String> chunkHashes, HashAlgorithm hashAlgorithm,
+                                       String merkleRoot) {
+        return new FileMetadata(fileName, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes,
+                hashAlgorithm, merkleRoot, true);
     }
 
     public String getFileName() { return fileName; }
@@ -25,6 +66,11 @@ public class FileMetadata {
     public int getChunkSize() { return chunkSize; }
     public int getTotalChunks() { return totalChunks; }
     public String getFileSha256() { return fileSha256; }
+    /** Rỗng nếu metadata dạng Merkle */
     public List<String> getChunkHashes() { return chunkHashes; }
+    public HashAlgorithm getHashAlgorithm() { return hashAlgorithm; }
+    public String getMerkleRoot() { return merkleRoot; }
+    public boolean isMerkle() { return merkleRoot != null; }
+    public boolean isPartial() { return partial; }
 }
 
@@ -0,0 +1,23 @@
+package org.example.p2pfileshare.model;
+
+/** 1 đoạn byte đọc bằng GET_RANGE */
+public class FileRange {
+    private final String fileName;
+    private final long offset;     // vị trí thật trong file (đã đổi offset âm thành dương)
+    private final long fileSize;   // size file trên server lúc đọc
+    private final byte[] data;
+
+    public FileRange(String fileName, long offset, long fileSize, byte[] data) {
+        this.fileName = fileName;
+        this.offset = offset;
+        this.fileSize = fileSize;
+        this.data = data;
+    }
+
+    public String getFileName() { return fileName; }
+    public long getOffset() { return offset; }
+    public long getFileSize() { return fileSize; }
+    public byte[] getData() { return data; }
+    public int getLength() { return data.length; }
+    public boolean reachesEnd() { return offset + data.length >= fileSize; }
+}
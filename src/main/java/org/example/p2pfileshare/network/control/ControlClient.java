@@ -3,17 +3,33 @@ package org.example.p2pfileshare.network.control;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
 import org.example.p2pfileshare.model.PeerInfo;
+import org.example.p2pfileshare.util.PeerConnectionPool;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ControlClient {
 
+    // peer tắt máy / mất mạng thì connect bỏ sau chừng này thay vì chờ timeout của OS
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    // chờ 1 dòng trả lời (SUMMARIZE_REQ mất vài giây); request chờ người dùng bên kia bấm thì không giới hạn
+    private static final int READ_TIMEOUT_MS = 60_000;
+    // kết nối giữ lại tới 1 peer, rảnh quá POOL_IDLE_TIMEOUT_MS thì đóng (server đóng sau 60 s)
+    private static final int POOL_CONNECTIONS_PER_PEER = 2;
+    private static final long POOL_IDLE_TIMEOUT_MS = 30_000;
+    private static final long POOL_ACQUIRE_TIMEOUT_MS = 10_000;
+    // kiểm tra kết nối rảnh: đọc thử tối đa chừng này, hết giờ = peer chưa đóng
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 1;
+
     private final String myPeerId;
     private String myDisplayName;
     private List<String> peerIdList = new ArrayList<>();
+    private final PeerConnectionPool<Connection> connections = new PeerConnectionPool<>(
+            "ControlClient", POOL_CONNECTIONS_PER_PEER, POOL_IDLE_TIMEOUT_MS, POOL_ACQUIRE_TIMEOUT_MS);
 
     public ControlClient(String myPeerId, String myDisplayName) {
         this.myPeerId = myPeerId;
@@ -32,12 +48,7 @@ public class ControlClient {
         System.out.println("[ControlClient] Connecting to " + host + ":" + controlPort +
                 " to request connect → " + toPeer);
 
-        try (Socket socket = new Socket(host, controlPort);
-             BufferedReader reader = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream()));
-             PrintWriter writer = new PrintWriter(
-                     new OutputStreamWriter(socket.getOutputStream()), true)) {
-
+        try {
             // 1) Gửi CONNECT_REQUEST (gửi peerId làm from)
             String msg = ControlProtocol.build(
                     ControlProtocol.CONNECT_REQUEST,
@@ -46,10 +57,8 @@ public class ControlClient {
                     myDisplayName// to (peerId)
             );
 
-            writer.println(msg);
-
-            // 2) Đọc 1 dòng response
-            String respRaw = reader.readLine();
+            // 2) Đọc 1 dòng response (bên kia hỏi người dùng accept/reject)
+            String respRaw = exchangeAwaitingUser(host, controlPort, msg);
             if (respRaw == null || respRaw.isEmpty()) {
                 return false;
             }
@@ -86,14 +95,9 @@ public class ControlClient {
         System.out.println("[ControlClient] Request LIST_FILES → " + toPeer);
         List<RemoteFile> files = new ArrayList<>();
 
-        try (Socket socket = new Socket(host, controlPort);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
-
+        try {
             String msg = ControlProtocol.build(ControlProtocol.LIST_FILES, myPeerId, toPeer);
-            writer.println(msg);
-
-            String respRaw = reader.readLine();
+            String respRaw = exchange(host, controlPort, msg, true);
             if (respRaw == null) return files;
 
             ControlProtocol.ParsedMessage parsed = ControlProtocol.parse(respRaw);
@@ -132,20 +136,15 @@ public class ControlClient {
 
     public boolean sendDisconnectRequest(String host, int controlPort, String toPeer) {
         System.out.println("[ControlClient] Sending DISCONNECT_REQUEST to " + host + ":" + controlPort + " -> " + toPeer);
-        try (Socket socket = new Socket(host, controlPort);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
-
+        try {
             String msg = ControlProtocol.build(
                     ControlProtocol.DISCONNECT_REQUEST,
                     myPeerId,   // from = mình
                     toPeer,     // to = peer đích
                     "Request disconnect"
             );
-            writer.println(msg);
-
             // Đọc phản hồi 1 dòng (ControlServer hiện gửi DISCONNECT_NOTIFY)
-            String respRaw = reader.readLine();
+            String respRaw = exchangeAwaitingUser(host, controlPort, msg);
             if (respRaw == null || respRaw.isBlank()) {
                 return false;
             }
@@ -168,18 +167,14 @@ public class ControlClient {
     public String sendSummarizeRequest(PeerInfo peer, String relativePath) {
         if (peer == null) return null;
         System.out.println("[ControlClient] Gửi yêu cầu AI Summary (Sync) tới " + peer.getName());
-        try (Socket socket = new Socket(peer.getIp(), peer.getControlPort());
-             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
-
+        try {
             // 1. Gửi yêu cầu
             // Format: SUMMARIZE_REQ | ID_Của_Tôi | Đường_dẫn_file
             String cmd = "SUMMARIZE_REQ|" + myPeerId + "|" + relativePath;
-            writer.println(cmd);
 
             // 2. GIỮ MÁY CHỜ TRẢ LỜI (Đây là bước quan trọng còn thiếu)
             // Server bên kia sẽ xử lý mất khoảng 1-2 giây rồi gửi lại
-            String response = reader.readLine();
+            String response = exchange(peer.getIp(), peer.getControlPort(), cmd, true);
 
             System.out.println("[ControlClient] Nhận phản hồi: " + response);
             return response;
@@ -220,11 +215,8 @@ public class ControlClient {
     }
 
     private boolean sendOneWay(String host, int port, String msg) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter writer = new PrintWriter(
-                     new OutputStreamWriter(socket.getOutputStream()), true)) {
-
-            writer.println(msg);
+        try {
+            exchange(host, port, msg, false);
             System.out.println("[ControlClient] One-way send: " + msg);
             return true;
 
@@ -289,6 +281,135 @@ public class ControlClient {
         return peerIdList;
     }
 
+    /**
+     * Gửi 1 message, awaitReply thì đọc 1 dòng trả lời.
+     *
+     * Gửi trên kết nối giữ lại trong pool (KEEP_ALIVE); peer cũ không hỗ trợ thì mỗi message 1 kết nối như trước.
+     * Kết nối đã dùng bị peer đóng trong lúc rảnh thì gửi lại trên kết nối khác.
+     *
+     * @return dòng trả lời, null nếu không chờ trả lời hoặc peer đóng kết nối mà không trả lời
+     */
+    private String exchange(String host, int port, String msg, boolean awaitReply) throws IOException {
+        while (true) {
+            Connection c = connections.acquire(host, port, this::openKeepAlive);
+            if (c == null) {
+                try (Connection oneShot = Connection.open(host, port)) {
+                    return oneShot.send(msg, awaitReply);
+                }
+            }
+            boolean reused = c.sent > 0;
+            boolean ok = false;
+            String reply = null;
+            try {
+                reply = c.send(msg, awaitReply);
+                ok = !awaitReply || reply != null;
+            } catch (IOException e) {
+                if (!reused) throw e;
+            } finally {
+                connections.release(c, ok);
+            }
+            if (ok || !reused) return reply;
+        }
+    }
+
+    /**
+     * Request mà peer chỉ trả lời sau khi người dùng bên đó bấm (CONNECT_REQUEST, DISCONNECT_REQUEST):
+     * kết nối riêng, không timeout đọc như trước khi có pool, không giữ chỗ của pool trong lúc chờ.
+     */
+    private String exchangeAwaitingUser(String host, int port, String msg) throws IOException {
+        try (Connection c = Connection.open(host, port)) {
+            c.socket.setSoTimeout(0);
+            return c.send(msg, true);
+        }
+    }
+
+    // kết nối giữ lại: null nếu peer cũ (không trả KEEP_ALIVE_ACK mà đóng kết nối)
+    private Connection openKeepAlive(String host, int port) throws IOException {
+        Connection c = Connection.open(host, port);
+        try {
+            c.writer.println(ControlProtocol.build(ControlProtocol.KEEP_ALIVE, myPeerId, "*"));
+            if (ControlProtocol.KEEP_ALIVE_ACK.equals(c.reader.readLine())) return c;
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        c.close();
+        return null;
+    }
+
+    // connect có timeout, dùng chung cho ControlServer gửi DISCONNECT_NOTIFY
+    static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** 1 kết nối tới ControlServer của peer, mỗi message / trả lời là 1 dòng */
+    private static final class Connection implements PeerConnectionPool.Connection {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+        // số message đã gửi (không tính KEEP_ALIVE)
+        private int sent;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        }
+
+        static Connection open(String host, int port) throws IOException {
+            Socket socket = connect(host, port);
+            try {
+                return new Connection(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        String send(String msg, boolean awaitReply) throws IOException {
+            sent++;
+            writer.println(msg);
+            // PrintWriter nuốt lỗi ghi
+            if (writer.checkError()) throw new IOException("Connection closed");
+            return awaitReply ? reader.readLine() : null;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            if (socket.isClosed()) return false;
+            try {
+                if (reader.ready()) return false;
+                socket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MS);
+                try {
+                    // -1: peer đã đóng; có byte: dòng thừa không ai đọc. Cả 2 đều bỏ kết nối
+                    socket.getInputStream().read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } finally {
+                    socket.setSoTimeout(READ_TIMEOUT_MS);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
     // DTO đơn giản cho UI
     public static class RemoteFile {
         public final String name;
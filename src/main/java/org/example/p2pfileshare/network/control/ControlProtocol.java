@@ -23,6 +23,10 @@ public class ControlProtocol {
     // Mở rộng: lấy danh sách file chia sẻ từ peer đích
     public static final String LIST_FILES          = "LIST_FILES";
     public static final String LIST_FILES_RESPONSE = "LIST_FILES_RESPONSE"; // note: payload dạng key-value được encode
+    // Client muốn giữ kết nối để gửi nhiều message: KEEP_ALIVE|fromPeer|*, server mới trả 1 dòng KEEP_ALIVE_ACK
+    // rồi đọc tiếp từng dòng tới khi client đóng / idle. Server cũ không trả gì và đóng kết nối
+    public static final String KEEP_ALIVE     = "KEEP_ALIVE";
+    public static final String KEEP_ALIVE_ACK = "KEEP_ALIVE_ACK";
 
     // Cấu trúc sau khi parse
     public static class ParsedMessage {
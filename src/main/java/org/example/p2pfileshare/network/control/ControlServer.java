@@ -3,15 +3,19 @@ package org.example.p2pfileshare.network.control;
 import org.example.p2pfileshare.model.PeerInfo;
 import org.example.p2pfileshare.service.DocumentSummaryService;
 import org.example.p2pfileshare.service.FileShareService;
+import org.example.p2pfileshare.util.ConnectionExecutor;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Consumer;
@@ -20,9 +24,21 @@ import static java.lang.System.out;
 
 public class ControlServer {
 
+    private static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    // kết nối KEEP_ALIVE rảnh quá chừng này thì đóng (client pool đóng sớm hơn)
+    private static final int KEEP_ALIVE_IDLE_TIMEOUT_MS = 60_000;
+
     private final int port;
     private volatile boolean running = false;
 
+    // mỗi message 1 task; mặc định virtual thread (Java 21+), giới hạn chung số kết nối
+    private final ConnectionExecutor.Model executionModel;
+    private final int maxConnections;
+    private ConnectionExecutor executor;
+    private volatile ServerSocket serverSocket;
+    private Thread acceptThread;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
     // Đã chấp nhận kết nối từ peerId nào
     private final Set<String> acceptedPeers = ConcurrentHashMap.newKeySet();
     private final Function<String, Boolean> onIncomingConnect;
@@ -44,8 +60,15 @@ public class ControlServer {
     private final DocumentSummaryService summaryService = new DocumentSummaryService();
 
     public ControlServer(int port, Function<String, Boolean> onIncomingConnect) {
+        this(port, onIncomingConnect, ConnectionExecutor.Model.VIRTUAL_THREADS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public ControlServer(int port, Function<String, Boolean> onIncomingConnect,
+                         ConnectionExecutor.Model executionModel, int maxConnections) {
         this.port = port;
         this.onIncomingConnect = onIncomingConnect;
+        this.executionModel = executionModel;
+        this.maxConnections = maxConnections;
     }
 
     // Cho phép inject FileShareService để phục vụ LIST_FILES
@@ -65,33 +88,75 @@ public class ControlServer {
         this.onSearchResultReceived = callback;
     }
 
-    public void start() {
+    public synchronized void start() {
         if (running) return;
         running = true;
 
+        if (executor == null || executor.isShutdown()) {
+            executor = ConnectionExecutor.create(executionModel, "control-handler", maxConnections);
+        }
+
         Thread t = new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                out.println("[ControlServer] Listening on port " + port);
+            try (ServerSocket ss = new ServerSocket(port)) {
+                serverSocket = ss;
+                out.println("[ControlServer] Listening on port " + port
+                        + (executor.isVirtual() ? " (virtual threads)" : ""));
                 while (running) {
-                    Socket client = serverSocket.accept();
+                    // đủ giới hạn kết nối thì chờ, kết nối mới nằm ở backlog
+                    executor.acquire();
+                    Socket client;
+                    try {
+                        client = ss.accept();
+                    } catch (IOException e) {
+                        executor.release();
+                        throw e;
+                    }
                     handleClient(client);
                 }
-            } catch (IOException e) {
+            } catch (IOException | RejectedExecutionException e) {
                 if (running) e.printStackTrace();
                 else out.println("[ControlServer] Stopped");
+            } catch (InterruptedException e) {
+                out.println("[ControlServer] Stopped");
+            } finally {
+                serverSocket = null;
             }
         }, "control-server");
         t.setDaemon(true);
+        acceptThread = t;
         t.start();
     }
 
-    public void stop() {
+    public synchronized void stop() {
+        if (!running) return;
         running = false;
-        // có thể mở 1 socket ảo vào chính mình để giải phóng accept()
+
+        // đóng server socket để accept() thoát, đóng kết nối đang mở để handler đang đọc thoát
+        try {
+            ServerSocket ss = serverSocket;
+            if (ss != null) ss.close();
+        } catch (IOException ignored) {}
+        for (Socket s : clients) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+        }
+        clients.clear();
+
+        if (acceptThread != null) acceptThread.interrupt();
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private void handleClient(Socket socket) {
-        Thread t = new Thread(() -> {
+        clients.add(socket);
+        executor.execute(() -> {
             try (Socket s = socket;
                  BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
                  PrintWriter writer = new PrintWriter(new OutputStreamWriter(s.getOutputStream()), true)) {
@@ -99,180 +164,196 @@ public class ControlServer {
                 String raw = reader.readLine();
                 if (raw == null || raw.isEmpty()) return;
 
-                if (raw.startsWith("SEARCH_REQ|") || raw.startsWith("SEARCH_RES|")) {
-                    out.println("[ControlServer] Received Search CMD: " + raw);
-                    handleSearchCommand(raw);
-                    return;
-                }
-
-                if(raw.startsWith("SUMMARIZE_REQ|")) {
-                    out.println("[ControlServer] Received AI Summary REQ: " + raw);
-
-                    // Format: SUMMARIZE_REQ | SenderID | Path
-                    String[] parts = raw.split("\\|", 3);
-                    if (parts.length >= 3) {
-                        String path = parts[2];
-
-                        File fileToSummarize = new File(fileShareService.getShareFolder(), path);
-                        String result;
-
-                        if (fileToSummarize.exists()) {
-                            try {
-                                result = summaryService.summarize(fileToSummarize);
-                            } catch (Exception e) {
-                                result = "Lỗi khi đọc file: " + e.getMessage();
-                            }
-                        } else {
-                            result = "File không tồn tại bên phía Peer.";
+                // client mở kết nối giữ lại (pool): trả ACK rồi nhận nhiều message tới khi client đóng / idle
+                if (raw.startsWith(ControlProtocol.KEEP_ALIVE + "|")) {
+                    s.setSoTimeout(KEEP_ALIVE_IDLE_TIMEOUT_MS);
+                    writer.println(ControlProtocol.KEEP_ALIVE_ACK);
+                    try {
+                        while ((raw = reader.readLine()) != null) {
+                            if (!raw.isEmpty()) handleMessage(raw, writer);
                         }
-                        String encodeResult = Base64.getEncoder().encodeToString(result.getBytes());
-                        String response = "SUMMARIZE_RES|" + path + "|" + encodeResult;
-                        writer.println(response);
-                        out.println("[ControlServer] Sent AI Result (" + result.length() + " chars)");
+                    } catch (SocketTimeoutException e) {
+                        // idle quá lâu: đóng, client mở lại khi cần
                     }
                     return;
                 }
+                handleMessage(raw, writer);
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+            } finally {
+                clients.remove(socket);
+            }
+        });
+    }
 
-                if (raw.startsWith("CMD:")) {
-                    out.println("[ControlServer] Received System CMD: " + raw);
+    // xử lý 1 message (1 dòng), trả lời (nếu có) 1 dòng qua writer
+    private void handleMessage(String raw, PrintWriter writer) {
+        if (raw.startsWith("SEARCH_REQ|") || raw.startsWith("SEARCH_RES|")) {
+            out.println("[ControlServer] Received Search CMD: " + raw);
+            handleSearchCommand(raw);
+            return;
+        }
 
-                    String[] parts = raw.split("\\|");
-                    // parts[0] = CMD:REMOVE_FILE
-                    // parts[1] = SenderID (quan trọng để định tuyến)
-                    // parts[2] = FileName
+        if(raw.startsWith("SUMMARIZE_REQ|")) {
+            out.println("[ControlServer] Received AI Summary REQ: " + raw);
 
-                    if (parts.length >= 3) {
-                        String senderId = parts[1];
+            // Format: SUMMARIZE_REQ | SenderID | Path
+            String[] parts = raw.split("\\|", 3);
+            if (parts.length >= 3) {
+                String path = parts[2];
 
-                        // Tái tạo lại tin nhắn để gửi cho Controller xử lý
-                        // Controller mong đợi: "CMD:REMOVE_FILE|FileName"
-                        String originalCmd = parts[0] + "|" + parts[2];
+                File fileToSummarize = new File(fileShareService.getShareFolder(), path);
+                String result;
 
-                        if (onSystemMessageCallback != null) {
-                            // Gọi về PeerTabController
-                            onSystemMessageCallback.accept(senderId, originalCmd);
-                        }
+                if (fileToSummarize.exists()) {
+                    try {
+                        result = summaryService.summarize(fileToSummarize);
+                    } catch (Exception e) {
+                        result = "Lỗi khi đọc file: " + e.getMessage();
                     }
-                    return; // Xử lý xong thì thoát, không parse tiếp
+                } else {
+                    result = "File không tồn tại bên phía Peer.";
                 }
+                String encodeResult = Base64.getEncoder().encodeToString(result.getBytes());
+                String response = "SUMMARIZE_RES|" + path + "|" + encodeResult;
+                writer.println(response);
+                out.println("[ControlServer] Sent AI Result (" + result.length() + " chars)");
+            }
+            return;
+        }
 
-                ControlProtocol.ParsedMessage msg = ControlProtocol.parse(raw);
-                if (msg == null) return;
-
-                out.println("[ControlServer] Received: " + raw);
-
-                if (ControlProtocol.CONNECT_REQUEST.equals(msg.command)) {
-                    String fromPeer = msg.fromPeer; // người yêu cầu
-                    String toPeer   = msg.toPeer;   // mình
-                    String namespace = msg.note;    // optional namespace
-                    boolean accept = true;
-                    if (onIncomingConnect != null) {
-                        try {
-                            accept = Boolean.TRUE.equals(onIncomingConnect.apply(namespace));
-                            if (accept) {
-                                acceptedPeers.add(fromPeer);
-                                // load lại danh sách incomming connection để cập nhật danh sách
-                                if (onPeerAccepted != null) {
-                                    onPeerAccepted.run();
-                                }
-                            }
-                        } catch (Exception ex) {
-                            accept = false;
-                        }
-                    }
+        if (raw.startsWith("CMD:")) {
+            out.println("[ControlServer] Received System CMD: " + raw);
 
-                    String respCmd  = accept ? ControlProtocol.CONNECT_ACCEPT : ControlProtocol.CONNECT_REJECT;
-                    String respNote = accept ? "Accepted" : "Rejected";
+            String[] parts = raw.split("\\|");
+            // parts[0] = CMD:REMOVE_FILE
+            // parts[1] = SenderID (quan trọng để định tuyến)
+            // parts[2] = FileName
 
-                    // Lưu ý: từ phía server, fromPeer = "mình", toPeer = "người gửi request"
-                    String resp = ControlProtocol.build(
-                            respCmd,
-                            toPeer,     // from = mình
-                            fromPeer,   // to   = người yêu cầu
-                            respNote
-                    );
+            if (parts.length >= 3) {
+                String senderId = parts[1];
 
-                    writer.println(resp);
-                    out.println("[ControlServer] Sent: " + resp);
-                }
-                else if (ControlProtocol.LIST_FILES.equals(msg.command)) {
-                    // Trả về danh sách file chia sẻ (tên/relative path)
-                    String toPeer   = msg.toPeer;   // mình
-                    String fromPeer = msg.fromPeer; // client
-                    // CHẶN NẾU CHƯA ĐƯỢC ACCEPT
-                    if (!acceptedPeers.contains(fromPeer)) {
-                        String denyResp = ControlProtocol.build(
-                                ControlProtocol.LIST_FILES_RESPONSE,
-                                msg.toPeer,
-                                fromPeer,
-                                ""   // payload rỗng
-                        );
-                        writer.println(denyResp);
-                        return;
-                    }
-                    // Build payload TSV: fileName\trelativePath\tsize
-                    String payload = buildFileListPayload();
-                    String resp = ControlProtocol.build(
-                            ControlProtocol.LIST_FILES_RESPONSE,
-                            toPeer,     // from = mình
-                            fromPeer,   // to   = requester
-                            payload
-                    );
-
-                    writer.println(resp);
-                    out.println("[ControlServer] Sent LIST_FILES_RESPONSE (" + payload.length() + " bytes)");
-                }
-                else if (ControlProtocol.DISCONNECT_REQUEST.equals(msg.command)) {
-                    String fromPeer = msg.fromPeer; // người yêu cầu ngắt (mình) hoặc client
-                    String toPeer   = msg.toPeer;   // người bị ngắt
-                    acceptedPeers.remove(fromPeer); //remove(toPeer)
-                    // gọi cập nhật lại trạng thái của peertab
-                    if (onUpdatePeerName != null) {
-                        onUpdatePeerName.run();
-                    }
-                    // gọi cập nhật lại trạng thái của incoming connection, peer client gọi đến peer server
-                    if (onPeerAccepted != null) {
-                        onPeerAccepted.run();
-                    }
-//                // Gửi phản hồi DISCONNECT_NOTIFY cho client bt là ok đã ngắt
-                    writer.println(ControlProtocol.build(ControlProtocol.DISCONNECT_NOTIFY,
-                            msg.toPeer, msg.fromPeer, "Disconnected"));
-                    out.println("[ControlServer] Disconnected: " + fromPeer);
+                // Tái tạo lại tin nhắn để gửi cho Controller xử lý
+                // Controller mong đợi: "CMD:REMOVE_FILE|FileName"
+                String originalCmd = parts[0] + "|" + parts[2];
+
+                if (onSystemMessageCallback != null) {
+                    // Gọi về PeerTabController
+                    onSystemMessageCallback.accept(senderId, originalCmd);
                 }
-                // xử lý thông báo DISCONNECT_NOTIFY nhận từ peer sever
-                else if (ControlProtocol.DISCONNECT_NOTIFY.equals(msg.command)) {
-                    out.println("[ControlServer] Received DISCONNECT_NOTIFY from " + msg.fromPeer
-                            + " note=" + msg.note);
-                    // Gọi callback nếu đã đăng ký để UI xử lý hiển alert thông báo ở root
-                    if (onDisconnectNotify != null) {
-                        try {
-                            onDisconnectNotify.accept(msg);
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
+            }
+            return; // Xử lý xong thì thoát, không parse tiếp
+        }
+
+        ControlProtocol.ParsedMessage msg = ControlProtocol.parse(raw);
+        if (msg == null) return;
+
+        out.println("[ControlServer] Received: " + raw);
+
+        if (ControlProtocol.CONNECT_REQUEST.equals(msg.command)) {
+            String fromPeer = msg.fromPeer; // người yêu cầu
+            String toPeer   = msg.toPeer;   // mình
+            String namespace = msg.note;    // optional namespace
+            boolean accept = true;
+            if (onIncomingConnect != null) {
+                try {
+                    accept = Boolean.TRUE.equals(onIncomingConnect.apply(namespace));
+                    if (accept) {
+                        acceptedPeers.add(fromPeer);
+                        // load lại danh sách incomming connection để cập nhật danh sách
+                        if (onPeerAccepted != null) {
+                            onPeerAccepted.run();
                         }
                     }
-                    // không cần gửi phản hồi
+                } catch (Exception ex) {
+                    accept = false;
                 }
-                //server gửi gói tin và server ở client nhận hàm này để cập nhật tên peer
-                else if (ControlProtocol.UPDATE_NAMESERVER.equals(msg.command)) {
-                    // to peer ở đây t co cai là name mới
-                    out.println("[ControlServer] Received UPDATE_NAME from " + msg.fromPeer +"va name mới"+ msg.toPeer);
+            }
 
-                    if (onUpdatePeerName != null) {
-                        onUpdatePeerName.run();
-                    }
-                    if (onRenameTab != null) {
-                        onRenameTab.accept(msg.fromPeer, msg.toPeer);
-                    }
-                }
+            String respCmd  = accept ? ControlProtocol.CONNECT_ACCEPT : ControlProtocol.CONNECT_REJECT;
+            String respNote = accept ? "Accepted" : "Rejected";
 
-            } catch (IOException e) {
-                e.printStackTrace();
+            // Lưu ý: từ phía server, fromPeer = "mình", toPeer = "người gửi request"
+            String resp = ControlProtocol.build(
+                    respCmd,
+                    toPeer,     // from = mình
+                    fromPeer,   // to   = người yêu cầu
+                    respNote
+            );
+
+            writer.println(resp);
+            out.println("[ControlServer] Sent: " + resp);
+        }
+        else if (ControlProtocol.LIST_FILES.equals(msg.command)) {
+            // Trả về danh sách file chia sẻ (tên/relative path)
+            String toPeer   = msg.toPeer;   // mình
+            String fromPeer = msg.fromPeer; // client
+            // CHẶN NẾU CHƯA ĐƯỢC ACCEPT
+            if (!acceptedPeers.contains(fromPeer)) {
+                String denyResp = ControlProtocol.build(
+                        ControlProtocol.LIST_FILES_RESPONSE,
+                        msg.toPeer,
+                        fromPeer,
+                        ""   // payload rỗng
+                );
+                writer.println(denyResp);
+                return;
             }
-        }, "control-handler");
+            // Build payload TSV: fileName\trelativePath\tsize
+            String payload = buildFileListPayload();
+            String resp = ControlProtocol.build(
+                    ControlProtocol.LIST_FILES_RESPONSE,
+                    toPeer,     // from = mình
+                    fromPeer,   // to   = requester
+                    payload
+            );
 
-        t.setDaemon(true);
-        t.start();
+            writer.println(resp);
+            out.println("[ControlServer] Sent LIST_FILES_RESPONSE (" + payload.length() + " bytes)");
+        }
+        else if (ControlProtocol.DISCONNECT_REQUEST.equals(msg.command)) {
+            String fromPeer = msg.fromPeer; // người yêu cầu ngắt (mình) hoặc client
+            String toPeer   = msg.toPeer;   // người bị ngắt
+            acceptedPeers.remove(fromPeer); //remove(toPeer)
+            // gọi cập nhật lại trạng thái của peertab
+            if (onUpdatePeerName != null) {
+                onUpdatePeerName.run();
+            }
+            // gọi cập nhật lại trạng thái của incoming connection, peer client gọi đến peer server
+            if (onPeerAccepted != null) {
+                onPeerAccepted.run();
+            }
+//        // Gửi phản hồi DISCONNECT_NOTIFY cho client bt là ok đã ngắt
+            writer.println(ControlProtocol.build(ControlProtocol.DISCONNECT_NOTIFY,
+                    msg.toPeer, msg.fromPeer, "Disconnected"));
+            out.println("[ControlServer] Disconnected: " + fromPeer);
+        }
+        // xử lý thông báo DISCONNECT_NOTIFY nhận từ peer sever
+        else if (ControlProtocol.DISCONNECT_NOTIFY.equals(msg.command)) {
+            out.println("[ControlServer] Received DISCONNECT_NOTIFY from " + msg.fromPeer
+                    + " note=" + msg.note);
+            // Gọi callback nếu đã đăng ký để UI xử lý hiển alert thông báo ở root
+            if (onDisconnectNotify != null) {
+                try {
+                    onDisconnectNotify.accept(msg);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            // không cần gửi phản hồi
+        }
+        //server gửi gói tin và server ở client nhận hàm này để cập nhật tên peer
+        else if (ControlProtocol.UPDATE_NAMESERVER.equals(msg.command)) {
+            // to peer ở đây t co cai là name mới
+            out.println("[ControlServer] Received UPDATE_NAME from " + msg.fromPeer +"va name mới"+ msg.toPeer);
+
+            if (onUpdatePeerName != null) {
+                onUpdatePeerName.run();
+            }
+            if (onRenameTab != null) {
+                onRenameTab.accept(msg.fromPeer, msg.toPeer);
+            }
+        }
     }
 
     // XỬ LÝ LỆNH TÌM KIẾM
@@ -302,8 +383,8 @@ public class ControlServer {
     // build payload danh sách file được chia sẻ theo dạng 2A.docx	2A.docx	27084<NL>AI4life (2).docx	AI4life (2).docx	933162<NL>
     private String buildFileListPayload() {
         if (fileShareService == null) return "";
-        // liệt kê danh sách file được chia sẻ
-        List<org.example.p2pfileshare.model.SharedFileLocal> list = fileShareService.listSharedFiles();
+        // liệt kê danh sách file được chia sẻ (kể cả file đang tải dở)
+        List<org.example.p2pfileshare.model.SharedFileLocal> list = fileShareService.listAdvertisedFiles();
         StringBuilder sb = new StringBuilder();
 
         for (var f : list) {
@@ -348,7 +429,7 @@ public class ControlServer {
         acceptedPeers.remove(peer.getPeerId());
 
         // 2) Notify the peer about the disconnection
-        try (Socket s = new Socket(peer.getIp(), peer.getControlPort());
+        try (Socket s = ControlClient.connect(peer.getIp(), peer.getControlPort());
              PrintWriter w = new PrintWriter(new OutputStreamWriter(s.getOutputStream()), true)) {
 
             String msg = ControlProtocol.build(
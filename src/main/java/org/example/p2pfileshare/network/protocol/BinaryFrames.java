@@ -0,0 +1,284 @@
+package org.example.p2pfileshare.network.protocol;
+
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing nhị phân "bin1" cho session (thống nhất lúc SESSION_OPEN, peer cũ vẫn dùng writeUTF + '|').
+ *
+ * Request: opcode (1 byte), độ dài payload (varint), payload.
+ * Response: opcode (1 byte) rồi các field theo thứ tự như bản text, nhưng:
+ * - số nguyên là varint (int) / varlong (long), offset GET_RANGE là zigzag vì có thể âm,
+ * - hash là byte thô thay cho hex (32 byte với SHA-256; file đã thống nhất thuật toán khác thì
+ *   theo độ dài digest của thuật toán đó, 2 bên đều biết từ FILE_META_RESPONSE),
+ * - chuỗi là varint độ dài + UTF-8,
+ * - file gọi bằng file ID server cấp trong META_RESPONSE thay vì lặp lại tên file.
+ *
+ * fileRef trong request: varint fileId (>= 1), hoặc 0 rồi string fileName + varint chunkSize
+ * khi session chưa xin metadata của file (vd session mở lại giữa chừng lúc resume).
+ */
+public final class BinaryFrames {
+
+    public static final String FRAMING_TEXT = "text";
+    public static final String FRAMING_BIN1 = "bin1";
+
+    // digest SHA-256, mặc định khi chưa thống nhất thuật toán khác
+    public static final int DIGEST_BYTES = 32;
+    // request lớn nhất (GET_CHUNKS 64 index, tên file dài) vẫn dư
+    public static final int MAX_REQUEST_PAYLOAD = 0xFFFF;
+
+    // Request
+    public static final int OP_META_REQUEST = 0x01;   // varint preferredChunkSize, string fileName, [varint flags, [string algs]]
+    public static final int OP_GET_CHUNK = 0x02;      // fileRef, varint index
+    public static final int OP_GET_CHUNKS = 0x03;     // fileRef, varint n, n x varint index
+    public static final int OP_GET_STREAM = 0x04;     // fileRef
+    public static final int OP_GET_RANGE = 0x05;      // zigzag varlong offset, varint length, string fileName
+    public static final int OP_GET_HAVE = 0x06;       // fileRef
+    public static final int OP_SESSION_CLOSE = 0x0F;
+
+    // fileRef = 0: tên file + chunk size đi kèm thay cho ID
+    public static final int INLINE_FILE_REF = 0;
+    // flags của OP_META_REQUEST
+    public static final int META_FLAG_MERKLE = 1;
+    // theo sau flags là string danh sách thuật toán băm "a,b" (v7+)
+    public static final int META_FLAG_HASH_ALGS = 2;
+
+    // Response
+    public static final int OP_ERROR = 0x7F;          // string reason
+    public static final int OP_META_RESPONSE = 0x81;  // varint fileId, varlong size, varint chunkSize, varint chunks, [string alg], digest, chunks x digest
+    public static final int OP_CHUNK_DATA = 0x82;     // varint index, varint len, digest, bytes
+    public static final int OP_CHUNK_DATA_Z = 0x83;   // varint index, varint rawLen, digest, varint compLen, bytes
+    public static final int OP_CHUNK_ERROR = 0x84;    // varint index, string reason
+    public static final int OP_CHUNK_BATCH = 0x85;    // varint count
+    public static final int OP_STREAM_DATA = 0x86;    // varlong size, varint chunkSize, varint chunks, digest, rồi (bytes + digest) x chunks
+    public static final int OP_RANGE_DATA = 0x87;     // varlong offset, varint len, varlong size, bytes
+    public static final int OP_META_ROOT = 0x88;      // varint fileId, varlong size, varint chunkSize, varint chunks, [string alg], digest, digest root
+    public static final int OP_CHUNK_PROOF = 0x89;    // varint index, varint n, n x digest
+    public static final int OP_CHUNK_MAP = 0x8A;      // varint chunks, varint have, varint len, bytes
+    public static final int OP_META_PARTIAL = 0x8B;   // varint fileId, varlong size, varint chunkSize, varint chunks, [string alg], digest
+
+    private BinaryFrames() {}
+
+    /** Opcode của 1 loại response (tên như bản text) */
+    public static int responseOpcode(String type) {
+        switch (type) {
+            case "ERROR": return OP_ERROR;
+            case FileTransferProtocol.FILE_META_RESPONSE: return OP_META_RESPONSE;
+            case FileTransferProtocol.CHUNK_DATA: return OP_CHUNK_DATA;
+            case FileTransferProtocol.CHUNK_DATA_Z: return OP_CHUNK_DATA_Z;
+            case FileTransferProtocol.CHUNK_ERROR: return OP_CHUNK_ERROR;
+            case FileTransferProtocol.CHUNK_BATCH: return OP_CHUNK_BATCH;
+            case FileTransferProtocol.STREAM_DATA: return OP_STREAM_DATA;
+            case FileTransferProtocol.RANGE_DATA: return OP_RANGE_DATA;
+            case FileTransferProtocol.FILE_META_ROOT: return OP_META_ROOT;
+            case FileTransferProtocol.CHUNK_PROOF: return OP_CHUNK_PROOF;
+            case FileTransferProtocol.CHUNK_MAP: return OP_CHUNK_MAP;
+            case FileTransferProtocol.FILE_META_PARTIAL: return OP_META_PARTIAL;
+            default: throw new IllegalArgumentException("No opcode for " + type);
+        }
+    }
+
+    /** Tên loại response của opcode, để code đọc dùng chung với bản text */
+    public static String responseType(int opcode) throws ProtocolException {
+        switch (opcode) {
+            case OP_ERROR: return "ERROR";
+            case OP_META_RESPONSE: return FileTransferProtocol.FILE_META_RESPONSE;
+            case OP_CHUNK_DATA: return FileTransferProtocol.CHUNK_DATA;
+            case OP_CHUNK_DATA_Z: return FileTransferProtocol.CHUNK_DATA_Z;
+            case OP_CHUNK_ERROR: return FileTransferProtocol.CHUNK_ERROR;
+            case OP_CHUNK_BATCH: return FileTransferProtocol.CHUNK_BATCH;
+            case OP_STREAM_DATA: return FileTransferProtocol.STREAM_DATA;
+            case OP_RANGE_DATA: return FileTransferProtocol.RANGE_DATA;
+            case OP_META_ROOT: return FileTransferProtocol.FILE_META_ROOT;
+            case OP_CHUNK_PROOF: return FileTransferProtocol.CHUNK_PROOF;
+            case OP_CHUNK_MAP: return FileTransferProtocol.CHUNK_MAP;
+            case OP_META_PARTIAL: return FileTransferProtocol.FILE_META_PARTIAL;
+            default: throw new ProtocolException("Unknown response opcode 0x" + Integer.toHexString(opcode));
+        }
+    }
+
+    // ---------------- frame request ----------------
+
+    /** 1 request đã tách khỏi stream */
+    public record Frame(int opcode, byte[] payload) {
+        public DataInputStream payloadStream() {
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+    }
+
+    public static void writeFrame(DataOutput out, int opcode, byte[] payload) throws IOException {
+        out.writeByte(opcode);
+        writeVarInt(out, payload.length);
+        out.write(payload);
+    }
+
+    public static Frame readFrame(DataInput in) throws IOException {
+        int opcode = in.readUnsignedByte();
+        int len = readVarInt(in);
+        if (len < 0 || len > MAX_REQUEST_PAYLOAD) throw new ProtocolException("Frame too large: " + len);
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        return new Frame(opcode, payload);
+    }
+
+    /**
+     * Độ dài cả frame (opcode + varint + payload) ở đầu buffer, không đổi position.
+     *
+     * @return -1 nếu chưa đủ byte để biết độ dài
+     */
+    public static int frameLength(ByteBuffer buf) throws ProtocolException {
+        int pos = buf.position();
+        int limit = buf.limit();
+        if (limit - pos < 2) return -1;
+        int len = 0;
+        int shift = 0;
+        int i = pos + 1;
+        while (true) {
+            if (i >= limit) return -1;
+            int b = buf.get(i++) & 0xFF;
+            len |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 21) throw new ProtocolException("Frame length too long");
+        }
+        if (len > MAX_REQUEST_PAYLOAD) throw new ProtocolException("Frame too large: " + len);
+        return (i - pos) + len;
+    }
+
+    /** Builder payload cho request phía client */
+    public static final class Payload {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        public Payload varInt(int v) {
+            try {
+                writeVarInt(out, v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        public Payload varLong(long v) {
+            try {
+                writeVarLong(out, v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        public Payload zigZag(long v) {
+            return varLong(zigZagEncode(v));
+        }
+
+        public Payload string(String s) {
+            try {
+                writeString(out, s);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // ---------------- field ----------------
+
+    // int không âm hay gặp (index, độ dài) -> 1-3 byte
+    public static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    public static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new ProtocolException("Varlong too long");
+    }
+
+    public static long zigZagEncode(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    public static long zigZagDecode(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int len = readVarInt(in);
+        if (len < 0 || len > MAX_REQUEST_PAYLOAD) throw new ProtocolException("String too long: " + len);
+        byte[] utf8 = new byte[len];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /** Digest hex -> byte thô (không kèm độ dài, bên đọc biết thuật toán của file) */
+    public static void writeDigest(DataOutput out, String hex) throws IOException {
+        if (hex.isEmpty() || (hex.length() & 1) != 0) throw new IllegalArgumentException("Not a digest: " + hex);
+        // ghi thẳng từng byte, không tạo mảng trung gian cho mỗi chunk
+        for (int i = 0; i < hex.length(); i += 2) {
+            int hi = Character.digit(hex.charAt(i), 16);
+            int lo = Character.digit(hex.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("Not a digest: " + hex);
+            out.write((hi << 4) | lo);
+        }
+    }
+
+    /** 32 byte thô (SHA-256) -> hex (dạng các lớp trên vẫn dùng) */
+    public static String readDigest(DataInput in) throws IOException {
+        return readDigest(in, DIGEST_BYTES);
+    }
+
+    /** length byte thô -> hex, length = độ dài digest của thuật toán đã thống nhất */
+    public static String readDigest(DataInput in, int length) throws IOException {
+        byte[] raw = new byte[length];
+        in.readFully(raw);
+        return FileHashUtil.toHex(raw);
+    }
+}
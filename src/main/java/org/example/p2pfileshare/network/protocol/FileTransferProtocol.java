@@ -5,20 +5,173 @@ public class FileTransferProtocol {
     // Commands
     public static final String FILE_META_REQUEST = "FILE_META_REQUEST";
     public static final String FILE_META_RESPONSE = "FILE_META_RESPONSE";
+    // FILE_META_REQUEST|file|chunkSize|merkle: file đủ lớn (>= MERKLE_MIN_CHUNKS) thì server trả
+    // FILE_META_ROOT: file, fileSize, chunkSize, totalChunks, fileSha256, merkleRoot (không kèm hash từng chunk),
+    // sau đó trên session này mỗi chunk của file được gửi kèm CHUNK_PROOF (GET_STREAM: proof sau hash chunk)
+    public static final String FILE_META_ROOT = "FILE_META_ROOT";
+    public static final String META_MERKLE = "merkle";
+    // FILE_META_REQUEST|file|chunkSize|merkle-hoặc-full|alg1,alg2 (v7+): thuật toán băm client chấp nhận, ưu tiên trước.
+    // Server chọn thuật toán đầu tiên nó hỗ trợ (không có thì SHA-256) và trả id thuật toán (UTF) ngay sau totalChunks;
+    // hash cả file, hash từng chunk và hash kèm mọi chunk của file đó trên session này đều theo thuật toán này.
+    // Dạng Merkle chỉ dùng với SHA-256.
+    public static final String META_FULL = "full";
+    // File server chỉ đang tải dở (chưa có trong share folder): FILE_META_PARTIAL: file, fileSize, chunkSize,
+    // totalChunks, [alg], fileSha256, rồi manifest của lần tải đó: "full" + totalChunks hash chunk,
+    // hoặc "merkle" + gốc (chunk gửi kèm CHUNK_PROOF như sau FILE_META_ROOT). Chỉ phục vụ chunk đã kiểm lại
+    // theo manifest đó (Merkle: chunk có proof nhận được lúc tải), kèm hash chunk của manifest;
+    // chunk khác -> CHUNK_ERROR, không có trong GET_HAVE. Không có GET_STREAM / GET_RANGE. Chỉ trả cho client
+    // session v9+, chunk size là chunk size của lần tải đó bất kể client xin gì.
+    public static final String FILE_META_PARTIAL = "FILE_META_PARTIAL";
+    // CHUNK_PROOF: index (int), n (int), n hash anh em từ lá lên gốc, đứng ngay trước CHUNK_DATA/CHUNK_DATA_Z
+    public static final String CHUNK_PROOF = "CHUNK_PROOF";
     public static final String GET_CHUNK = "GET_CHUNK";
     public static final String CHUNK_DATA = "CHUNK_DATA";
+    // trong CHUNK_BATCH: index (int), reason (UTF) -> chunk đó lỗi, các chunk khác vẫn gửi
     public static final String CHUNK_ERROR = "CHUNK_ERROR";
+    // Đọc 1 đoạn byte bất kỳ (xem trước file, đọc phần cuối PDF...), offset < 0 = -offset byte cuối file
+    public static final String GET_RANGE = "GET_RANGE";
+    public static final String RANGE_DATA = "RANGE_DATA";
+    // Lấy nhiều chunk trong 1 request: GET_CHUNKS|file|chunkSize|start|count hoặc GET_CHUNKS|file|chunkSize|i,j,k
+    // Response: CHUNK_BATCH, count (int), rồi count record CHUNK_DATA / CHUNK_DATA_Z / CHUNK_ERROR theo đúng thứ tự xin
+    public static final String GET_CHUNKS = "GET_CHUNKS";
+    public static final String CHUNK_BATCH = "CHUNK_BATCH";
+    // Tải mới cả file: GET_STREAM|file|chunkSize -> STREAM_DATA, fileSize, chunkSize, totalChunks, fileSha256,
+    // rồi lần lượt từng chunk: bytes (độ dài suy từ chunkSize/fileSize) + chunkSha256 (UTF) ngay sau
+    public static final String GET_STREAM = "GET_STREAM";
+    public static final String STREAM_DATA = "STREAM_DATA";
+    // Peer đang có những chunk nào (tải từ nhiều peer, có peer mới có 1 phần file): GET_HAVE|file|chunkSize
+    // -> CHUNK_MAP, totalChunks (int), haveCount (int), len (int), len byte bitmap (BitSet.toByteArray, bit i = chunk i).
+    // Có đủ cả file thì haveCount = totalChunks và len = 0.
+    public static final String GET_HAVE = "GET_HAVE";
+    public static final String CHUNK_MAP = "CHUNK_MAP";
+
+    // Server quá tải, trả thay cho response đầu tiên của kết nối rồi đóng: retryAfterMs (int), reason (UTF).
+    // Client chờ retryAfterMs rồi kết nối lại, không tính là 1 lần thử thất bại.
+    public static final String BUSY = "BUSY";
+
+    // Session: 1 kết nối mang nhiều request (pipeline), peer cũ không hiểu -> trả ERROR
+    public static final String SESSION_OPEN = "SESSION_OPEN";
+    public static final String SESSION_ACK = "SESSION_ACK";
+    public static final String SESSION_CLOSE = "SESSION_CLOSE";
+    // v2: client có thể đề nghị codec nén (SESSION_OPEN|2|deflate), server trả thêm codec đã chọn sau version
+    // v3: server hiểu GET_CHUNKS
+    // v4: server hiểu GET_STREAM
+    // v5: client có thể đề nghị framing nhị phân (SESSION_OPEN|5|codec|bin1), server trả thêm framing sau codec,
+    //     sau SESSION_ACK cả 2 chiều chuyển sang BinaryFrames
+    // v6: server hiểu FILE_META_REQUEST dạng Merkle (FILE_META_ROOT + CHUNK_PROOF)
+    // v7: server hiểu danh sách thuật toán băm trong FILE_META_REQUEST
+    // v8: server hiểu GET_HAVE
+    // v9: client đọc được FILE_META_PARTIAL (server biết version client qua SESSION_OPEN)
+    public static final int SESSION_VERSION = 9;
+
+    // Nén chunk theo session: chỉ dùng khi cả 2 bên đồng ý lúc SESSION_OPEN
+    public static final String CODEC_NONE = "none";
+    public static final String CODEC_DEFLATE = "deflate";
+    // CHUNK_DATA_Z: index, rawLen, chunkSha256 (của dữ liệu gốc), compressedLen, bytes nén
+    public static final String CHUNK_DATA_Z = "CHUNK_DATA_Z";
+
+    // Chunk size: peer cũ không gửi chunk size -> luôn 1 MB.
+    // Peer mới gửi chunk size mong muốn (0 = để server tự chọn theo size file),
+    // server chọn lũy thừa của 2 trong [MIN_CHUNK_SIZE, MAX_CHUNK_SIZE] và trả trong FILE_META_RESPONSE.
+    public static final int LEGACY_CHUNK_SIZE = 1024 * 1024;
+    public static final int MIN_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int AUTO_CHUNK_SIZE = 0;
+    // 1 GET_RANGE tối đa bằng 1 chunk lớn nhất
+    public static final int MAX_RANGE_LENGTH = MAX_CHUNK_SIZE;
+    // 1 GET_CHUNKS tối đa chừng này chunk và chừng này byte dữ liệu
+    public static final int MAX_BATCH_CHUNKS = 64;
+    public static final int MAX_BATCH_BYTES = 64 * 1024 * 1024;
+    // file ít chunk hơn thì danh sách hash vẫn nhỏ, server trả FILE_META_RESPONSE như thường
+    public static final int MERKLE_MIN_CHUNKS = 64;
 
     // Build request for file metadata
     public static String buildMetaRequest(String fileName) {
         return FILE_META_REQUEST + "|" + fileName;
     }
 
+    // Build request for file metadata kèm chunk size mong muốn
+    public static String buildMetaRequest(String fileName, int preferredChunkSize) {
+        return FILE_META_REQUEST + "|" + fileName + "|" + preferredChunkSize;
+    }
+
+    // Build request for file metadata dạng Merkle (chỉ gốc, proof theo từng chunk)
+    public static String buildMerkleMetaRequest(String fileName, int preferredChunkSize) {
+        return FILE_META_REQUEST + "|" + fileName + "|" + preferredChunkSize + "|" + META_MERKLE;
+    }
+
+    // Build request for file metadata kèm thuật toán băm chấp nhận (id, cách nhau bởi ',')
+    public static String buildMetaRequest(String fileName, int preferredChunkSize, boolean merkle, String hashAlgorithms) {
+        return FILE_META_REQUEST + "|" + fileName + "|" + preferredChunkSize + "|"
+                + (merkle ? META_MERKLE : META_FULL) + "|" + hashAlgorithms;
+    }
+
     // Build request for specific chunk
     public static String buildChunkRequest(String fileName, int chunkIndex) {
         return GET_CHUNK + "|" + fileName + "|" + chunkIndex;
     }
 
+    // Build request for specific chunk theo chunk size đã thống nhất ở FILE_META_RESPONSE
+    public static String buildChunkRequest(String fileName, int chunkIndex, int chunkSize) {
+        return GET_CHUNK + "|" + fileName + "|" + chunkIndex + "|" + chunkSize;
+    }
+
+    // Build request lấy count chunk liên tiếp từ start
+    public static String buildBatchRequest(String fileName, int chunkSize, int start, int count) {
+        return GET_CHUNKS + "|" + fileName + "|" + chunkSize + "|" + start + "|" + count;
+    }
+
+    // Build request lấy các chunk rời rạc
+    public static String buildBatchRequest(String fileName, int chunkSize, int[] chunkIndexes) {
+        StringBuilder sb = new StringBuilder(GET_CHUNKS).append('|').append(fileName)
+                .append('|').append(chunkSize).append('|');
+        for (int i = 0; i < chunkIndexes.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(chunkIndexes[i]);
+        }
+        return sb.toString();
+    }
+
+    // Build request đẩy cả file theo chunk size đã thống nhất
+    public static String buildStreamRequest(String fileName, int chunkSize) {
+        return GET_STREAM + "|" + fileName + "|" + chunkSize;
+    }
+
+    // Build request hỏi bitmap chunk peer đang có
+    public static String buildHaveRequest(String fileName, int chunkSize) {
+        return GET_HAVE + "|" + fileName + "|" + chunkSize;
+    }
+
+    /** Số chunk tối đa cho 1 GET_CHUNKS với chunk size này */
+    public static int maxBatchChunks(int chunkSize) {
+        return Math.max(1, Math.min(MAX_BATCH_CHUNKS, MAX_BATCH_BYTES / Math.max(1, chunkSize)));
+    }
+
+    // Build request đọc length byte từ offset
+    public static String buildRangeRequest(String fileName, long offset, int length) {
+        return GET_RANGE + "|" + fileName + "|" + offset + "|" + length;
+    }
+
+    /** Chunk size hợp lệ trên wire: lũy thừa của 2 trong [MIN_CHUNK_SIZE, MAX_CHUNK_SIZE] */
+    public static boolean isValidChunkSize(int chunkSize) {
+        return chunkSize >= MIN_CHUNK_SIZE && chunkSize <= MAX_CHUNK_SIZE && Integer.bitCount(chunkSize) == 1;
+    }
+
+    // Build request mở session
+    public static String buildSessionOpen() {
+        return SESSION_OPEN + "|" + SESSION_VERSION;
+    }
+
+    // Build request mở session kèm codec nén client hỗ trợ
+    public static String buildSessionOpen(String codec) {
+        return SESSION_OPEN + "|" + SESSION_VERSION + "|" + codec;
+    }
+
+    // Build request mở session kèm codec nén và framing client hỗ trợ
+    public static String buildSessionOpen(String codec, String framing) {
+        return SESSION_OPEN + "|" + SESSION_VERSION + "|" + codec + "|" + framing;
+    }
+
     // Parse command
     public static ParsedCommand parse(String line) {
         if (line == null || line.isEmpty()) return null;
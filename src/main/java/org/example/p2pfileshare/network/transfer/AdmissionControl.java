@@ -0,0 +1,191 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Quyết định kết nối nào của ChunkedFileServer được phục vụ:
+ *
+ * - tối đa maxActive kết nối đang phục vụ,
+ * - thêm tối đa maxQueued kết nối chờ tới lượt (FIFO), chờ quá {@link #QUEUE_TIMEOUT_MS} thì bỏ,
+ * - mỗi peer (IP) tối đa maxPerPeer kết nối, tính cả đang chờ.
+ *
+ * Quá giới hạn thì kết nối bị từ chối ngay (server trả BUSY kèm thời gian nên thử lại),
+ * thay vì nằm chờ tới khi client hết SOCKET_TIMEOUT rồi retry làm server càng quá tải.
+ *
+ * Không bao giờ block: kết nối được nhận (ngay hoặc khi có slot trống) thì gọi callback onAdmit,
+ * nên dùng chung được cho engine thread lẫn selector.
+ */
+public final class AdmissionControl {
+
+    static final int DEFAULT_MAX_QUEUED = 64;
+    static final int DEFAULT_MAX_PER_PEER = 16;
+    static final long QUEUE_TIMEOUT_MS = 5_000;
+    // gợi ý thử lại cơ bản, cộng thêm ngẫu nhiên để các client bị từ chối không quay lại cùng lúc
+    private static final int RETRY_AFTER_MS = 1_000;
+
+    private final Object lock = new Object();
+    private int maxActive;
+    private int maxQueued;
+    private int maxPerPeer;
+    private int active;
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+    private final Map<String, Integer> perPeer = new HashMap<>();
+    private long rejected;
+
+    public AdmissionControl(int maxActive, int maxQueued, int maxPerPeer) {
+        setLimits(maxActive, maxQueued, maxPerPeer);
+    }
+
+    /** Đổi giới hạn lúc đang chạy; tăng maxActive thì kết nối đang chờ được nhận luôn */
+    public void setLimits(int maxActive, int maxQueued, int maxPerPeer) {
+        List<Ticket> admitted;
+        synchronized (lock) {
+            this.maxActive = Math.max(1, maxActive);
+            this.maxQueued = Math.max(0, maxQueued);
+            this.maxPerPeer = Math.max(1, maxPerPeer);
+            admitted = promote();
+        }
+        runAdmitted(admitted);
+    }
+
+    /**
+     * Xin phục vụ 1 kết nối mới.
+     *
+     * @param onAdmit  chạy khi kết nối được phục vụ: ngay trong lời gọi này, hoặc sau đó
+     *                 trên thread vừa trả slot
+     * @param onExpire chạy nếu kết nối chờ quá lâu mà chưa tới lượt (caller trả BUSY rồi đóng)
+     * @return ticket, phải close() khi kết nối đóng; null nếu quá tải -> caller trả BUSY
+     */
+    Ticket tryEnter(String peerKey, Consumer<Ticket> onAdmit, Runnable onExpire) {
+        Ticket ticket;
+        synchronized (lock) {
+            int peerCount = perPeer.getOrDefault(peerKey, 0);
+            if (peerCount >= maxPerPeer || (active >= maxActive && queue.size() >= maxQueued)) {
+                rejected++;
+                return null;
+            }
+            perPeer.put(peerKey, peerCount + 1);
+            ticket = new Ticket(peerKey, onAdmit, onExpire);
+            if (active < maxActive && queue.isEmpty()) {
+                active++;
+                ticket.admitted = true;
+            } else {
+                queue.add(ticket);
+                return ticket;
+            }
+        }
+        onAdmit.accept(ticket);
+        return ticket;
+    }
+
+    /** Bỏ các kết nối chờ quá {@link #QUEUE_TIMEOUT_MS}, gọi định kỳ */
+    void expireQueued() {
+        long deadline = System.nanoTime() - QUEUE_TIMEOUT_MS * 1_000_000L;
+        List<Ticket> expired = new ArrayList<>();
+        synchronized (lock) {
+            Iterator<Ticket> it = queue.iterator();
+            while (it.hasNext()) {
+                Ticket t = it.next();
+                if (t.enqueuedAt - deadline >= 0) break; // FIFO: phía sau còn mới hơn
+                it.remove();
+                t.closed = true;
+                releasePeer(t.peerKey);
+                rejected++;
+                expired.add(t);
+            }
+        }
+        for (Ticket t : expired) t.onExpire.run();
+    }
+
+    /** Gợi ý số ms client nên chờ trước khi kết nối lại */
+    int retryAfterMs() {
+        return RETRY_AFTER_MS + ThreadLocalRandom.current().nextInt(RETRY_AFTER_MS / 2);
+    }
+
+    public int getActiveCount() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    /** Số kết nối đã bị trả BUSY (quá tải lúc vào hoặc chờ quá lâu) */
+    public long getRejectedCount() {
+        synchronized (lock) {
+            return rejected;
+        }
+    }
+
+    private void release(Ticket t) {
+        List<Ticket> admitted;
+        synchronized (lock) {
+            if (t.closed) return;
+            t.closed = true;
+            releasePeer(t.peerKey);
+            if (t.admitted) {
+                active--;
+            } else {
+                queue.remove(t);
+            }
+            admitted = promote();
+        }
+        runAdmitted(admitted);
+    }
+
+    // gọi trong lock: nhận kết nối đang chờ khi còn slot
+    private List<Ticket> promote() {
+        List<Ticket> admitted = null;
+        while (active < maxActive && !queue.isEmpty()) {
+            Ticket next = queue.poll();
+            next.admitted = true;
+            active++;
+            if (admitted == null) admitted = new ArrayList<>();
+            admitted.add(next);
+        }
+        return admitted;
+    }
+
+    // callback chạy ngoài lock (có thể submit task, đụng selector...)
+    private static void runAdmitted(List<Ticket> admitted) {
+        if (admitted == null) return;
+        for (Ticket t : admitted) t.onAdmit.accept(t);
+    }
+
+    // gọi trong lock
+    private void releasePeer(String peerKey) {
+        perPeer.computeIfPresent(peerKey, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /** Chỗ của 1 kết nối (đang phục vụ hoặc đang chờ), close() khi kết nối đóng */
+    final class Ticket implements AutoCloseable {
+        private final String peerKey;
+        private final Consumer<Ticket> onAdmit;
+        private final Runnable onExpire;
+        private final long enqueuedAt = System.nanoTime();
+        private boolean admitted;
+        private boolean closed;
+
+        private Ticket(String peerKey, Consumer<Ticket> onAdmit, Runnable onExpire) {
+            this.peerKey = peerKey;
+            this.onAdmit = onAdmit;
+            this.onExpire = onExpire;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
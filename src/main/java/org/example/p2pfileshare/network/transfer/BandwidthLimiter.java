@@ -0,0 +1,261 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Giới hạn tốc độ upload của ChunkedFileServer bằng token bucket: 1 bucket chung
+ * cho cả server và 1 bucket cho mỗi peer (theo địa chỉ IP, mọi kết nối của cùng peer dùng chung).
+ *
+ * Chia công bằng: mỗi lần chỉ cấp tối đa {@link #QUANTUM} byte, peer nào hết token chung
+ * thì vào hàng đợi và được cấp lần lượt theo thứ tự, nên 1 peer tải mạnh không chiếm hết uplink.
+ *
+ * Giới hạn đổi được lúc đang chạy ({@link #setLimits}), 0 = không giới hạn.
+ * Không bao giờ block: {@link #tryAcquire} trả về số byte được gửi, hoặc thời gian cần chờ,
+ * để dùng được cho cả engine blocking lẫn selector.
+ */
+public final class BandwidthLimiter {
+
+    public static final long UNLIMITED = 0;
+
+    // lượng byte tối đa cấp cho 1 lần gửi -> peer khác có lượt sau mỗi quantum
+    static final int QUANTUM = 64 * 1024;
+    // bucket chứa tối đa ~100 ms token (ít nhất 1 quantum), tránh burst lớn sau lúc rảnh
+    private static final long BURST_NANOS = 100_000_000L;
+    // peer trong hàng đợi quá hạn hẹn thử lại mà chưa quay lại (kết nối chết / bận) thì bỏ lượt
+    private static final long STALE_WAITER_NANOS = 50_000_000L;
+    private static final long MIN_WAIT_NANOS = 1_000_000L;
+    // không cấp lắt nhắt vài byte: chờ đủ ít nhất chừng này (hoặc đủ phần còn lại) mới gửi
+    private static final int MIN_GRANT = 8 * 1024;
+
+    private final Object lock = new Object();
+    private final Bucket global = new Bucket();
+    private long perPeerRate;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final ArrayDeque<Peer> waiting = new ArrayDeque<>();
+    // đọc không cần lock: đường gửi bỏ qua hẳn limiter khi không giới hạn gì
+    private volatile boolean unlimited = true;
+
+    public BandwidthLimiter() {
+        this(UNLIMITED, UNLIMITED);
+    }
+
+    public BandwidthLimiter(long globalBytesPerSec, long perPeerBytesPerSec) {
+        setLimits(globalBytesPerSec, perPeerBytesPerSec);
+    }
+
+    /** Đổi giới hạn (byte/giây), áp dụng ngay cho các lượt gửi kế tiếp */
+    public void setLimits(long globalBytesPerSec, long perPeerBytesPerSec) {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            global.setRate(Math.max(0, globalBytesPerSec), now);
+            perPeerRate = Math.max(0, perPeerBytesPerSec);
+            for (Peer p : peers.values()) {
+                p.bucket.setRate(perPeerRate, now);
+            }
+            if (global.rate == UNLIMITED) {
+                for (Peer p : waiting) p.queued = false;
+                waiting.clear();
+            }
+            unlimited = global.rate == UNLIMITED && perPeerRate == UNLIMITED;
+        }
+    }
+
+    public long getGlobalLimit() {
+        synchronized (lock) {
+            return global.rate;
+        }
+    }
+
+    public long getPerPeerLimit() {
+        synchronized (lock) {
+            return perPeerRate;
+        }
+    }
+
+    public boolean isUnlimited() {
+        return unlimited;
+    }
+
+    /** Đăng ký 1 kết nối của peer, phải close() khi kết nối đóng */
+    public Lease open(String peerKey) {
+        synchronized (lock) {
+            Peer p = peers.get(peerKey);
+            if (p == null) {
+                p = new Peer(peerKey);
+                p.bucket.setRate(perPeerRate, System.nanoTime());
+                peers.put(peerKey, p);
+            }
+            p.connections++;
+            return new Lease(p);
+        }
+    }
+
+    /**
+     * @return > 0: số byte được gửi ngay (≤ wanted, ≤ QUANTUM);
+     *         < 0: chưa được gửi, thử lại sau -kết quả nano giây
+     */
+    long tryAcquire(Lease lease, long wanted) {
+        if (wanted <= 0) return 0;
+        Peer p = lease.peer;
+        synchronized (lock) {
+            long now = System.nanoTime();
+            long grant = Math.min(wanted, QUANTUM);
+            long need = Math.min(grant, MIN_GRANT);
+
+            if (p.bucket.rate != UNLIMITED) {
+                p.bucket.refill(now);
+                if (p.bucket.tokens < need) {
+                    // đang chờ bucket riêng thì nhường lượt chung cho peer khác
+                    removeWaiter(p);
+                    return -p.bucket.nanosUntil(need);
+                }
+                grant = Math.min(grant, (long) p.bucket.tokens);
+            }
+
+            if (global.rate != UNLIMITED) {
+                global.refill(now);
+                dropStaleWaiters(now);
+                Peer head = waiting.peek();
+                if (head != null && head != p) {
+                    return -enqueue(p, now, global.nanosUntil(QUANTUM));
+                }
+                if (global.tokens < need) {
+                    return -enqueue(p, now, global.nanosUntil(need));
+                }
+                grant = Math.min(grant, (long) global.tokens);
+                removeWaiter(p);
+                global.tokens -= grant;
+            }
+
+            if (p.bucket.rate != UNLIMITED) {
+                p.bucket.tokens -= grant;
+            }
+            return grant;
+        }
+    }
+
+    /** Trả lại phần được cấp mà socket chưa nhận (buffer đầy) */
+    void refund(Lease lease, long unused) {
+        if (unused <= 0) return;
+        synchronized (lock) {
+            if (global.rate != UNLIMITED) {
+                global.tokens = Math.min(global.capacity(), global.tokens + unused);
+            }
+            Bucket b = lease.peer.bucket;
+            if (b.rate != UNLIMITED) {
+                b.tokens = Math.min(b.capacity(), b.tokens + unused);
+            }
+        }
+    }
+
+    private long enqueue(Peer p, long now, long waitNanos) {
+        p.retryDeadline = now + waitNanos + STALE_WAITER_NANOS;
+        if (!p.queued) {
+            p.queued = true;
+            waiting.add(p);
+        }
+        return waitNanos;
+    }
+
+    private void removeWaiter(Peer p) {
+        if (p.queued) {
+            p.queued = false;
+            waiting.remove(p);
+        }
+    }
+
+    private void dropStaleWaiters(long now) {
+        Peer head;
+        while ((head = waiting.peek()) != null && now - head.retryDeadline > 0) {
+            head.queued = false;
+            waiting.poll();
+        }
+    }
+
+    private void release(Peer p) {
+        synchronized (lock) {
+            if (--p.connections <= 0) {
+                removeWaiter(p);
+                peers.remove(p.key);
+            }
+        }
+    }
+
+    /** 1 kết nối đang gửi dữ liệu, dùng chung bucket của peer */
+    public final class Lease implements AutoCloseable {
+        private final Peer peer;
+        private boolean closed;
+
+        private Lease(Peer peer) {
+            this.peer = peer;
+        }
+
+        public String getPeerKey() {
+            return peer.key;
+        }
+
+        boolean isUnlimited() {
+            return unlimited;
+        }
+
+        long tryAcquire(long wanted) {
+            return BandwidthLimiter.this.tryAcquire(this, wanted);
+        }
+
+        void refund(long unused) {
+            BandwidthLimiter.this.refund(this, unused);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            release(peer);
+        }
+    }
+
+    private static final class Peer {
+        final String key;
+        final Bucket bucket = new Bucket();
+        int connections;
+        boolean queued;
+        long retryDeadline;
+
+        Peer(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Bucket {
+        long rate; // byte/s, 0 = không giới hạn
+        double tokens;
+        long lastRefill;
+
+        void setRate(long newRate, long now) {
+            refill(now);
+            rate = newRate;
+            tokens = Math.min(tokens, capacity());
+            lastRefill = now;
+        }
+
+        long capacity() {
+            return Math.max(QUANTUM, rate * BURST_NANOS / 1_000_000_000L);
+        }
+
+        void refill(long now) {
+            if (rate == UNLIMITED) return;
+            long elapsed = now - lastRefill;
+            if (elapsed <= 0) return;
+            tokens = Math.min(capacity(), tokens + rate * (elapsed / 1e9));
+            lastRefill = now;
+        }
+
+        long nanosUntil(long amount) {
+            double missing = amount - tokens;
+            if (missing <= 0) return MIN_WAIT_NANOS;
+            return Math.max(MIN_WAIT_NANOS, (long) (missing * 1e9 / rate));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Nén chunk trên đường truyền (Deflate mức nhanh nhất, có sẵn trong JDK).
+ *
+ * Chỉ nén khi đáng: bỏ qua file vốn đã nén (zip/rar/mp4/jpg...), và nén thử 1 mẫu đầu chunk,
+ * không nhỏ đi đủ thì gửi thô và nhớ file đó là "không nén được" để chunk sau khỏi thử lại.
+ */
+final class ChunkCompressor {
+
+    // mẫu nén thử ở đầu chunk
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    // nén phải nhỏ hơn 90% mới gửi bản nén
+    private static final double MAX_RATIO = 0.9;
+    private static final int MAX_VERDICTS = 256;
+
+    private static final Set<String> INCOMPRESSIBLE_EXTENSIONS = Set.of(
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "zst", "lz4", "cab", "jar", "apk",
+            "mp4", "mkv", "avi", "mov", "webm", "m4v", "mp3", "aac", "ogg", "flac", "m4a", "opus",
+            "jpg", "jpeg", "png", "gif", "webp", "heic");
+
+    // Deflater / Inflater rảnh giữ lại tối đa chừng này mỗi loại (mỗi cái giữ bộ nhớ zlib native tới khi end()),
+    // không theo thread: virtual thread / worker NIO đến rồi đi thì số đối tượng vẫn không tăng theo
+    private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    // file (+ mtime) nén thử không được -> không thử lại
+    private final Map<Path, Long> incompressible = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+                    return size() > MAX_VERDICTS;
+                }
+            });
+
+    /** File này có nên thử nén không (theo đuôi file và lần thử trước) */
+    boolean worthTrying(Path file, long lastModified) {
+        if (hasIncompressibleExtension(file)) return false;
+        Long verdict = incompressible.get(file);
+        return verdict == null || verdict != lastModified;
+    }
+
+    /**
+     * Nén data[0, len).
+     *
+     * @return bản nén, hoặc null nếu không nhỏ đi đủ (file được nhớ là không nén được)
+     */
+    byte[] compress(Path file, long lastModified, byte[] data, int len) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            // nén thử mẫu trước, dữ liệu ngẫu nhiên/đã nén thì dừng sớm
+            if (len > SAMPLE_BYTES * 2) {
+                int sampleLen = deflate(deflater, data, SAMPLE_BYTES, new byte[SAMPLE_BYTES]);
+                if (sampleLen < 0 || sampleLen > SAMPLE_BYTES * MAX_RATIO) {
+                    incompressible.put(file, lastModified);
+                    return null;
+                }
+            }
+
+            int limit = (int) (len * MAX_RATIO);
+            byte[] out = new byte[Math.max(limit, 64)];
+            int n = deflate(deflater, data, len, out);
+            if (n < 0 || n > limit) {
+                return null;
+            }
+            byte[] result = new byte[n];
+            System.arraycopy(out, 0, result, 0, n);
+            return result;
+        } finally {
+            deflater.reset();
+            // pool đầy: giải phóng bộ nhớ native ngay
+            if (!DEFLATERS.offer(deflater)) deflater.end();
+        }
+    }
+
+    /** Giải nén, phải ra đúng rawLen byte */
+    static byte[] inflate(byte[] compressed, int rawLen) throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] out = new byte[rawLen];
+        try {
+            int off = 0;
+            while (off < rawLen && !inflater.finished()) {
+                int n = inflater.inflate(out, off, rawLen - off);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                off += n;
+            }
+            if (off != rawLen || !inflater.finished()) {
+                throw new IOException("Compressed chunk has wrong length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) inflater.end();
+        }
+        return out;
+    }
+
+    // -1 nếu out không đủ chỗ (tức là không nhỏ đi đủ)
+    private static int deflate(Deflater deflater, byte[] data, int len, byte[] out) {
+        deflater.reset();
+        deflater.setInput(data, 0, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length) return -1;
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return n;
+    }
+
+    private static boolean hasIncompressibleExtension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) return false;
+        return INCOMPRESSIBLE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
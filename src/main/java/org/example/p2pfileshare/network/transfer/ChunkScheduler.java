@@ -0,0 +1,227 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chọn chunk cho từng nguồn khi tải 1 file từ nhiều peer, mỗi peer có thể mới có 1 phần file.
+ *
+ * - RAREST_FIRST: chunk ít nguồn có nhất trước, để chunk hiếm không bị kẹt lại khi peer giữ nó rời đi.
+ *   Cùng độ hiếm thì theo thứ tự index bắt đầu từ 1 điểm ngẫu nhiên của lần tải: các máy cùng tải
+ *   1 file nhận những đoạn khác nhau nên có cái để chia cho nhau, mỗi request vẫn là các chunk liền nhau.
+ * - SEQUENTIAL: chunk index nhỏ trước (xem / nghe trong lúc đang tải).
+ * - Endgame: chunk nào còn thiếu cũng đang được xin và chỉ còn vài chunk thì cho nguồn rảnh xin lại
+ *   chunk đang bay ở nguồn khác, bản nào về trước thì dùng, bản sau bỏ. Tránh đuôi dài vì 1 nguồn chậm.
+ *
+ * Chunk đã xong lấy từ DownloadProgress; ai đang xin chunk nào thì scheduler tự giữ (không dùng claim
+ * của DownloadProgress vì endgame cho 1 chunk nhiều người xin).
+ */
+public final class ChunkScheduler {
+
+    public enum Order { RAREST_FIRST, SEQUENTIAL }
+
+    // còn thiếu chừng này chunk trở xuống (và đều đang được xin) thì vào endgame
+    static final int ENDGAME_CHUNKS = 8;
+    // trong endgame 1 chunk được xin trên tối đa chừng này nguồn cùng lúc
+    static final int ENDGAME_MAX_REQUESTS = 3;
+
+    /** Trạng thái 1 nguồn, chỉ đọc / sửa dưới lock của scheduler */
+    static final class Peer {
+        private BitSet have;
+        // chunk nguồn này đang xin
+        private final BitSet requested = new BitSet();
+        // chunk nguồn này trả sai hash / báo lỗi: không xin lại ở nguồn này
+        private final BitSet failed = new BitSet();
+        private boolean removed;
+
+        private Peer(BitSet have) {
+            this.have = have;
+        }
+    }
+
+    private final DownloadProgress progress;
+    private final Order order;
+    private final int totalChunks;
+    // số nguồn (chưa bị bỏ) có chunk i
+    private final int[] availability;
+    // số request đang bay cho chunk i, trên mọi nguồn
+    private final int[] requests;
+    private final int origin;
+    private int outstanding;
+    private boolean endgame;
+
+    ChunkScheduler(DownloadProgress progress, Order order) {
+        this.progress = progress;
+        this.order = order;
+        this.totalChunks = progress.getTotalChunks();
+        this.availability = new int[totalChunks];
+        this.requests = new int[totalChunks];
+        this.origin = totalChunks > 0 ? ThreadLocalRandom.current().nextInt(totalChunks) : 0;
+    }
+
+    /** Thêm 1 nguồn có các chunk trong have (scheduler giữ bản sao) */
+    synchronized Peer addPeer(BitSet have) {
+        Peer p = new Peer(clip(have));
+        addAvailability(p.have, 1);
+        return p;
+    }
+
+    /** Cập nhật chunk nguồn đang có (nguồn cũng đang tải dở) */
+    synchronized void updatePeer(Peer p, BitSet have) {
+        if (p.removed) return;
+        addAvailability(p.have, -1);
+        p.have = clip(have);
+        addAvailability(p.have, 1);
+    }
+
+    /** Bỏ nguồn: trả lại mọi chunk nó đang xin */
+    synchronized void removePeer(Peer p) {
+        if (p.removed) return;
+        p.removed = true;
+        addAvailability(p.have, -1);
+        for (int i = p.requested.nextSetBit(0); i >= 0; i = p.requested.nextSetBit(i + 1)) {
+            requests[i]--;
+            outstanding--;
+        }
+        p.requested.clear();
+        notifyAll();
+    }
+
+    /**
+     * Chọn tối đa max chunk cho nguồn p và ghi nhận là đang xin.
+     *
+     * @return mảng rỗng nếu nguồn này hiện không có chunk nào để xin
+     */
+    synchronized int[] claim(Peer p, int max) {
+        if (p.removed || max <= 0) return new int[0];
+        BitSet missing = missingFor(p);
+        int[] picked = pick(missing, max, false);
+        if (picked.length == 0 && totalChunks - progress.getCompletedChunks() <= ENDGAME_CHUNKS) {
+            // mọi chunk còn thiếu nguồn này có đều đang bay ở nguồn khác
+            if (!endgame && !missing.isEmpty()) {
+                endgame = true;
+                System.out.println("[ChunkScheduler] Endgame: " + missing.cardinality() + " chunks left");
+            }
+            picked = pick(missing, Math.min(max, 1), true);
+        }
+        for (int i : picked) {
+            requests[i]++;
+            outstanding++;
+            p.requested.set(i);
+        }
+        return picked;
+    }
+
+    /** Đã xử lý xong response của chunk trên nguồn p (lưu được hoặc bản trùng trong endgame) */
+    synchronized void done(Peer p, int chunkIndex) {
+        finish(p, chunkIndex);
+    }
+
+    /** Nguồn p trả chunk lỗi: chunk trả lại cho nguồn khác, nguồn này không được xin lại */
+    synchronized void failed(Peer p, int chunkIndex) {
+        finish(p, chunkIndex);
+        p.failed.set(chunkIndex);
+    }
+
+    /** Request bị huỷ (mất kết nối): chunk trả lại, nguồn vẫn xin lại được sau khi nối lại */
+    synchronized void release(Peer p, int chunkIndex) {
+        finish(p, chunkIndex);
+    }
+
+    /** Số chunk đang bay trên mọi nguồn (tính cả bản trùng trong endgame) */
+    synchronized int outstanding() {
+        return outstanding;
+    }
+
+    /** Nguồn p có chunk này (theo GET_HAVE gần nhất) */
+    synchronized boolean has(Peer p, int chunkIndex) {
+        return p.have.get(chunkIndex);
+    }
+
+    /** Nguồn p chưa có đủ cả file */
+    synchronized boolean isPartial(Peer p) {
+        return p.have.cardinality() < totalChunks;
+    }
+
+    /** Còn chunk thiếu mà nguồn p chưa có (có thể có sau lần GET_HAVE tới) */
+    synchronized boolean lacksMissing(Peer p) {
+        BitSet missing = progress.getCompletedChunksBitSet();
+        missing.flip(0, totalChunks);
+        missing.andNot(p.have);
+        return !missing.isEmpty();
+    }
+
+    /** Chờ tối đa millis cho tới khi có request xong / nguồn bị bỏ */
+    synchronized void awaitChange(long millis) throws InterruptedException {
+        wait(millis);
+    }
+
+    private void finish(Peer p, int chunkIndex) {
+        if (!p.requested.get(chunkIndex)) return;
+        p.requested.clear(chunkIndex);
+        requests[chunkIndex]--;
+        outstanding--;
+        notifyAll();
+    }
+
+    // chunk còn thiếu mà nguồn p có, chưa xin ở p, chưa từng lỗi ở p
+    private BitSet missingFor(Peer p) {
+        BitSet candidates = (BitSet) p.have.clone();
+        candidates.andNot(progress.getCompletedChunksBitSet());
+        candidates.andNot(p.requested);
+        candidates.andNot(p.failed);
+        return candidates;
+    }
+
+    /**
+     * Chọn theo order trong candidates.
+     *
+     * @param duplicate false: chỉ chunk chưa ai xin;
+     *                  true (endgame): chunk đang có ít request nhất, dưới ENDGAME_MAX_REQUESTS
+     */
+    private int[] pick(BitSet candidates, int max, boolean duplicate) {
+        int n = 0;
+        long[] keys = new long[candidates.cardinality()];
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            int r = requests[i];
+            if (duplicate ? r >= ENDGAME_MAX_REQUESTS : r > 0) continue;
+            long rank;
+            if (order == Order.SEQUENTIAL) {
+                rank = i;
+            } else {
+                // độ hiếm ở 32 bit cao, vị trí tính từ origin ở 32 bit thấp
+                rank = ((long) availability[i] << 32) | ((i - origin + totalChunks) % totalChunks);
+            }
+            // endgame: chunk ít người xin trước
+            if (duplicate) rank |= (long) r << 56;
+            keys[n++] = rank;
+        }
+        if (n == 0) return new int[0];
+        Arrays.sort(keys, 0, n);
+        int[] picked = new int[Math.min(max, n)];
+        for (int k = 0; k < picked.length; k++) {
+            int pos = (int) keys[k];
+            picked[k] = order == Order.SEQUENTIAL ? pos : (pos + origin) % totalChunks;
+        }
+        if (order == Order.RAREST_FIRST) {
+            // gửi theo thứ tự index: server đọc đĩa tuần tự hơn, start|count gọn hơn
+            Arrays.sort(picked);
+        }
+        return picked;
+    }
+
+    private void addAvailability(BitSet have, int delta) {
+        for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) {
+            availability[i] += delta;
+        }
+    }
+
+    private BitSet clip(BitSet have) {
+        BitSet copy = (BitSet) have.clone();
+        if (copy.length() > totalChunks) copy.clear(totalChunks, copy.length());
+        return copy;
+    }
+}
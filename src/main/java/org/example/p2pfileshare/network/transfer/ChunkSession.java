@@ -0,0 +1,599 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.model.FileRange;
+import org.example.p2pfileshare.network.protocol.BinaryFrames;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+import org.example.p2pfileshare.util.MerkleTree;
+import org.example.p2pfileshare.util.PeerConnectionPool;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1 kết nối TCP giữ mở để gửi nhiều FILE_META_REQUEST / GET_CHUNK / GET_CHUNKS / GET_STREAM.
+ *
+ * Client có thể gửi nhiều GET_CHUNK liên tiếp (pipeline) rồi mới đọc response,
+ * server trả lời đúng thứ tự request. Peer cũ không hỗ trợ session thì
+ * {@link #open(String, int)} trả về null để caller quay về chế độ 1 request / 1 kết nối.
+ *
+ * Server v5+ đồng ý framing bin1 thì sau handshake request/response đi dạng nhị phân
+ * ({@link BinaryFrames}), chunk được gọi bằng file ID server cấp trong FILE_META_RESPONSE.
+ */
+public class ChunkSession implements Closeable, PeerConnectionPool.Connection {
+
+    private static final int SOCKET_TIMEOUT_MS = 8000;
+    static final int CONNECT_TIMEOUT_MS = 3000;
+    // kiểm tra session rảnh trong pool: đọc thử tối đa chừng này, hết giờ = server chưa đóng
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 1;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // server đồng ý nén chunk trên session này
+    private boolean compressed;
+    // version server trả trong SESSION_ACK
+    private int version;
+    // framing thống nhất lúc handshake, đọc response qua đây
+    private ResponseReader reader;
+    // bin1: "tên|chunkSize" -> file ID server đã cấp
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    // "tên|chunkSize" -> thuật toán băm đã thống nhất trên session này (không có = SHA-256, như phía server)
+    private final Map<String, HashAlgorithm> hashAlgorithms = new HashMap<>();
+    // "tên|chunkSize" -> metadata nhận lần cuối trên session này
+    private final Map<String, FileMetadata> metadata = new HashMap<>();
+    // proof Merkle của chunk vừa đọc xong (null nếu không kèm / chunk lỗi)
+    private List<String> lastProof;
+
+    private ChunkSession(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Mở session tới server.
+     *
+     * @return session đã handshake xong, hoặc null nếu server là peer cũ (không hiểu SESSION_OPEN)
+     * @throws PeerBusyException server quá tải, thử lại sau
+     */
+    public static ChunkSession open(String host, int port) throws IOException {
+        return open(host, port, true);
+    }
+
+    /**
+     * @param offerCompression đề nghị server nén chunk (deflate), server có thể từ chối
+     */
+    public static ChunkSession open(String host, int port, boolean offerCompression) throws IOException {
+        return open(host, port, offerCompression, true);
+    }
+
+    /**
+     * @param offerBinary đề nghị framing nhị phân bin1, server cũ bỏ qua và vẫn dùng text
+     */
+    public static ChunkSession open(String host, int port, boolean offerCompression,
+                                    boolean offerBinary) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+
+            ChunkSession session = new ChunkSession(socket);
+            String codec = offerCompression ? FileTransferProtocol.CODEC_DEFLATE : FileTransferProtocol.CODEC_NONE;
+            session.out.writeUTF(offerBinary
+                    ? FileTransferProtocol.buildSessionOpen(codec, BinaryFrames.FRAMING_BIN1)
+                    : offerCompression
+                    ? FileTransferProtocol.buildSessionOpen(codec)
+                    : FileTransferProtocol.buildSessionOpen());
+            session.out.flush();
+
+            String type = session.in.readUTF();
+            ChunkedFileClient.throwIfBusy(type, session.in);
+            if (!FileTransferProtocol.SESSION_ACK.equals(type)) {
+                // peer cũ trả ERROR "Unknown command" rồi đóng kết nối
+                socket.close();
+                return null;
+            }
+            int version = session.in.readInt();
+            session.version = version;
+            // server v1 không biết codec, không trả thêm gì
+            boolean codecOffered = offerCompression || offerBinary;
+            if (codecOffered && version >= 2) {
+                session.compressed = FileTransferProtocol.CODEC_DEFLATE.equals(session.in.readUTF());
+            }
+            // server v4 trở xuống bỏ qua framing, không trả thêm gì
+            boolean binary = false;
+            if (offerBinary && version >= 5) {
+                binary = BinaryFrames.FRAMING_BIN1.equals(session.in.readUTF());
+            }
+            session.reader = new ResponseReader(session.in, binary);
+            return session;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /** Server hiểu GET_CHUNKS (session v3+) */
+    public boolean supportsBatch() {
+        return version >= 3;
+    }
+
+    /** Server hiểu GET_STREAM (session v4+) */
+    public boolean supportsStream() {
+        return version >= 4;
+    }
+
+    /** Server hiểu FILE_META_REQUEST dạng Merkle (session v6+) */
+    public boolean supportsMerkle() {
+        return version >= 6;
+    }
+
+    /** Server thống nhất được thuật toán băm trong FILE_META_REQUEST (session v7+) */
+    public boolean supportsHashAlgorithms() {
+        return version >= 7;
+    }
+
+    /** Server trả lời được GET_HAVE (session v8+) */
+    public boolean supportsHave() {
+        return version >= 8;
+    }
+
+    /** Session đang dùng framing nhị phân bin1 */
+    public boolean isBinary() {
+        return reader.isBinary();
+    }
+
+    public FileMetadata requestMetadata(String fileName) throws IOException {
+        return requestMetadata(fileName, FileTransferProtocol.AUTO_CHUNK_SIZE);
+    }
+
+    /** @param preferredChunkSize chunk size mong muốn, 0 = để server chọn */
+    public FileMetadata requestMetadata(String fileName, int preferredChunkSize) throws IOException {
+        return requestMetadata(fileName, preferredChunkSize, false);
+    }
+
+    /**
+     * @param merkle xin metadata dạng Merkle (chỉ gốc, proof đi kèm từng chunk). Server chỉ trả dạng này
+     *               cho file nhiều chunk, còn lại (hoặc server cũ) vẫn trả đủ danh sách hash
+     */
+    public FileMetadata requestMetadata(String fileName, int preferredChunkSize, boolean merkle) throws IOException {
+        return requestMetadata(fileName, preferredChunkSize, merkle, List.of());
+    }
+
+    /**
+     * @param accepted thuật toán băm chấp nhận được, ưu tiên trước. Rỗng hoặc server cũ -> SHA-256.
+     *                 Hash của mọi chunk file này trên session sau đó theo thuật toán server chọn
+     */
+    public FileMetadata requestMetadata(String fileName, int preferredChunkSize, boolean merkle,
+                                        List<HashAlgorithm> accepted) throws IOException {
+        merkle = merkle && supportsMerkle();
+        String offered = null;
+        if (!accepted.isEmpty() && supportsHashAlgorithms()) {
+            StringBuilder ids = new StringBuilder();
+            for (HashAlgorithm a : accepted) {
+                if (ids.length() > 0) ids.append(',');
+                ids.append(a.getId());
+            }
+            offered = ids.toString();
+        }
+        if (reader.isBinary()) {
+            BinaryFrames.Payload payload = new BinaryFrames.Payload().varInt(preferredChunkSize).string(fileName);
+            int flags = (merkle ? BinaryFrames.META_FLAG_MERKLE : 0)
+                    | (offered != null ? BinaryFrames.META_FLAG_HASH_ALGS : 0);
+            if (flags != 0) payload.varInt(flags);
+            if (offered != null) payload.string(offered);
+            sendFrame(BinaryFrames.OP_META_REQUEST, payload);
+        } else if (offered != null) {
+            out.writeUTF(FileTransferProtocol.buildMetaRequest(fileName, preferredChunkSize, merkle, offered));
+        } else {
+            out.writeUTF(merkle
+                    ? FileTransferProtocol.buildMerkleMetaRequest(fileName, preferredChunkSize)
+                    : FileTransferProtocol.buildMetaRequest(fileName, preferredChunkSize));
+        }
+        out.flush();
+        FileMetadata meta = ChunkedFileClient.readMetadataResponse(reader, fileName, offered != null);
+        String key = fileKey(fileName, meta.getChunkSize());
+        if (reader.isBinary()) {
+            fileIds.put(key, reader.lastFileId());
+        }
+        hashAlgorithms.put(key, meta.getHashAlgorithm());
+        metadata.put(key, meta);
+        return meta;
+    }
+
+    /** Metadata đã xin trên session này (file ID, thuật toán băm, proof đều theo nó), null nếu chưa xin */
+    FileMetadata knownMetadata(String fileName, int chunkSize) {
+        return metadata.get(fileKey(fileName, chunkSize));
+    }
+
+    /** GET_RANGE trên session (gửi + chờ response ngay, không pipeline) */
+    public FileRange requestRange(String fileName, long offset, int length) throws IOException {
+        if (reader.isBinary()) {
+            sendFrame(BinaryFrames.OP_GET_RANGE,
+                    new BinaryFrames.Payload().zigZag(offset).varInt(length).string(fileName));
+        } else {
+            out.writeUTF(FileTransferProtocol.buildRangeRequest(fileName, offset, length));
+        }
+        out.flush();
+        return ChunkedFileClient.readRangeResponse(reader, fileName, length);
+    }
+
+    /**
+     * GET_HAVE trên session (gửi + chờ response ngay, không pipeline): các chunk của file peer đang có.
+     * Server cũ không hỏi được thì coi như có đủ cả file.
+     *
+     * @throws IOException nếu server báo lỗi hoặc số chunk không khớp metadata
+     */
+    public BitSet requestHave(FileMetadata meta) throws IOException {
+        int totalChunks = meta.getTotalChunks();
+        if (!supportsHave()) {
+            BitSet all = new BitSet(totalChunks);
+            all.set(0, totalChunks);
+            return all;
+        }
+        if (reader.isBinary()) {
+            sendFrame(BinaryFrames.OP_GET_HAVE,
+                    fileRef(new BinaryFrames.Payload(), meta.getFileName(), meta.getChunkSize()));
+        } else {
+            out.writeUTF(FileTransferProtocol.buildHaveRequest(meta.getFileName(), meta.getChunkSize()));
+        }
+        out.flush();
+
+        String type = reader.type();
+        if ("ERROR".equals(type)) {
+            throw new IOException("Server error: " + reader.text());
+        }
+        if (!FileTransferProtocol.CHUNK_MAP.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+        int chunks = reader.int32();
+        int haveCount = reader.int32();
+        int len = reader.int32();
+        if (chunks != totalChunks || haveCount < 0 || haveCount > chunks || len < 0 || len > (chunks + 7) / 8) {
+            throw new IOException("Invalid chunk map: chunks=" + chunks + " have=" + haveCount + " len=" + len);
+        }
+        byte[] bitmap = new byte[len];
+        reader.readFully(bitmap);
+        if (haveCount == chunks) {
+            BitSet all = new BitSet(chunks);
+            all.set(0, chunks);
+            return all;
+        }
+        BitSet have = BitSet.valueOf(bitmap);
+        // bit thừa sau chunk cuối không tính
+        if (have.length() > chunks) have.clear(chunks, have.length());
+        return have;
+    }
+
+    /** Gửi GET_CHUNK vào buffer, chưa flush (để gom nhiều request) */
+    public void sendChunkRequest(String fileName, int chunkIndex, int chunkSize) throws IOException {
+        if (reader.isBinary()) {
+            sendFrame(BinaryFrames.OP_GET_CHUNK,
+                    fileRef(new BinaryFrames.Payload(), fileName, chunkSize).varInt(chunkIndex));
+            return;
+        }
+        out.writeUTF(FileTransferProtocol.buildChunkRequest(fileName, chunkIndex, chunkSize));
+    }
+
+    /**
+     * Gửi GET_CHUNKS vào buffer, chưa flush. Các index liên tiếp thì gửi dạng start|count cho gọn.
+     * Response đọc bằng {@link #readBatchHeader()} rồi {@link #readChunk} cho từng index theo thứ tự.
+     */
+    public void sendBatchRequest(String fileName, int chunkSize, int[] chunkIndexes) throws IOException {
+        if (reader.isBinary()) {
+            BinaryFrames.Payload payload = fileRef(new BinaryFrames.Payload(), fileName, chunkSize)
+                    .varInt(chunkIndexes.length);
+            for (int index : chunkIndexes) payload.varInt(index);
+            sendFrame(BinaryFrames.OP_GET_CHUNKS, payload);
+            return;
+        }
+        int first = chunkIndexes[0];
+        boolean contiguous = chunkIndexes[chunkIndexes.length - 1] - first == chunkIndexes.length - 1;
+        for (int i = 1; contiguous && i < chunkIndexes.length; i++) {
+            contiguous = chunkIndexes[i] == first + i;
+        }
+        out.writeUTF(contiguous
+                ? FileTransferProtocol.buildBatchRequest(fileName, chunkSize, first, chunkIndexes.length)
+                : FileTransferProtocol.buildBatchRequest(fileName, chunkSize, chunkIndexes));
+    }
+
+    /**
+     * Đọc đầu response của GET_CHUNKS kế tiếp.
+     *
+     * @return số record theo sau, hoặc -1 nếu server báo lỗi cả request (không có record nào)
+     */
+    public int readBatchHeader() throws IOException {
+        String type = reader.type();
+        if ("ERROR".equals(type)) {
+            System.err.println("[ChunkSession] Batch error: " + reader.text());
+            return -1;
+        }
+        if (!FileTransferProtocol.CHUNK_BATCH.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+        int count = reader.int32();
+        if (count < 0 || count > FileTransferProtocol.MAX_BATCH_CHUNKS) {
+            throw new IOException("Invalid batch size " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Gửi GET_STREAM và đọc đầu stream, sau đó đọc lần lượt từng chunk bằng {@link #readStreamChunk}.
+     * Stream chỉ đọc được từ đầu tới cuối, dừng giữa chừng thì không dùng lại session được nữa.
+     *
+     * @throws IOException nếu server báo lỗi hoặc file không còn khớp metadata đã nhận
+     */
+    public void openStream(FileMetadata meta) throws IOException {
+        if (reader.isBinary()) {
+            sendFrame(BinaryFrames.OP_GET_STREAM,
+                    fileRef(new BinaryFrames.Payload(), meta.getFileName(), meta.getChunkSize()));
+        } else {
+            out.writeUTF(FileTransferProtocol.buildStreamRequest(meta.getFileName(), meta.getChunkSize()));
+        }
+        out.flush();
+
+        String type = reader.type();
+        if ("ERROR".equals(type)) {
+            throw new IOException("Server error: " + reader.text());
+        }
+        if (!FileTransferProtocol.STREAM_DATA.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+        long fileSize = reader.int64();
+        int chunkSize = reader.int32();
+        int totalChunks = reader.int32();
+        String fileSha256 = reader.hash(hashAlgorithm(meta));
+        if (fileSize != meta.getFileSize() || chunkSize != meta.getChunkSize()
+                || totalChunks != meta.getTotalChunks() || !fileSha256.equals(meta.getFileSha256())) {
+            throw new IOException("File changed since metadata was fetched");
+        }
+    }
+
+    /**
+     * Đọc chunk kế tiếp của stream (dataLen byte + hash theo sau). Chunk còn phải khớp manifest meta
+     * (hash chunk trong meta, hoặc meta dạng Merkle thì sau hash còn proof và chunk phải khớp gốc).
+     *
+     * @return dữ liệu đã verify, hoặc null nếu hash sai (stream vẫn đồng bộ, đọc tiếp được)
+     */
+    public byte[] readStreamChunk(FileMetadata meta, int chunkIndex, int dataLen) throws IOException {
+        lastProof = null;
+        HashAlgorithm algorithm = hashAlgorithm(meta);
+        byte[] chunkData = new byte[dataLen];
+        in.readFully(chunkData);
+        byte[] expectedHash = reader.digest(algorithm);
+        List<String> proof = meta.isMerkle() ? readProofHashes() : null;
+
+        byte[] actualHash = FileHashUtil.digest(algorithm, chunkData, 0, chunkData.length);
+        if (!Arrays.equals(actualHash, expectedHash)) {
+            System.err.println("[ChunkSession] Stream chunk " + chunkIndex + " hash mismatch");
+            return null;
+        }
+        if (!matchesManifest(meta, chunkIndex, chunkData, actualHash, algorithm, proof)) {
+            System.err.println("[ChunkSession] Stream chunk " + chunkIndex + " does not match manifest");
+            return null;
+        }
+        lastProof = proof;
+        return chunkData;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Đọc response của GET_CHUNK kế tiếp trong pipeline (hoặc 1 record trong CHUNK_BATCH).
+     * Chunk phải khớp hash server gửi kèm và manifest meta: hash chunk trong meta,
+     * meta dạng Merkle thì chunk phải kèm CHUNK_PROOF khớp gốc. Không khớp thì coi như hash sai (trả null).
+     *
+     * meta là manifest caller đã tin (của chính session này, hoặc đã kiểm khớp manifest của lần tải
+     * bằng {@link ChunkedFileClient#matchesManifest}); hash server gửi kèm chunk không đủ để tin chunk.
+     *
+     * @return dữ liệu chunk đã verify, hoặc null nếu server báo lỗi / hash sai
+     *         (stream vẫn đồng bộ, có thể đọc response tiếp theo)
+     * @throws IOException nếu stream lệch (sai index, sai độ dài) hoặc mất kết nối
+     */
+    public byte[] readChunk(FileMetadata meta, int chunkIndex) throws IOException {
+        return readChunk(chunkIndex, meta.getChunkSize(), hashAlgorithm(meta), meta);
+    }
+
+    private byte[] readChunk(int chunkIndex, int maxChunkSize, HashAlgorithm algorithm,
+                             FileMetadata meta) throws IOException {
+        lastProof = null;
+        String type = reader.type();
+
+        List<String> proof = null;
+        if (FileTransferProtocol.CHUNK_PROOF.equals(type)) {
+            int proofIndex = reader.int32();
+            if (proofIndex != chunkIndex) {
+                throw new IOException("Out of order proof: expected " + chunkIndex + " got " + proofIndex);
+            }
+            proof = readProofHashes();
+            type = reader.type();
+        }
+
+        if ("ERROR".equals(type)) {
+            String reason = reader.text();
+            System.err.println("[ChunkSession] Chunk " + chunkIndex + " error: " + reason);
+            return null;
+        }
+        if (FileTransferProtocol.CHUNK_ERROR.equals(type)) {
+            int receivedIndex = reader.int32();
+            String reason = reader.text();
+            if (receivedIndex != chunkIndex) {
+                throw new IOException("Out of order chunk: expected " + chunkIndex + " got " + receivedIndex);
+            }
+            System.err.println("[ChunkSession] Chunk " + chunkIndex + " error: " + reason);
+            return null;
+        }
+        boolean deflated = compressed && FileTransferProtocol.CHUNK_DATA_Z.equals(type);
+        if (!deflated && !FileTransferProtocol.CHUNK_DATA.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        int receivedIndex = reader.int32();
+        int dataLen = reader.int32();
+        byte[] expectedHash = reader.digest(algorithm);
+
+        if (receivedIndex != chunkIndex) {
+            throw new IOException("Out of order chunk: expected " + chunkIndex + " got " + receivedIndex);
+        }
+        if (dataLen < 0 || dataLen > maxChunkSize) {
+            throw new IOException("Invalid chunk length " + dataLen);
+        }
+
+        byte[] chunkData;
+        if (deflated) {
+            int compressedLen = reader.int32();
+            if (compressedLen < 0 || compressedLen > dataLen) {
+                throw new IOException("Invalid compressed length " + compressedLen);
+            }
+            byte[] payload = new byte[compressedLen];
+            in.readFully(payload);
+            try {
+                chunkData = ChunkCompressor.inflate(payload, dataLen);
+            } catch (IOException e) {
+                // stream vẫn đồng bộ (đã đọc đủ payload), chỉ chunk này hỏng
+                System.err.println("[ChunkSession] Chunk " + chunkIndex + " " + e.getMessage());
+                return null;
+            }
+        } else {
+            chunkData = new byte[dataLen];
+            in.readFully(chunkData);
+        }
+
+        // kiểm tra hash trên dữ liệu đã giải nén
+
+        byte[] actualHash = FileHashUtil.digest(algorithm, chunkData, 0, chunkData.length);
+        if (!Arrays.equals(actualHash, expectedHash)) {
+            System.err.println("[ChunkSession] Chunk " + chunkIndex + " hash mismatch");
+            return null;
+        }
+        if (!matchesManifest(meta, chunkIndex, chunkData, actualHash, algorithm, proof)) {
+            System.err.println("[ChunkSession] Chunk " + chunkIndex + " does not match manifest");
+            return null;
+        }
+        lastProof = proof;
+        return chunkData;
+    }
+
+    /**
+     * Proof Merkle đã kiểm của chunk vừa trả về từ {@link #readChunk(FileMetadata, int)} /
+     * {@link #readStreamChunk(FileMetadata, int, int)}, để phục vụ lại chunk đó cho peer khác khi đang tải dở.
+     *
+     * @return null nếu chunk không kèm proof
+     */
+    public List<String> lastProof() {
+        return lastProof;
+    }
+
+    // có hash chunk trong manifest thì so với hash đó (băm lại nếu session dùng thuật toán khác),
+    // manifest dạng Merkle thì proof phải dẫn tới gốc; meta null = chỉ kiểm hash gửi kèm (peer cũ)
+    private static boolean matchesManifest(FileMetadata meta, int chunkIndex, byte[] chunkData, byte[] actualHash,
+                                           HashAlgorithm algorithm, List<String> proof) {
+        if (meta == null) return true;
+        List<String> chunkHashes = meta.getChunkHashes();
+        if (!chunkHashes.isEmpty()) {
+            if (chunkIndex >= chunkHashes.size()) return false;
+            byte[] digest = algorithm == meta.getHashAlgorithm() ? actualHash
+                    : FileHashUtil.digest(meta.getHashAlgorithm(), chunkData, 0, chunkData.length);
+            return FileHashUtil.matches(digest, chunkHashes.get(chunkIndex));
+        }
+        if (meta.isMerkle()) {
+            return MerkleTree.verify(actualHash, chunkIndex, meta.getTotalChunks(), proof, meta.getMerkleRoot());
+        }
+        return true;
+    }
+
+    // proof: n rồi n hash, n không thể vượt độ cao cây (chunk index là int)
+    private List<String> readProofHashes() throws IOException {
+        int n = reader.int32();
+        if (n < 0 || n > Integer.SIZE) {
+            throw new IOException("Invalid proof length " + n);
+        }
+        List<String> proof = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) proof.add(reader.hash());
+        return proof;
+    }
+
+    // thuật toán server dùng cho chunk của file này trên session này: chưa FILE_META_REQUEST ở đây
+    // (vd session mở lại giữa chừng) thì server mặc định SHA-256, dù meta lần đầu thống nhất thuật toán khác
+    private HashAlgorithm hashAlgorithm(FileMetadata meta) {
+        if (meta == null) return HashAlgorithm.SHA_256;
+        return hashAlgorithms.getOrDefault(fileKey(meta.getFileName(), meta.getChunkSize()), HashAlgorithm.SHA_256);
+    }
+
+    private void sendFrame(int opcode, BinaryFrames.Payload payload) throws IOException {
+        BinaryFrames.writeFrame(out, opcode, payload.toByteArray());
+    }
+
+    // bin1: file ID nếu đã FILE_META_REQUEST cùng chunk size trên session này, chưa thì gửi kèm tên
+    private BinaryFrames.Payload fileRef(BinaryFrames.Payload payload, String fileName, int chunkSize) {
+        Integer id = fileIds.get(fileKey(fileName, chunkSize));
+        if (id != null) return payload.varInt(id);
+        return payload.varInt(BinaryFrames.INLINE_FILE_REF).string(fileName).varInt(chunkSize);
+    }
+
+    private static String fileKey(String fileName, int chunkSize) {
+        return fileName + "|" + chunkSize;
+    }
+
+    /**
+     * Session rảnh còn dùng lại được (pool): server chưa đóng kết nối (vd idle timeout) và không còn
+     * byte nào chưa đọc. Chỉ gọi khi không có request nào đang chờ response.
+     */
+    @Override
+    public boolean isHealthy() {
+        if (socket.isClosed()) return false;
+        try {
+            if (in.available() > 0) return false;
+            socket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MS);
+            try {
+                // -1: server đã đóng; có byte: stream lệch. Cả 2 đều bỏ session
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (!socket.isClosed()) {
+                if (reader != null && reader.isBinary()) {
+                    sendFrame(BinaryFrames.OP_SESSION_CLOSE, new BinaryFrames.Payload());
+                } else {
+                    out.writeUTF(FileTransferProtocol.SESSION_CLOSE);
+                }
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -2,10 +2,16 @@ package org.example.p2pfileshare.network.transfer;
 
 import org.example.p2pfileshare.model.DownloadProgress;
 import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.model.FileRange;
+import org.example.p2pfileshare.model.PeerInfo;
 import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
 import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+import org.example.p2pfileshare.util.MerkleTree;
+import org.example.p2pfileshare.util.PeerConnectionPool;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.file.*;
 import java.util.*;
@@ -15,6 +21,53 @@ public class ChunkedFileClient {
 
     private static final int SOCKET_TIMEOUT_MS = 8000;
     private static final int MAX_RETRIES = 3;
+    // số GET_CHUNK gửi trước khi chờ response trên 1 session
+    private static final int PIPELINE_DEPTH = 8;
+    // server báo BUSY liên tục quá lâu thì mới bỏ cuộc (chờ BUSY không tính vào MAX_RETRIES)
+    private static final long MAX_BUSY_WAIT_MS = 60_000;
+    // số GET_CHUNKS gửi trước khi chờ response (1 batch đang nhận, 1 batch server đã chuẩn bị sẵn)
+    private static final int BATCH_PIPELINE_DEPTH = 2;
+    // số kết nối (session) tải song song 1 file từ 1 peer, server giới hạn thêm theo peer (AdmissionControl)
+    private static final int DEFAULT_DOWNLOAD_CONNECTIONS = 4;
+    public static final int MAX_DOWNLOAD_CONNECTIONS = 16;
+    // mỗi kết nối thêm phải có ít nhất chừng này chunk, file nhỏ không đáng mở thêm kết nối
+    private static final int MIN_CHUNKS_PER_CONNECTION = 4;
+    // session giữ lại cho request ngắn (metadata, range, chunk lẻ) tới cùng 1 peer
+    private static final int POOL_SESSIONS_PER_PEER = 4;
+    // ngắn hơn idle timeout session của server (60 s)
+    private static final long POOL_IDLE_TIMEOUT_MS = 30_000;
+
+    private static final PeerConnectionPool<ChunkSession> sessionPool = new PeerConnectionPool<>(
+            "ChunkedFileClient", POOL_SESSIONS_PER_PEER, POOL_IDLE_TIMEOUT_MS, SOCKET_TIMEOUT_MS);
+
+    // thuật toán băm đề nghị server dùng cho file tải mới (server không hỗ trợ thì vẫn SHA-256)
+    private static volatile HashAlgorithm preferredHashAlgorithm = HashAlgorithm.DEFAULT;
+    private static volatile int downloadConnections = DEFAULT_DOWNLOAD_CONNECTIONS;
+
+    /**
+     * Đổi thuật toán băm ưu tiên cho các lần tải sau, vd {@link HashAlgorithm#MURMUR3_128} trên máy yếu
+     * (nhanh hơn nhiều nhưng chỉ phát hiện lỗi truyền / đĩa, không chống peer gửi dữ liệu giả).
+     * Lần tải dở vẫn resume theo thuật toán đã ghi trong .meta.properties.
+     */
+    public static void setPreferredHashAlgorithm(HashAlgorithm algorithm) {
+        preferredHashAlgorithm = algorithm != null ? algorithm : HashAlgorithm.DEFAULT;
+    }
+
+    public static HashAlgorithm getPreferredHashAlgorithm() {
+        return preferredHashAlgorithm;
+    }
+
+    /**
+     * Số kết nối tải song song cho mỗi file (1 = tải tuần tự trên 1 session như cũ),
+     * kẹp trong [1, MAX_DOWNLOAD_CONNECTIONS]. Áp dụng cho các lần tải bắt đầu sau đó.
+     */
+    public static void setDownloadConnections(int connections) {
+        downloadConnections = Math.max(1, Math.min(MAX_DOWNLOAD_CONNECTIONS, connections));
+    }
+
+    public static int getDownloadConnections() {
+        return downloadConnections;
+    }
 
     /**
      * Bước 1: Request metadata từ server (binary protocol)
@@ -33,49 +86,202 @@ public class ChunkedFileClient {
      *   - reason (UTF)
      */
     public static FileMetadata requestMetadata(String host, int port, String fileName) throws IOException {
-        try (Socket socket = new Socket(host, port)) {
-            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+        return requestMetadata(host, port, fileName, FileTransferProtocol.AUTO_CHUNK_SIZE);
+    }
+
+    /**
+     * Như {@link #requestMetadata(String, int, String)} kèm chunk size mong muốn
+     * (0 = server tự chọn theo size file). Server cũ bỏ qua và luôn trả chunk 1 MB.
+     * Peer hỗ trợ session thì gửi trên session mượn từ pool (dùng lại kết nối), peer cũ mỗi lần 1 kết nối.
+     */
+    public static FileMetadata requestMetadata(String host, int port, String fileName,
+                                               int preferredChunkSize) throws IOException {
+        ChunkSession session = sessionPool.acquire(host, port, ChunkSession::open);
+        if (session != null) {
+            boolean reusable = false;
+            try {
+                FileMetadata meta = session.requestMetadata(fileName, preferredChunkSize);
+                reusable = true;
+                return meta;
+            } finally {
+                sessionPool.release(session, reusable);
+            }
+        }
 
+        // peer cũ: 1 request / 1 kết nối
+        try (Socket socket = connect(host, port)) {
             try (DataInputStream in = new DataInputStream(socket.getInputStream());
                  DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
 
                 // Send request
-                String request = FileTransferProtocol.buildMetaRequest(fileName);
+                String request = FileTransferProtocol.buildMetaRequest(fileName, preferredChunkSize);
                 out.writeUTF(request);
                 // đảm bảo gửi ngay bầy giờ
                 out.flush();
 
-                // Read type
-                String type = in.readUTF();
-                if (type == null) throw new IOException("No response from server");
+                return readMetadataResponse(in);
+            }
+        }
+    }
 
-                if ("ERROR".equals(type)) {
-                    String reason = in.readUTF();
-                    throw new IOException("Server error: " + reason);
-                }
+    /** Đọc FILE_META_RESPONSE (dùng chung cho kết nối 1 lần và session) */
+    static FileMetadata readMetadataResponse(DataInputStream in) throws IOException {
+        return readMetadataResponse(new ResponseReader(in, false), null, false);
+    }
 
-                if (!FileTransferProtocol.FILE_META_RESPONSE.equals(type)) {
-                    throw new IOException("Unexpected response type: " + type);
-                }
+    /**
+     * @param requestedName    tên file đã xin, dùng khi response bin1 chỉ có file ID
+     * @param algorithmOffered request có kèm danh sách thuật toán băm -> server trả thuật toán đã chọn
+     */
+    static FileMetadata readMetadataResponse(ResponseReader in, String requestedName,
+                                             boolean algorithmOffered) throws IOException {
+        // Read type
+        String type = in.type();
+        if (type == null) throw new IOException("No response from server");
+        throwIfBusy(type, in.stream());
 
-                // Read fields
-                String name = in.readUTF();
-                long fileSize = in.readLong();
-                int chunkSize = in.readInt();
-                int totalChunks = in.readInt();
-                String fileSha256 = in.readUTF();
-
-                // Read chunk hashes
-                List<String> chunkHashes = new ArrayList<>(totalChunks);
-                for (int i = 0; i < totalChunks; i++) {
-                    chunkHashes.add(in.readUTF());
-                }
+        if ("ERROR".equals(type)) {
+            String reason = in.text();
+            throw new IOException("Server error: " + reason);
+        }
+
+        boolean merkle = FileTransferProtocol.FILE_META_ROOT.equals(type);
+        boolean partial = FileTransferProtocol.FILE_META_PARTIAL.equals(type);
+        if (!merkle && !partial && !FileTransferProtocol.FILE_META_RESPONSE.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        // Read fields
+        String name = in.fileRef(requestedName);
+        long fileSize = in.int64();
+        int chunkSize = in.int32();
+        int totalChunks = in.int32();
+        HashAlgorithm algorithm = HashAlgorithm.SHA_256;
+        if (algorithmOffered) {
+            String id = in.text();
+            algorithm = HashAlgorithm.fromId(id);
+            if (algorithm == null) throw new IOException("Unsupported hash algorithm: " + id);
+        }
+        String fileSha256 = in.hash(algorithm);
+
+        // chunk size do server chọn: chặn giá trị vô lý trước khi cấp buffer theo nó
+        if (chunkSize <= 0 || chunkSize > FileTransferProtocol.MAX_CHUNK_SIZE || fileSize < 0
+                || totalChunks != (int) ((fileSize + chunkSize - 1) / chunkSize)) {
+            throw new IOException("Invalid metadata: size=" + fileSize + " chunkSize=" + chunkSize
+                    + " chunks=" + totalChunks);
+        }
+
+        if (partial) {
+            // manifest của lần tải bên nguồn: gốc Merkle hoặc đủ hash chunk như 2 dạng dưới
+            String form = in.text();
+            merkle = FileTransferProtocol.META_MERKLE.equals(form);
+            if (!merkle && !FileTransferProtocol.META_FULL.equals(form)) {
+                throw new IOException("Unknown partial manifest: " + form);
+            }
+        }
+        if (merkle) {
+            if (algorithm != HashAlgorithm.SHA_256) throw new IOException("Merkle metadata requires sha-256");
+            String merkleRoot = in.hash();
+            if (partial) {
+                return FileMetadata.partial(name, fileSize, chunkSize, totalChunks, fileSha256, List.of(), algorithm,
+                        merkleRoot);
+            }
+            return FileMetadata.withMerkleRoot(name, fileSize, chunkSize, totalChunks, fileSha256, merkleRoot);
+        }
+
+        // Read chunk hashes
+        List<String> chunkHashes = new ArrayList<>(totalChunks);
+        for (int i = 0; i < totalChunks; i++) {
+            chunkHashes.add(in.hash(algorithm));
+        }
+
+        if (partial) {
+            return FileMetadata.partial(name, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes, algorithm,
+                    null);
+        }
+        return new FileMetadata(name, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes, algorithm);
+    }
+
+    /**
+     * Đọc 1 đoạn byte của file mà không tải cả chunk (xem trước, đọc xref cuối PDF, header video...).
+     *
+     * Expected server response:
+     *   - type = RANGE_DATA
+     *   - offset (long), dataLen (int), fileSize (long)
+     *   - bytes (byte[dataLen])
+     *
+     * @param offset vị trí bắt đầu, âm = lấy -offset byte cuối file
+     * @param length tối đa {@link FileTransferProtocol#MAX_RANGE_LENGTH}, bị cắt ngắn ở cuối file
+     */
+    public static FileRange readRange(String host, int port, String fileName, long offset, int length) throws IOException {
+        if (length < 0 || length > FileTransferProtocol.MAX_RANGE_LENGTH) {
+            throw new IllegalArgumentException("length must be in [0, " + FileTransferProtocol.MAX_RANGE_LENGTH + "]");
+        }
+        ChunkSession session = sessionPool.acquire(host, port, ChunkSession::open);
+        if (session != null) {
+            boolean reusable = false;
+            try {
+                FileRange range = session.requestRange(fileName, offset, length);
+                reusable = true;
+                return range;
+            } finally {
+                sessionPool.release(session, reusable);
+            }
+        }
 
-                return new FileMetadata(name, fileSize, chunkSize, totalChunks, fileSha256, chunkHashes);
+        try (Socket socket = connect(host, port)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+
+                out.writeUTF(FileTransferProtocol.buildRangeRequest(fileName, offset, length));
+                out.flush();
+
+                return readRangeResponse(in, fileName, length);
             }
         }
     }
 
+    /** length byte cuối file */
+    public static FileRange readTail(String host, int port, String fileName, int length) throws IOException {
+        return readRange(host, port, fileName, -(long) length, length);
+    }
+
+    /** Đọc RANGE_DATA (dùng chung cho kết nối 1 lần và session) */
+    static FileRange readRangeResponse(DataInputStream in, String fileName, int maxLength) throws IOException {
+        return readRangeResponse(new ResponseReader(in, false), fileName, maxLength);
+    }
+
+    static FileRange readRangeResponse(ResponseReader in, String fileName, int maxLength) throws IOException {
+        String type = in.type();
+        throwIfBusy(type, in.stream());
+        if ("ERROR".equals(type)) {
+            throw new IOException("Server error: " + in.text());
+        }
+        if (!FileTransferProtocol.RANGE_DATA.equals(type)) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+
+        long offset = in.int64();
+        int dataLen = in.int32();
+        long fileSize = in.int64();
+        if (dataLen < 0 || dataLen > maxLength || offset < 0 || offset + dataLen > fileSize) {
+            throw new IOException("Invalid range response: offset=" + offset + " len=" + dataLen + " size=" + fileSize);
+        }
+
+        byte[] data = new byte[dataLen];
+        in.readFully(data);
+        return new FileRange(fileName, offset, fileSize, data);
+    }
+
+    /** Server trả BUSY thay cho response (quá tải lúc nhận kết nối) -> PeerBusyException */
+    static void throwIfBusy(String type, DataInputStream in) throws IOException {
+        if (FileTransferProtocol.BUSY.equals(type)) {
+            int retryAfterMs = in.readInt();
+            String reason = in.readUTF();
+            throw new PeerBusyException(reason, retryAfterMs);
+        }
+    }
+
     /**
      * Download: Chunk + Resume + Integrity (resume thật sự)
      */
@@ -90,26 +296,74 @@ public class ChunkedFileClient {
         // địa chỉ lưu bitmap tiến độ, đánh dấu chunk đã tải xong
         Path bitmapFile = Path.of(saveTo.toString() + ".bitmap");
 
-        // 1) Request metadata
-        FileMetadata meta = requestMetadata(host, port, fileName);
-        System.out.println("[ChunkedFileClient] Metadata: chunks=" + meta.getTotalChunks()
-                + ", size=" + meta.getFileSize() + ", chunkSize=" + meta.getChunkSize());
+        // 0) Mở session (1 kết nối cho cả file), peer cũ -> null -> dùng kết nối 1 lần như trước
+        ChunkSession session;
+        try {
+            session = openSession(host, port, control);
+        } catch (InterruptedException e) {
+            cleanupOnCancel(partFile, bitmapFile, metaFile);
+            return false;
+        }
+        try {
+            return downloadFile(host, port, fileName, saveTo, partFile, metaFile, bitmapFile,
+                    session, progressCallback, control);
+        } finally {
+            if (session != null) session.close();
+        }
+    }
 
-        // 2) Nếu có meta cũ mà mismatch -> reset (tránh resume nhầm file)
-        if (Files.exists(metaFile)) {
-            if (!isSameMeta(metaFile, meta)) {
-                System.out.println("[ChunkedFileClient] Meta mismatch -> reset resume files");
-                safeDelete(partFile);
-                safeDelete(bitmapFile);
-                safeDelete(metaFile);
+    /**
+     * Download từ nhiều peer cùng share file này (swarm): các peer phải trả cùng manifest,
+     * chunk chia theo throughput từng peer, peer rớt thì peer khác tải tiếp.
+     * Chỉ 1 peer dùng được thì tải như {@link #downloadFile(String, int, String, Path, Consumer, DownloadControl)}.
+     * Chunk hiếm (ít peer có) được tải trước.
+     */
+    public static boolean downloadFile(List<PeerInfo> sources, String fileName, Path saveTo,
+                                       Consumer<Double> progressCallback, DownloadControl control) throws IOException {
+        return downloadFile(sources, fileName, saveTo, progressCallback, control, ChunkScheduler.Order.RAREST_FIRST);
+    }
+
+    /** Như trên, chọn thứ tự tải chunk (SEQUENTIAL: phần đầu file về trước, để xem trong lúc tải) */
+    public static boolean downloadFile(List<PeerInfo> sources, String fileName, Path saveTo,
+                                       Consumer<Double> progressCallback, DownloadControl control,
+                                       ChunkScheduler.Order order) throws IOException {
+        return new SwarmDownload(sources, fileName, saveTo, progressCallback, control, order).run();
+    }
+
+    private static boolean downloadFile(String host, int port, String fileName, Path saveTo,
+                                        Path partFile, Path metaFile, Path bitmapFile, ChunkSession session,
+                                        Consumer<Double> progressCallback, DownloadControl control) throws IOException {
+
+        // 1) Request metadata. Đang resume thì xin đúng chunk size cũ để .part/.bitmap còn khớp,
+        //    tải mới thì để server chọn theo size file
+        int preferredChunkSize = savedChunkSize(metaFile);
+        FileMetadata meta;
+        if (session != null) {
+            // file lớn: chỉ nhận gốc Merkle, hash từng chunk đi kèm chunk (server quyết định theo số chunk)
+            meta = session.requestMetadata(fileName, preferredChunkSize, true, acceptedHashAlgorithms(metaFile));
+        } else {
+            try {
+                meta = requestMetadataWhenFree(host, port, fileName, preferredChunkSize, control);
+            } catch (InterruptedException e) {
+                cleanupOnCancel(partFile, bitmapFile, metaFile);
+                return false;
             }
         }
+        System.out.println("[ChunkedFileClient] Metadata: chunks=" + meta.getTotalChunks()
+                + ", size=" + meta.getFileSize() + ", chunkSize=" + meta.getChunkSize()
+                + ", hash=" + meta.getHashAlgorithm().getId());
+        if (meta.isPartial()) {
+            // peer mới có 1 phần file (đang tải dở): vòng lặp chunk dưới đây sẽ gặp "Chunk not available".
+            // Để SwarmDownload tải: hỏi lại GET_HAVE, chờ peer tải thêm chunk
+            if (session == null) throw new IOException("Peer has only part of " + fileName);
+            session.close();
+            System.out.println("[ChunkedFileClient] " + host + ":" + port + " has only part of " + fileName
+                    + ", downloading as swarm");
+            return new SwarmDownload(host, port, fileName, saveTo, progressCallback, control).run();
+        }
 
-        // 3) Lưu meta (để lần sau resume)
-        saveMeta(metaFile, meta);
-
-        // 4) Tạo .part đúng size (pre-allocate) hoặc fix size nếu lệch
-        ensurePartFileSized(partFile, meta.getFileSize());
+        // 2-4) Reset file tạm nếu meta cũ không khớp, lưu meta, tạo .part đúng size
+        boolean proofVerified = prepareResume(meta, partFile, metaFile, bitmapFile);
 
         // 5) Load bitmap (resume)
         DownloadProgress progress = new DownloadProgress(
@@ -117,36 +371,139 @@ public class ChunkedFileClient {
         );
         progress.loadBitmap(bitmapFile);
 
-        // Update initial progress
-        if (progressCallback != null) {
-            progressCallback.accept(progress.getProgressPercent() / 100.0);
-        }
+        // peer khác tải file này từ mình được ngay những chunk đã có
+        PartialDownloads.Entry seeding = PartialDownloads.register(fileName, meta, partFile, progress);
+        try {
+            // Update initial progress
+            if (progressCallback != null) {
+                progressCallback.accept(progress.getProgressPercent() / 100.0);
+            }
+
+            // 6a) Tải mới hoàn toàn: server đẩy cả file 1 lượt (GET_STREAM), không request từng chunk.
+            //     Tải song song nhiều kết nối thì bỏ qua stream (stream chỉ chạy trên 1 kết nối)
+            int connections = connectionsFor(session, progress);
+            ChunkSession chunkSession = session;
+            if (session != null && session.supportsStream() && meta.getTotalChunks() > 0
+                    && progress.getCompletedChunks() == 0 && connections == 1) {
+                try {
+                    streamWholeFile(session, meta, partFile, bitmapFile, progress, seeding, progressCallback, control);
+                } catch (InterruptedException e) {
+                    cleanupOnCancel(partFile, bitmapFile, metaFile);
+                    return false;
+                } catch (IOException e) {
+                    System.err.println("[ChunkedFileClient] Stream broken after " + progress.getCompletedChunks()
+                            + " chunks, resuming by chunk: " + e.getMessage());
+                    // stream dừng giữa chừng -> kết nối lệch, phần còn lại tải theo chunk trên session mới
+                    session.close();
+                    try {
+                        chunkSession = openSession(host, port, control);
+                    } catch (InterruptedException ie) {
+                        cleanupOnCancel(partFile, bitmapFile, metaFile);
+                        return false;
+                    }
+                }
+            }
 
-        // 6) Download missing chunks
-        for (int i = 0; i < meta.getTotalChunks(); i++) {
             try {
-                if (control != null) control.checkpoint();
-            } catch (InterruptedException e) {
-                //  CANCEL: dọn file tạm
-                cleanupOnCancel(partFile, bitmapFile, metaFile);
-                return false;
+                // 6b) Tải pipeline qua session (song song trên nhiều session nếu được),
+                //     chunk nào lỗi sẽ được vòng lặp 1 lần bên dưới tải lại
+                if (chunkSession != null && !progress.isComplete()) {
+                    try {
+                        if (connections > 1) {
+                            downloadChunksParallel(host, port, chunkSession, fileName, meta, partFile, bitmapFile,
+                                    progress, seeding, progressCallback, control, connections);
+                        } else {
+                            downloadChunksPipelined(chunkSession, fileName, meta, partFile, bitmapFile, progress,
+                                    seeding, progressCallback, control,
+                                    FileTransferProtocol.maxBatchChunks(meta.getChunkSize()));
+                        }
+                    } catch (InterruptedException e) {
+                        cleanupOnCancel(partFile, bitmapFile, metaFile);
+                        return false;
+                    } catch (IOException e) {
+                        System.err.println("[ChunkedFileClient] Session broken, fallback to single requests: " + e.getMessage());
+                    } finally {
+                        // chunk lỗi vẫn đang "được nhận" -> trả lại cho vòng lặp 1 lần
+                        progress.releaseAllClaims();
+                    }
+                }
+            } finally {
+                if (chunkSession != session && chunkSession != null) chunkSession.close();
             }
-            if (progress.isChunkComplete(i)) continue;
 
-            boolean ok = downloadChunk(host, port, fileName, i, meta, partFile, control);
-            if (!ok) {
-                System.err.println("[ChunkedFileClient] Failed to download chunk " + i);
-                return false;
+            // 6c) Download missing chunks
+            for (int i = 0; i < meta.getTotalChunks(); i++) {
+                try {
+                    if (control != null) control.checkpoint();
+                } catch (InterruptedException e) {
+                    //  CANCEL: dọn file tạm
+                    cleanupOnCancel(partFile, bitmapFile, metaFile);
+                    return false;
+                }
+                if (progress.isChunkComplete(i)) continue;
+
+                ChunkFetch fetched = downloadChunk(host, port, fileName, i, meta, partFile, seeding, control);
+                if (fetched == ChunkFetch.FAILED) {
+                    System.err.println("[ChunkedFileClient] Failed to download chunk " + i);
+                    return false;
+                }
+                if (proofVerified && fetched == ChunkFetch.HASH_ONLY) {
+                    // chunk này chỉ được kiểm tra bằng hash server gửi kèm
+                    proofVerified = false;
+                    saveMeta(metaFile, meta, false);
+                }
+
+                progress.markChunkComplete(i);
+                progress.saveBitmap(bitmapFile);
+
+                if (progressCallback != null) {
+                    progressCallback.accept(progress.getProgressPercent() / 100.0);
+                }
             }
 
-            progress.markChunkComplete(i);
-            progress.saveBitmap(bitmapFile);
+            // 7-8) Verify cả file, đổi tên .part
+            return finishDownload(meta, saveTo, partFile, metaFile, bitmapFile, progress, proofVerified, control);
+        } finally {
+            PartialDownloads.unregister(seeding);
+        }
+    }
 
-            if (progressCallback != null) {
-                progressCallback.accept(progress.getProgressPercent() / 100.0);
+    /**
+     * Bước 2-4, dùng chung cho tải từ 1 peer và từ nhiều peer.
+     *
+     * @return true nếu mọi chunk đã có đều đã khớp gốc Merkle (cuối khỏi băm lại cả file)
+     */
+    static boolean prepareResume(FileMetadata meta, Path partFile, Path metaFile, Path bitmapFile) throws IOException {
+        // 2) Nếu có meta cũ mà mismatch -> reset (tránh resume nhầm file)
+        if (Files.exists(metaFile)) {
+            if (!isSameMeta(metaFile, meta)) {
+                System.out.println("[ChunkedFileClient] Meta mismatch -> reset resume files");
+                safeDelete(partFile);
+                safeDelete(bitmapFile);
+                safeDelete(metaFile);
             }
         }
 
+        // 3) Lưu meta (để lần sau resume).
+        //    Merkle: chunk nào cũng đã khớp gốc lúc nhận -> cuối khỏi băm lại cả .part,
+        //    trừ khi có chunk tải qua kết nối 1 lần (không có proof), kể cả ở lần tải trước
+        boolean proofVerified = meta.isMerkle() && savedProofVerified(metaFile);
+        saveMeta(metaFile, meta, proofVerified);
+
+        // 4) Tạo .part đúng size (pre-allocate) hoặc fix size nếu lệch
+        ensurePartFileSized(partFile, meta.getFileSize());
+        return proofVerified;
+    }
+
+    /**
+     * Bước 7-8: kiểm tra hash cả file (bỏ qua nếu mọi chunk đã khớp gốc Merkle), đổi .part thành file thật.
+     * Hash cả file sai thì bỏ các chunk hỏng khỏi bitmap ({@link #dropBadChunks}) để lần tải sau tải lại.
+     *
+     * @return false nếu cancel (đã dọn file tạm) hoặc hash cả file sai
+     */
+    static boolean finishDownload(FileMetadata meta, Path saveTo, Path partFile, Path metaFile, Path bitmapFile,
+                                  DownloadProgress progress, boolean proofVerified,
+                                  DownloadControl control) throws IOException {
         // 7) Verify whole file hash (final integrity)
         try {
             if (control != null) control.checkpoint(); //  trước khi verify
@@ -154,11 +511,16 @@ public class ChunkedFileClient {
             cleanupOnCancel(partFile, bitmapFile, metaFile);
             return false;
         }
-        String actualHash = FileHashUtil.sha256(partFile);
-        if (!actualHash.equals(meta.getFileSha256())) {
-            System.err.println("[ChunkedFileClient] File hash mismatch! expected=" + meta.getFileSha256()
-                    + " actual=" + actualHash);
-            return false;
+        if (proofVerified) {
+            System.out.println("[ChunkedFileClient] All chunks verified against Merkle root, skip full-file hash");
+        } else {
+            byte[] actualHash = FileHashUtil.digest(meta.getHashAlgorithm(), partFile);
+            if (!FileHashUtil.matches(actualHash, meta.getFileSha256())) {
+                System.err.println("[ChunkedFileClient] File hash mismatch! expected=" + meta.getFileSha256()
+                        + " actual=" + FileHashUtil.toHex(actualHash));
+                dropBadChunks(meta, partFile, metaFile, bitmapFile, progress);
+                return false;
+            }
         }
 
         // 8) Rename & cleanup
@@ -170,6 +532,387 @@ public class ChunkedFileClient {
         return true;
     }
 
+    /**
+     * Hash cả file sai: bỏ khỏi bitmap các chunk không khớp hash chunk trong manifest. Manifest chỉ có gốc Merkle
+     * (không biết chunk nào hỏng) hoặc mọi chunk đều khớp mà cả file vẫn sai thì bỏ hết.
+     * Không thì lần tải sau thấy bitmap đủ, băm lại đúng .part đó và sai y như cũ.
+     */
+    private static void dropBadChunks(FileMetadata meta, Path partFile, Path metaFile, Path bitmapFile,
+                                      DownloadProgress progress) throws IOException {
+        List<String> chunkHashes = meta.getChunkHashes();
+        int dropped = 0;
+        if (!chunkHashes.isEmpty()) {
+            byte[] buf = new byte[meta.getChunkSize()];
+            try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "r")) {
+                for (int i = 0; i < meta.getTotalChunks(); i++) {
+                    if (!progress.isChunkComplete(i)) continue;
+                    long offset = (long) i * meta.getChunkSize();
+                    int len = (int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset);
+                    raf.seek(offset);
+                    raf.readFully(buf, 0, len);
+                    if (!FileHashUtil.matches(FileHashUtil.digest(meta.getHashAlgorithm(), buf, 0, len),
+                            chunkHashes.get(i))) {
+                        progress.markChunkMissing(i);
+                        dropped++;
+                    }
+                }
+            }
+        }
+        if (dropped == 0) {
+            dropped = progress.getCompletedChunks();
+            progress.clearAll();
+            // không còn chunk nào: chunk tải lại đều kèm proof thì cuối lại khỏi băm cả file
+            saveMeta(metaFile, meta, meta.isMerkle());
+        }
+        progress.saveBitmap(bitmapFile);
+        System.err.println("[ChunkedFileClient] Dropped " + dropped + " bad chunks, they will be downloaded again");
+    }
+
+    /**
+     * Nhận cả file qua GET_STREAM: ghi từng chunk vào .part và bitmap ngay khi verify xong,
+     * nên nếu stream đứt thì phần đã nhận vẫn được giữ cho resume theo chunk.
+     * Chunk sai hash thì bỏ qua (stream vẫn đọc tiếp), để bước sau tải lại.
+     */
+    private static void streamWholeFile(ChunkSession session, FileMetadata meta, Path partFile, Path bitmapFile,
+                                        DownloadProgress progress, PartialDownloads.Entry seeding,
+                                        Consumer<Double> progressCallback, DownloadControl control) throws IOException, InterruptedException {
+        session.openStream(meta);
+
+        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+            for (int i = 0; i < meta.getTotalChunks(); i++) {
+                if (control != null) control.checkpoint();
+
+                long offset = (long) i * meta.getChunkSize();
+                int dataLen = (int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset);
+                byte[] chunkData = session.readStreamChunk(meta, i, dataLen);
+                if (chunkData == null) continue;
+
+                storeChunk(raf, i, chunkData, session.lastProof(), meta, bitmapFile, progress, seeding, progressCallback);
+            }
+        }
+    }
+
+    /**
+     * Mở thêm (connections - 1) session tới cùng peer, mỗi session 1 thread chạy
+     * {@link #downloadChunksPipelined} trên cùng DownloadProgress: chunk được nhận qua
+     * {@link DownloadProgress#claimMissingChunks} nên không kết nối nào tải trùng chunk.
+     *
+     * Session thêm không mở được (BUSY, lỗi) hoặc đứt giữa chừng thì các session còn lại nhận phần của nó.
+     * Pause / cancel: mọi worker dừng ở checkpoint của DownloadControl như khi tải 1 kết nối.
+     *
+     * @param first session đã FILE_META_REQUEST, chạy luôn trên thread gọi
+     */
+    private static void downloadChunksParallel(String host, int port, ChunkSession first, String fileName,
+                                               FileMetadata meta, Path partFile, Path bitmapFile,
+                                               DownloadProgress progress, PartialDownloads.Entry seeding,
+                                               Consumer<Double> progressCallback, DownloadControl control,
+                                               int connections)
+            throws IOException, InterruptedException {
+        // chia nhỏ batch để mọi kết nối đều có việc tới gần cuối file
+        int missing = meta.getTotalChunks() - progress.getCompletedChunks();
+        int batchChunks = Math.max(1, Math.min(FileTransferProtocol.maxBatchChunks(meta.getChunkSize()),
+                missing / (connections * BATCH_PIPELINE_DEPTH)));
+
+        List<Thread> workers = new ArrayList<>(connections - 1);
+        for (int w = 1; w < connections; w++) {
+            int id = w;
+            Thread t = new Thread(() -> {
+                ChunkSession session = openWorkerSession(host, port, meta);
+                if (session == null) return;
+                try {
+                    downloadChunksPipelined(session, fileName, meta, partFile, bitmapFile, progress, seeding,
+                            progressCallback, control, batchChunks);
+                } catch (InterruptedException e) {
+                    // cancel: thread chính cũng dừng ở checkpoint của nó
+                } catch (IOException e) {
+                    System.err.println("[ChunkedFileClient] Worker " + id + " session broken: " + e.getMessage());
+                } finally {
+                    session.close();
+                }
+            }, "chunk-worker-" + id + "-" + fileName);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+
+        try {
+            downloadChunksPipelined(first, fileName, meta, partFile, bitmapFile, progress, seeding,
+                    progressCallback, control, batchChunks);
+        } catch (IOException e) {
+            // các session khác vẫn chạy tiếp và nhận lại chunk của session này
+            System.err.println("[ChunkedFileClient] Worker 0 session broken: " + e.getMessage());
+        } finally {
+            for (Thread t : workers) t.join();
+        }
+        if (control != null) control.checkpoint();
+    }
+
+    /**
+     * Session cho 1 worker tải song song: xin lại metadata trên session này (file ID bin1, thuật toán băm,
+     * proof Merkle đều theo session) và kiểm tra vẫn là đúng file đó.
+     *
+     * @return null nếu không mở được / server bận / file đã đổi (worker này bỏ, các worker khác làm tiếp)
+     */
+    private static ChunkSession openWorkerSession(String host, int port, FileMetadata meta) {
+        ChunkSession session = null;
+        try {
+            // không chờ BUSY: server đã đủ kết nối từ mình thì tải bằng số kết nối hiện có
+            session = ChunkSession.open(host, port);
+            if (session == null) return null;
+            FileMetadata again = session.requestMetadata(meta.getFileName(), meta.getChunkSize(), meta.isMerkle(),
+                    List.of(meta.getHashAlgorithm()));
+            if (!isSameFile(meta, again)) {
+                System.err.println("[ChunkedFileClient] File changed on server, worker session dropped");
+                session.close();
+                return null;
+            }
+            return session;
+        } catch (IOException e) {
+            System.err.println("[ChunkedFileClient] Cannot open worker session: " + e.getMessage());
+            if (session != null) session.close();
+            return null;
+        }
+    }
+
+    /**
+     * Cùng nội dung file dù 2 bên gửi metadata khác dạng (Merkle / đủ hash chunk / đang tải dở),
+     * gốc Merkle chỉ so khi cả 2 đều có.
+     */
+    static boolean isSameContent(FileMetadata a, FileMetadata b) {
+        return a.getFileSize() == b.getFileSize()
+                && a.getChunkSize() == b.getChunkSize()
+                && a.getTotalChunks() == b.getTotalChunks()
+                && a.getHashAlgorithm() == b.getHashAlgorithm()
+                && Objects.equals(a.getFileSha256(), b.getFileSha256())
+                && (!a.isMerkle() || !b.isMerkle() || Objects.equals(a.getMerkleRoot(), b.getMerkleRoot()));
+    }
+
+    /**
+     * Manifest other (của 1 nguồn / 1 session) có cùng nội dung với manifest agreed của lần tải không,
+     * tới từng chunk: danh sách hash chunk phải trùng, hoặc dựng ra đúng gốc Merkle của bên kia.
+     * Khớp thì chunk kiểm theo other ({@link ChunkSession#readChunk(FileMetadata, int)}) cũng là kiểm theo agreed.
+     *
+     * other không có gì để kiểm từng chunk (không hash chunk, không gốc Merkle) thì không khớp.
+     */
+    static boolean matchesManifest(FileMetadata agreed, FileMetadata other) {
+        if (!isSameContent(agreed, other)) return false;
+        List<String> agreedHashes = agreed.getChunkHashes();
+        List<String> otherHashes = other.getChunkHashes();
+        if (!otherHashes.isEmpty()) {
+            if (!agreedHashes.isEmpty()) return agreedHashes.equals(otherHashes);
+            return agreed.isMerkle() && merkleRootOf(otherHashes).equals(agreed.getMerkleRoot());
+        }
+        if (!other.isMerkle()) return false;
+        // cả 2 Merkle: isSameContent đã so gốc
+        return agreed.isMerkle() || merkleRootOf(agreedHashes).equals(other.getMerkleRoot());
+    }
+
+    // gốc Merkle của danh sách hash chunk (chỉ có nghĩa với SHA-256, isSameContent đã bắt cùng thuật toán)
+    private static String merkleRootOf(List<String> chunkHashes) {
+        try {
+            return MerkleTree.build(chunkHashes).getRoot();
+        } catch (IllegalArgumentException e) {
+            // hash không phải hex
+            return "";
+        }
+    }
+
+    static boolean isSameFile(FileMetadata a, FileMetadata b) {
+        return a.getFileSize() == b.getFileSize()
+                && a.getChunkSize() == b.getChunkSize()
+                && a.getTotalChunks() == b.getTotalChunks()
+                && a.getHashAlgorithm() == b.getHashAlgorithm()
+                && a.isMerkle() == b.isMerkle()
+                && Objects.equals(a.getFileSha256(), b.getFileSha256())
+                && Objects.equals(a.getMerkleRoot(), b.getMerkleRoot());
+    }
+
+    // số kết nối cho lần tải này: peer cũ (không session) chỉ tải từng chunk 1 kết nối
+    private static int connectionsFor(ChunkSession session, DownloadProgress progress) {
+        if (session == null) return 1;
+        int missing = progress.getTotalChunks() - progress.getCompletedChunks();
+        return Math.max(1, Math.min(downloadConnections, missing / MIN_CHUNKS_PER_CONNECTION));
+    }
+
+    /**
+     * Giữ tối đa PIPELINE_DEPTH request GET_CHUNK "đang bay" trên cùng 1 kết nối,
+     * đọc response theo đúng thứ tự đã gửi. Chunk lấy bằng claim trên bitmap nên chạy được
+     * song song trên nhiều session; chunk lỗi giữ claim (để vòng lặp 1 lần tải lại),
+     * mất kết nối thì trả claim các chunk đang bay cho session khác.
+     *
+     * @param batchChunks số chunk tối đa mỗi GET_CHUNKS (server v3+)
+     */
+    private static void downloadChunksPipelined(ChunkSession session, String fileName, FileMetadata meta,
+                                                Path partFile, Path bitmapFile, DownloadProgress progress,
+                                                PartialDownloads.Entry seeding, Consumer<Double> progressCallback,
+                                                DownloadControl control, int batchChunks) throws IOException, InterruptedException {
+        if (session.supportsBatch()) {
+            downloadChunksBatched(session, fileName, meta, partFile, bitmapFile, progress, seeding,
+                    progressCallback, control, batchChunks);
+            return;
+        }
+
+        Deque<Integer> inFlight = new ArrayDeque<>(PIPELINE_DEPTH);
+
+        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+            while (true) {
+                while (inFlight.size() < PIPELINE_DEPTH) {
+                    if (control != null) control.checkpoint();
+                    int[] claimed = progress.claimMissingChunks(1);
+                    if (claimed.length == 0) break;
+                    session.sendChunkRequest(fileName, claimed[0], meta.getChunkSize());
+                    inFlight.add(claimed[0]);
+                }
+                if (inFlight.isEmpty()) break;
+                session.flush();
+
+                int chunkIndex = inFlight.peek();
+                byte[] chunkData = session.readChunk(meta, chunkIndex);
+                inFlight.poll();
+                if (chunkData == null) continue; // để vòng lặp 1 lần retry
+
+                if (control != null) control.checkpoint();
+
+                storeChunk(raf, chunkIndex, chunkData, session.lastProof(), meta, bitmapFile, progress, seeding,
+                        progressCallback);
+            }
+        } catch (IOException e) {
+            for (int chunkIndex : inFlight) progress.releaseChunk(chunkIndex);
+            throw e;
+        }
+    }
+
+    /**
+     * Điền các chunk còn thiếu trong bitmap bằng GET_CHUNKS: mỗi request xin 1 loạt chunk thiếu
+     * (đoạn liên tiếp, hoặc danh sách nếu bitmap lỗ chỗ sau resume), 1 round trip cho cả loạt.
+     * Chunk nào lỗi để vòng lặp 1 lần tải lại như bản pipeline.
+     */
+    private static void downloadChunksBatched(ChunkSession session, String fileName, FileMetadata meta,
+                                              Path partFile, Path bitmapFile, DownloadProgress progress,
+                                              PartialDownloads.Entry seeding, Consumer<Double> progressCallback,
+                                              DownloadControl control, int batchChunks) throws IOException, InterruptedException {
+        Deque<int[]> inFlight = new ArrayDeque<>(BATCH_PIPELINE_DEPTH);
+
+        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+            while (true) {
+                while (inFlight.size() < BATCH_PIPELINE_DEPTH) {
+                    if (control != null) control.checkpoint();
+                    int[] batch = progress.claimMissingChunks(batchChunks);
+                    if (batch.length == 0) break;
+                    session.sendBatchRequest(fileName, meta.getChunkSize(), batch);
+                    inFlight.add(batch);
+                }
+                if (inFlight.isEmpty()) break;
+                session.flush();
+
+                int[] batch = inFlight.peek();
+                int count = session.readBatchHeader();
+                if (count < 0) {
+                    inFlight.poll();
+                    continue; // server từ chối cả batch -> để vòng lặp 1 lần retry
+                }
+                if (count != batch.length) {
+                    throw new IOException("Batch size mismatch: asked " + batch.length + " got " + count);
+                }
+
+                for (int chunkIndex : batch) {
+                    byte[] chunkData = session.readChunk(meta, chunkIndex);
+                    if (chunkData == null) continue;
+
+                    if (control != null) control.checkpoint();
+
+                    storeChunk(raf, chunkIndex, chunkData, session.lastProof(), meta, bitmapFile, progress,
+                            seeding, progressCallback);
+                }
+                inFlight.poll();
+            }
+        } catch (IOException e) {
+            // chunk đã lưu thì release không ảnh hưởng (đã complete)
+            for (int[] batch : inFlight) {
+                for (int chunkIndex : batch) progress.releaseChunk(chunkIndex);
+            }
+            throw e;
+        }
+    }
+
+    // ghi chunk đã verify vào .part rồi đánh dấu bitmap; proof giữ lại để phục vụ chunk cho peer khác (seeding)
+    static void storeChunk(RandomAccessFile raf, int chunkIndex, byte[] chunkData, List<String> proof,
+                           FileMetadata meta, Path bitmapFile, DownloadProgress progress,
+                           PartialDownloads.Entry seeding, Consumer<Double> progressCallback) throws IOException {
+        raf.seek((long) chunkIndex * meta.getChunkSize());
+        raf.write(chunkData);
+
+        if (seeding != null) seeding.addProof(chunkIndex, proof);
+        progress.markChunkComplete(chunkIndex);
+        progress.saveBitmap(bitmapFile);
+
+        if (progressCallback != null) {
+            progressCallback.accept(progress.getProgressPercent() / 100.0);
+        }
+    }
+
+    /**
+     * Mở session, server báo BUSY thì chờ theo gợi ý rồi thử lại (tối đa MAX_BUSY_WAIT_MS).
+     *
+     * @return null nếu peer cũ hoặc không mở được (caller dùng kết nối 1 lần)
+     */
+    private static ChunkSession openSession(String host, int port, DownloadControl control)
+            throws InterruptedException {
+        long busyDeadline = System.currentTimeMillis() + MAX_BUSY_WAIT_MS;
+        while (true) {
+            try {
+                return ChunkSession.open(host, port);
+            } catch (PeerBusyException busy) {
+                if (!waitWhileBusy(busy, busyDeadline, control)) return null;
+            } catch (IOException e) {
+                System.err.println("[ChunkedFileClient] Cannot open session: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    private static FileMetadata requestMetadataWhenFree(String host, int port, String fileName, int preferredChunkSize,
+                                                        DownloadControl control) throws IOException, InterruptedException {
+        long busyDeadline = System.currentTimeMillis() + MAX_BUSY_WAIT_MS;
+        while (true) {
+            try {
+                return requestMetadata(host, port, fileName, preferredChunkSize);
+            } catch (PeerBusyException busy) {
+                if (!waitWhileBusy(busy, busyDeadline, control)) throw busy;
+            }
+        }
+    }
+
+    /**
+     * Chờ theo retry-after của BUSY.
+     *
+     * @return false nếu đã chờ BUSY quá lâu (tới busyDeadline), nên bỏ cuộc
+     */
+    private static boolean waitWhileBusy(PeerBusyException busy, long busyDeadline,
+                                         DownloadControl control) throws InterruptedException {
+        long wait = Math.max(1, busy.getRetryAfterMs());
+        if (System.currentTimeMillis() + wait > busyDeadline) {
+            System.err.println("[ChunkedFileClient] Server still busy, giving up: " + busy.getMessage());
+            return false;
+        }
+        System.out.println("[ChunkedFileClient] Server busy, retrying in " + wait + " ms");
+        if (control != null) {
+            control.sleep(wait);
+        } else {
+            Thread.sleep(wait);
+        }
+        return true;
+    }
+
+    /** Kết quả {@link #downloadChunk} */
+    enum ChunkFetch {
+        FAILED,
+        // chunk đã ghi, đã khớp manifest (hash chunk trong manifest / proof Merkle)
+        VERIFIED,
+        // chunk đã ghi nhưng chỉ khớp hash server gửi kèm (kết nối 1 lần, manifest chỉ có gốc Merkle)
+        HASH_ONLY
+    }
+
     /**
      * Download 1 chunk (binary protocol) + verify hash (integrity)
      *
@@ -183,82 +926,168 @@ public class ChunkedFileClient {
      * Or:
      *   - type = ERROR
      *   - reason (UTF)
+     *
+     * Peer hỗ trợ session thì gửi trên session mượn từ pool: tải lần lượt nhiều chunk lẻ từ cùng 1 peer
+     * không phải mở kết nối + handshake cho từng chunk.
+     *
+     * @return FAILED nếu hết lượt thử / cancel, còn lại cho biết chunk đã được kiểm theo gì
      */
-    private static boolean downloadChunk(String host, int port, String fileName, int chunkIndex,
-                                         FileMetadata meta, Path partFile,
-                                         DownloadControl control) {
+    static ChunkFetch downloadChunk(String host, int port, String fileName, int chunkIndex,
+                                    FileMetadata meta, Path partFile, PartialDownloads.Entry seeding,
+                                    DownloadControl control) {
 
+        long busyDeadline = System.currentTimeMillis() + MAX_BUSY_WAIT_MS;
         for (int retry = 1; retry <= MAX_RETRIES; retry++) {
             try {
                 // checkpoint trước khi request (đúng yêu cầu)
                 if (control != null) control.checkpoint();
 
-                try (Socket socket = new Socket(host, port)) {
-                    socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+                ChunkSession session = sessionPool.acquire(host, port, ChunkSession::open);
+                byte[] chunkData;
+                List<String> proof = null;
+                // session: chunk kiểm theo manifest của session, đã khớp meta tới từng chunk (requestChunk)
+                boolean verified = session != null || !meta.getChunkHashes().isEmpty();
+                if (session != null) {
+                    boolean reusable = false;
+                    try {
+                        chunkData = requestChunk(session, fileName, chunkIndex, meta);
+                        proof = session.lastProof();
+                        reusable = true;
+                    } finally {
+                        sessionPool.release(session, reusable);
+                    }
+                } else {
+                    chunkData = requestChunkOneShot(host, port, fileName, chunkIndex, meta, control);
+                }
+                // server báo lỗi / hash sai: thử lại
+                if (chunkData == null) continue;
 
-                    try (DataInputStream in = new DataInputStream(socket.getInputStream());
-                         DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                //  checkpoint trước khi write (đúng yêu cầu)
+                if (control != null) control.checkpoint();
 
-                        // checkpoint trước khi request (lần nữa cũng OK)
-                        if (control != null) control.checkpoint();
+                long offset = (long) chunkIndex * meta.getChunkSize();
+                try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+                    raf.seek(offset);
+                    raf.write(chunkData);
+                }
+                // caller đánh dấu bitmap sau khi hàm này trả về
+                if (seeding != null) seeding.addProof(chunkIndex, proof);
 
-                        String request = FileTransferProtocol.buildChunkRequest(fileName, chunkIndex);
-                        out.writeUTF(request);
-                        out.flush();
+                return verified ? ChunkFetch.VERIFIED : ChunkFetch.HASH_ONLY;
+            } catch (InterruptedException e) {
+                // cancel/pause: pause sẽ không ném exception, cancel sẽ ném -> ta coi như fail
+                return ChunkFetch.FAILED;
+            } catch (PeerBusyException busy) {
+                // server quá tải: chờ theo gợi ý, lần này không tính là thử thất bại
+                try {
+                    if (!waitWhileBusy(busy, busyDeadline, control)) return ChunkFetch.FAILED;
+                } catch (InterruptedException e) {
+                    return ChunkFetch.FAILED;
+                }
+                retry--;
+            } catch (IOException e) {
+                System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " error (retry "
+                        + retry + "/" + MAX_RETRIES + "): " + e.getMessage());
+            }
+        }
 
-                        String type = in.readUTF();
-                        if (type == null) continue;
+        return ChunkFetch.FAILED;
+    }
 
-                        if ("ERROR".equals(type)) {
-                            String reason = in.readUTF();
-                            System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " error: " + reason);
-                            continue;
-                        }
+    /**
+     * GET_CHUNK trên session mượn từ pool. Metadata xin lại trên session nếu chưa có
+     * (file ID bin1, thuật toán băm, proof Merkle đều theo session), phải khớp manifest meta tới từng chunk.
+     *
+     * @return null nếu server báo lỗi / chunk không khớp manifest (session vẫn đồng bộ)
+     */
+    private static byte[] requestChunk(ChunkSession session, String fileName, int chunkIndex,
+                                       FileMetadata meta) throws IOException {
+        FileMetadata sessionMeta = session.knownMetadata(fileName, meta.getChunkSize());
+        if (sessionMeta == null) {
+            sessionMeta = session.requestMetadata(fileName, meta.getChunkSize(), meta.isMerkle(),
+                    List.of(meta.getHashAlgorithm()));
+        }
+        if (!matchesManifest(meta, sessionMeta)) {
+            throw new IOException("File changed on server");
+        }
+        session.sendChunkRequest(fileName, chunkIndex, meta.getChunkSize());
+        session.flush();
+        return session.readChunk(sessionMeta, chunkIndex);
+    }
 
-                        if (!FileTransferProtocol.CHUNK_DATA.equals(type)) continue;
+    /**
+     * GET_CHUNK trên kết nối 1 lần (peer cũ không có session), hash gửi kèm luôn SHA-256.
+     * meta có hash từng chunk thì chunk phải khớp hash đó (không chỉ hash server gửi kèm).
+     *
+     * @return null nếu server báo lỗi / response sai / hash sai
+     */
+    private static byte[] requestChunkOneShot(String host, int port, String fileName, int chunkIndex,
+                                              FileMetadata meta, DownloadControl control)
+            throws IOException, InterruptedException {
+        try (Socket socket = connect(host, port);
+             DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
 
-                        int receivedIndex = in.readInt();
-                        int dataLen = in.readInt();
-                        String expectedHash = in.readUTF();
+            // checkpoint trước khi request (lần nữa cũng OK)
+            if (control != null) control.checkpoint();
 
-                        if (receivedIndex != chunkIndex) continue;
-                        if (dataLen < 0 || dataLen > meta.getChunkSize()) continue;
+            String request = FileTransferProtocol.buildChunkRequest(fileName, chunkIndex, meta.getChunkSize());
+            out.writeUTF(request);
+            out.flush();
 
-                        //  checkpoint trước khi readFully (đúng yêu cầu)
-                        if (control != null) control.checkpoint();
+            String type = in.readUTF();
+            throwIfBusy(type, in);
 
-                        byte[] chunkData = new byte[dataLen];
-                        in.readFully(chunkData);
+            if ("ERROR".equals(type)) {
+                String reason = in.readUTF();
+                System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " error: " + reason);
+                return null;
+            }
 
-                        String actualHash = FileHashUtil.sha256(chunkData);
-                        if (!actualHash.equals(expectedHash)) {
-                            System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " hash mismatch (retry "
-                                    + retry + "/" + MAX_RETRIES + ")");
-                            continue;
-                        }
+            if (!FileTransferProtocol.CHUNK_DATA.equals(type)) return null;
 
-                        //  checkpoint trước khi write (đúng yêu cầu)
-                        if (control != null) control.checkpoint();
+            int receivedIndex = in.readInt();
+            int dataLen = in.readInt();
+            String expectedHash = in.readUTF();
 
-                        long offset = (long) chunkIndex * meta.getChunkSize();
-                        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
-                            raf.seek(offset);
-                            raf.write(chunkData);
-                        }
+            if (receivedIndex != chunkIndex) return null;
+            if (dataLen < 0 || dataLen > meta.getChunkSize()) return null;
 
-                        return true;
-                    }
+            //  checkpoint trước khi readFully (đúng yêu cầu)
+            if (control != null) control.checkpoint();
+
+            byte[] chunkData = new byte[dataLen];
+            in.readFully(chunkData);
+
+            byte[] actualHash = FileHashUtil.digest(HashAlgorithm.SHA_256, chunkData, 0, dataLen);
+            if (!FileHashUtil.matches(actualHash, expectedHash)) {
+                System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " hash mismatch");
+                return null;
+            }
+            List<String> chunkHashes = meta.getChunkHashes();
+            if (!chunkHashes.isEmpty()) {
+                byte[] manifestHash = meta.getHashAlgorithm() == HashAlgorithm.SHA_256 ? actualHash
+                        : FileHashUtil.digest(meta.getHashAlgorithm(), chunkData, 0, dataLen);
+                if (chunkIndex >= chunkHashes.size() || !FileHashUtil.matches(manifestHash, chunkHashes.get(chunkIndex))) {
+                    System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " does not match manifest");
+                    return null;
                 }
-            } catch (InterruptedException e) {
-                // cancel/pause: pause sẽ không ném exception, cancel sẽ ném -> ta coi như fail
-                return false;
-            } catch (IOException e) {
-                System.err.println("[ChunkedFileClient] Chunk " + chunkIndex + " error (retry "
-                        + retry + "/" + MAX_RETRIES + "): " + e.getMessage());
             }
+            return chunkData;
         }
+    }
 
-        return false;
+    // kết nối 1 lần (peer cũ không có session)
+    private static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), ChunkSession.CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
     }
 
     // ---------------- helpers: meta/bitmap/part ----------------
@@ -280,25 +1109,79 @@ public class ChunkedFileClient {
         }
     }
 
-    private static void safeDelete(Path p) {
+    static void safeDelete(Path p) {
         try {
             if (p != null) Files.deleteIfExists(p);
         } catch (IOException ignored) {}
     }
 
-    private static void saveMeta(Path metaFile, FileMetadata meta) throws IOException {
+    static void saveMeta(Path metaFile, FileMetadata meta, boolean proofVerified) throws IOException {
         Properties props = new Properties();
         props.setProperty("fileName", meta.getFileName());
         props.setProperty("fileSize", String.valueOf(meta.getFileSize()));
         props.setProperty("chunkSize", String.valueOf(meta.getChunkSize()));
         props.setProperty("totalChunks", String.valueOf(meta.getTotalChunks()));
         props.setProperty("fileSha256", meta.getFileSha256());
+        props.setProperty("hashAlgorithm", meta.getHashAlgorithm().getId());
+        if (meta.isMerkle()) {
+            props.setProperty("merkleRoot", meta.getMerkleRoot());
+            props.setProperty("proofVerified", String.valueOf(proofVerified));
+        }
 
         try (OutputStream os = Files.newOutputStream(metaFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
             props.store(os, "P2P download metadata");
         }
     }
 
+    /** Chunk size của lần tải dở trước (nếu có), không có thì AUTO */
+    static int savedChunkSize(Path metaFile) {
+        if (!Files.exists(metaFile)) return FileTransferProtocol.AUTO_CHUNK_SIZE;
+        try (InputStream is = Files.newInputStream(metaFile)) {
+            Properties props = new Properties();
+            props.load(is);
+            int chunkSize = Integer.parseInt(props.getProperty("chunkSize", "0"));
+            return FileTransferProtocol.isValidChunkSize(chunkSize) ? chunkSize : FileTransferProtocol.AUTO_CHUNK_SIZE;
+        } catch (Exception e) {
+            return FileTransferProtocol.AUTO_CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * Thuật toán băm đề nghị server, theo thứ tự ưu tiên: thuật toán của lần tải dở trước
+     * (để .meta.properties còn khớp, khỏi tải lại từ đầu), thuật toán ưu tiên, rồi SHA-256.
+     */
+    static List<HashAlgorithm> acceptedHashAlgorithms(Path metaFile) {
+        List<HashAlgorithm> accepted = new ArrayList<>(3);
+        if (Files.exists(metaFile)) {
+            try (InputStream is = Files.newInputStream(metaFile)) {
+                Properties props = new Properties();
+                props.load(is);
+                HashAlgorithm saved = HashAlgorithm.fromId(props.getProperty("hashAlgorithm",
+                        HashAlgorithm.SHA_256.getId()));
+                if (saved != null) accepted.add(saved);
+            } catch (IOException ignored) {}
+        }
+        for (HashAlgorithm a : List.of(preferredHashAlgorithm, HashAlgorithm.SHA_256)) {
+            if (!accepted.contains(a)) accepted.add(a);
+        }
+        return accepted;
+    }
+
+    /**
+     * Các chunk đã có của lần tải dở trước đều đã khớp gốc Merkle chưa.
+     * Chưa có lần tải nào (không có meta) thì coi như đúng.
+     */
+    private static boolean savedProofVerified(Path metaFile) {
+        if (!Files.exists(metaFile)) return true;
+        try (InputStream is = Files.newInputStream(metaFile)) {
+            Properties props = new Properties();
+            props.load(is);
+            return Boolean.parseBoolean(props.getProperty("proofVerified", "false"));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     private static boolean isSameMeta(Path metaFile, FileMetadata meta) {
         try (InputStream is = Files.newInputStream(metaFile)) {
             Properties props = new Properties();
@@ -309,18 +1192,26 @@ public class ChunkedFileClient {
             int chunkSize = Integer.parseInt(props.getProperty("chunkSize", "-1"));
             int totalChunks = Integer.parseInt(props.getProperty("totalChunks", "-1"));
             String fileSha256 = props.getProperty("fileSha256", "");
+            // meta trước khi có thuật toán băm thương lượng: luôn SHA-256
+            String hashAlgorithm = props.getProperty("hashAlgorithm", HashAlgorithm.SHA_256.getId());
+            // lần trước tải dạng danh sách hash (hoặc ngược lại) vẫn resume được, chỉ so gốc khi cả 2 có
+            String merkleRoot = props.getProperty("merkleRoot");
+            if (merkleRoot != null && meta.isMerkle() && !merkleRoot.equals(meta.getMerkleRoot())) {
+                return false;
+            }
 
             return fileName.equals(meta.getFileName())
                     && fileSize == meta.getFileSize()
                     && chunkSize == meta.getChunkSize()
                     && totalChunks == meta.getTotalChunks()
+                    && hashAlgorithm.equals(meta.getHashAlgorithm().getId())
                     && fileSha256.equals(meta.getFileSha256());
 
         } catch (Exception e) {
             return false;
         }
     }
-    private static void cleanupOnCancel(Path partFile, Path bitmapFile, Path metaFile) {
+    static void cleanupOnCancel(Path partFile, Path bitmapFile, Path metaFile) {
         System.out.println("[ChunkedFileClient] Cancel -> cleanup temp files");
         safeDelete(partFile);
         safeDelete(bitmapFile);
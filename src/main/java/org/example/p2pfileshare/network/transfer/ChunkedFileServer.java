@@ -1,45 +1,100 @@
 package org.example.p2pfileshare.network.transfer;
 
+import org.example.p2pfileshare.network.protocol.BinaryFrames;
 import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
-import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.ConnectionExecutor;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class ChunkedFileServer {
 
+    /** Cách phục vụ kết nối, chọn lúc tạo server */
+    public enum Mode {
+        /** 1 thread / kết nối trên pool cố định (chế độ cũ) */
+        BLOCKING,
+        /** Code blocking như BLOCKING nhưng mỗi kết nối 1 virtual thread (Java 21+) */
+        VIRTUAL_THREADS,
+        /** Selector + SocketChannel non-blocking, vài thread I/O cho hàng nghìn kết nối */
+        NIO
+    }
+
     private final int port;
+    private final Mode mode;
     private final AtomicReference<Path> shareFolder = new AtomicReference<>();
-    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1 MB
-
-    // Đỡ tạo vô hạn thread
-    private ExecutorService pool = Executors.newFixedThreadPool(32);
+    // session idle quá lâu thì đóng để không giữ thread
+    private static final int SESSION_IDLE_TIMEOUT_MS = 60_000;
+    private static final int BLOCKING_POOL_SIZE = 32;
+    private static final int VIRTUAL_MAX_CONNECTIONS = 10_000;
+    private static final long EXPIRE_SWEEP_MS = 500;
+    // giữ kết nối bị từ chối thêm chừng này cho client đọc BUSY rồi mới đóng
+    private static final long BUSY_LINGER_MS = 1_000;
+
+    // Đỡ tạo vô hạn thread: giới hạn số kết nối phục vụ đồng thời
+    private final int maxConnections;
+    private ConnectionExecutor pool;
+    // kết nối đang mở, stopServer() đóng hết để thread đang block ở read thoát ra
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
 
     // ===== NEW: lifecycle =====
     private volatile boolean running = false;
-    private volatile ServerSocket serverSocket;
+    private volatile ServerSocketChannel serverSocket;
     private Thread serverThread;
+    private NioTransferEngine nioEngine;
+
+    private final TransferRequestHandler handler;
+    // giới hạn tốc độ upload (chung + từng peer), mặc định không giới hạn
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    // số kết nối phục vụ / chờ / mỗi peer, quá thì trả BUSY
+    private final AdmissionControl admission;
+    // trả BUSY, đóng kết nối bị từ chối, bỏ kết nối chờ quá lâu
+    private ScheduledExecutorService housekeeping;
 
     public ChunkedFileServer(int port, Path initialFolder) {
+        this(port, initialFolder, Mode.BLOCKING);
+    }
+
+    public ChunkedFileServer(int port, Path initialFolder, Mode mode) {
+        this(port, initialFolder, mode, mode == Mode.BLOCKING ? BLOCKING_POOL_SIZE : VIRTUAL_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections số kết nối phục vụ đồng thời tối đa (BLOCKING: = số thread pool,
+     *                       VIRTUAL_THREADS / NIO: giới hạn chung), quá thì kết nối mới xếp hàng chờ.
+     *                       VIRTUAL_THREADS trên JVM < 21 bị kẹp về {@link ConnectionExecutor#MAX_PLATFORM_THREADS}
+     */
+    public ChunkedFileServer(int port, Path initialFolder, Mode mode, int maxConnections) {
         this.port = port;
+        this.mode = mode;
+        // VIRTUAL_THREADS trên JVM cũ chạy platform thread: AdmissionControl cũng phải theo giới hạn đó
+        this.maxConnections = ConnectionExecutor.effectiveLimit(executorModel(mode), maxConnections);
         this.shareFolder.set(initialFolder);
+        this.handler = new TransferRequestHandler(shareFolder);
+        this.admission = new AdmissionControl(this.maxConnections, AdmissionControl.DEFAULT_MAX_QUEUED,
+                AdmissionControl.DEFAULT_MAX_PER_PEER);
     }
 
     /** Cho phép set null để "tắt share" */
     public void changeFolder(Path newFolder) {
         if (newFolder == null) {
             shareFolder.set(null);
+            handler.onFolderChanged(null);
             System.out.println("[ChunkedFileServer] Share folder cleared (no sharing)");
             return;
         }
         if (Files.isDirectory(newFolder)) {
+            handler.onFolderChanged(newFolder);
             shareFolder.set(newFolder);
             System.out.println("[ChunkedFileServer] Folder changed to: " + newFolder);
         } else {
@@ -47,6 +102,47 @@ public class ChunkedFileServer {
         }
     }
 
+    /**
+     * Đặt giới hạn upload (byte/giây, 0 = không giới hạn), có hiệu lực ngay cả với
+     * kết nối đang gửi, không cần restart server.
+     */
+    public void setUploadLimits(long globalBytesPerSec, long perPeerBytesPerSec) {
+        bandwidthLimiter.setLimits(globalBytesPerSec, perPeerBytesPerSec);
+        System.out.println("[ChunkedFileServer] Upload limits: global=" + globalBytesPerSec
+                + " B/s, per-peer=" + perPeerBytesPerSec + " B/s");
+    }
+
+    /** Cho phép nén chunk với session đề nghị codec (mặc định bật) */
+    public void setCompressionEnabled(boolean enabled) {
+        handler.setCompressionEnabled(enabled);
+    }
+
+    /** Dung lượng cache chunk nóng ngoài heap (byte), 0 = tắt, gửi zero-copy từ file */
+    public void setHotChunkCacheCapacity(long bytes) {
+        handler.getHotChunks().setCapacity(bytes);
+    }
+
+    /** hit/miss/eviction của cache chunk nóng */
+    public HotChunkCache.Stats getHotChunkCacheStats() {
+        return handler.getHotChunks().getStats();
+    }
+
+    /**
+     * Giới hạn kết nối chờ (khi đã đủ maxConnections) và số kết nối mỗi peer,
+     * quá giới hạn thì kết nối mới nhận BUSY kèm thời gian nên thử lại.
+     */
+    public void setAdmissionLimits(int maxQueued, int maxPerPeer) {
+        admission.setLimits(maxConnections, maxQueued, maxPerPeer);
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
     /** Trạng thái chạy để UI check */
     public boolean isRunning() {
         return running;
@@ -61,9 +157,33 @@ public class ChunkedFileServer {
 
         running = true;
 
+        housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chunked-file-admission");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeping.scheduleWithFixedDelay(admission::expireQueued,
+                EXPIRE_SWEEP_MS, EXPIRE_SWEEP_MS, TimeUnit.MILLISECONDS);
+
+        if (mode == Mode.NIO) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            nioEngine = new NioTransferEngine(port, handler, bandwidthLimiter, admission,
+                    Math.min(4, cores), Math.max(4, cores));
+            try {
+                nioEngine.start();
+            } catch (IOException e) {
+                System.err.println("[ChunkedFileServer] Failed to bind/listen port " + port + ": " + e.getMessage());
+                nioEngine.stop();
+                nioEngine = null;
+                housekeeping.shutdownNow();
+                running = false;
+            }
+            return;
+        }
+
         // Nếu pool đã shutdown từ lần trước, tạo lại
-        if (pool == null || pool.isShutdown() || pool.isTerminated()) {
-            pool = Executors.newFixedThreadPool(32);
+        if (pool == null || pool.isShutdown()) {
+            pool = ConnectionExecutor.create(executorModel(mode), "chunked-file-worker", maxConnections);
         }
 
         serverThread = new Thread(this::runLoop, "chunked-file-server");
@@ -71,16 +191,25 @@ public class ChunkedFileServer {
         serverThread.start();
     }
 
+    private static ConnectionExecutor.Model executorModel(Mode mode) {
+        return mode == Mode.VIRTUAL_THREADS
+                ? ConnectionExecutor.Model.VIRTUAL_THREADS
+                : ConnectionExecutor.Model.PLATFORM_POOL;
+    }
+
     private void runLoop() {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("[ChunkedFileServer] Listening on port " + port);
+            // dùng channel để GET_CHUNK có thể FileChannel.transferTo thẳng vào socket (zero-copy)
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port));
+            System.out.println("[ChunkedFileServer] Listening on port " + port + " (" + mode
+                    + (pool.isVirtual() ? ", virtual threads" : "") + ", max " + maxConnections + " connections)");
 
             while (running) {
+                SocketChannel client;
                 try {
-                    Socket client = serverSocket.accept();
-                    pool.submit(() -> handleClient(client));
-                } catch (SocketException se) {
+                    client = serverSocket.accept();
+                } catch (ClosedChannelException se) {
                     // thường xảy ra khi stopServer() -> serverSocket.close()
                     if (running) {
                         System.err.println("[ChunkedFileServer] accept() socket error: " + se.getMessage());
@@ -90,7 +219,15 @@ public class ChunkedFileServer {
                     if (running) {
                         System.err.println("[ChunkedFileServer] accept() error: " + e.getMessage());
                     }
+                    continue;
                 }
+
+                // luôn accept để trả lời được: hết slot thì xếp hàng, hàng đầy thì BUSY
+                clients.add(client);
+                AdmissionControl.Ticket ticket = admission.tryEnter(peerKey(client),
+                        t -> serveAdmitted(client, t),
+                        () -> rejectBusy(client));
+                if (ticket == null) rejectBusy(client);
             }
         } catch (IOException e) {
             if (running) {
@@ -103,6 +240,60 @@ public class ChunkedFileServer {
         }
     }
 
+    // kết nối đã được nhận (ngay hoặc khi tới lượt trong hàng chờ)
+    private void serveAdmitted(SocketChannel client, AdmissionControl.Ticket ticket) {
+        try {
+            pool.executeAdmitted(() -> {
+                try {
+                    handleClient(client);
+                } finally {
+                    clients.remove(client);
+                    ticket.close();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // pool đã shutdown (server đang dừng)
+            clients.remove(client);
+            ticket.close();
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * Trả BUSY rồi đóng, không tốn thread phục vụ: đọc bỏ request đã tới, ghi BUSY (vừa socket buffer),
+     * đóng chiều ghi, và chỉ đóng hẳn sau 1 lúc để client kịp đọc
+     * (đóng khi còn dữ liệu chưa đọc thì TCP gửi RST, client mất luôn BUSY).
+     */
+    private void rejectBusy(SocketChannel client) {
+        ScheduledExecutorService hk = housekeeping;
+        try {
+            hk.execute(() -> {
+                try {
+                    client.configureBlocking(false);
+                    ByteBuffer scratch = ByteBuffer.allocate(4096);
+                    while (client.read(scratch) > 0) scratch.clear();
+                    TransferReply.busy(admission.retryAfterMs()).writeTo(client);
+                    client.shutdownOutput();
+                } catch (IOException ignored) {
+                } finally {
+                    hk.schedule(() -> {
+                        clients.remove(client);
+                        closeQuietly(client);
+                    }, BUSY_LINGER_MS, TimeUnit.MILLISECONDS);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            clients.remove(client);
+            closeQuietly(client);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) {}
+    }
+
     /** NEW: Stop server */
     public synchronized void stopServer() {
         if (!running) {
@@ -112,13 +303,36 @@ public class ChunkedFileServer {
 
         System.out.println("[ChunkedFileServer] Stopping server...");
         running = false;
+        System.out.println("[ChunkedFileServer] Hot chunk cache: " + handler.getHotChunks().getStats());
+        System.out.println("[ChunkedFileServer] Busy rejections: " + admission.getRejectedCount());
+        if (housekeeping != null) {
+            housekeeping.shutdownNow();
+        }
+
+        if (nioEngine != null) {
+            nioEngine.stop();
+            nioEngine = null;
+            System.out.println("[ChunkedFileServer] Stopped");
+            return;
+        }
 
         // 1) Đóng server socket để accept() thoát ngay
         closeServerSocketQuietly();
 
-        // 2) Dừng worker đang xử lý client (tuỳ bạn muốn graceful hay hard-stop)
+        // 2) Đóng các kết nối đang mở: thread (platform hay virtual) đang block ở read/transferTo thoát ngay
+        for (SocketChannel client : clients) {
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+        clients.clear();
+
+        // 3) Dừng worker đang xử lý client (tuỳ bạn muốn graceful hay hard-stop)
         if (pool != null) {
-            pool.shutdownNow();
+            // task đã được nhận mà chưa kịp chạy: chạy luôn (kết nối đã đóng nên thoát ngay) để trả slot
+            for (Runnable neverStarted : pool.shutdownNow()) {
+                neverStarted.run();
+            }
             try {
                 pool.awaitTermination(2, TimeUnit.SECONDS);
             } catch (InterruptedException ignored) {
@@ -126,8 +340,9 @@ public class ChunkedFileServer {
             }
         }
 
-        // 3) Cho thread server kết thúc (không bắt buộc nhưng debug dễ)
+        // 4) Cho thread server kết thúc (không bắt buộc nhưng debug dễ)
         if (serverThread != null && serverThread.isAlive()) {
+            serverThread.interrupt();
             try {
                 serverThread.join(1000);
             } catch (InterruptedException ignored) {
@@ -140,7 +355,7 @@ public class ChunkedFileServer {
 
     private void closeServerSocketQuietly() {
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (serverSocket != null && serverSocket.isOpen()) {
                 serverSocket.close();
             }
         } catch (IOException ignored) {
@@ -149,10 +364,10 @@ public class ChunkedFileServer {
         }
     }
 
-    private void handleClient(Socket socket) {
-        try (Socket s = socket;
-             DataInputStream in = new DataInputStream(s.getInputStream());
-             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+    private void handleClient(SocketChannel channel) {
+        try (SocketChannel ch = channel;
+             BandwidthLimiter.Lease lease = bandwidthLimiter.open(peerKey(ch));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream()))) {
 
             // Client gửi writeUTF -> server phải readUTF
             String request = in.readUTF();
@@ -160,23 +375,17 @@ public class ChunkedFileServer {
 
             FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(request);
             if (cmd == null) {
-                sendError(out, "Invalid command");
+                send(ch, lease, TransferReply.error("Invalid command"));
                 return;
             }
 
-            Path root = shareFolder.get();
-            if (root == null) {
-                sendError(out, "No share folder set");
+            if (FileTransferProtocol.SESSION_OPEN.equals(cmd.command)) {
+                runSession(ch, lease, in, handler.negotiate(cmd));
                 return;
             }
 
-            if (FileTransferProtocol.FILE_META_REQUEST.equals(cmd.command)) {
-                handleMetaRequest(cmd, root, out);
-            } else if (FileTransferProtocol.GET_CHUNK.equals(cmd.command)) {
-                handleChunkRequest(cmd, root, out);
-            } else {
-                sendError(out, "Unknown command: " + cmd.command);
-            }
+            // Peer cũ: 1 command / 1 kết nối
+            send(ch, lease, handler.handle(cmd));
 
         } catch (EOFException eof) {
             // client đóng sớm
@@ -187,117 +396,61 @@ public class ChunkedFileServer {
             System.err.println("[ChunkedFileServer] Rejected client task (server stopping): " + ree.getMessage());
         }
     }
-    // hàm xử lý handleMetaRequest
-    private void handleMetaRequest(FileTransferProtocol.ParsedCommand cmd, Path root, DataOutputStream out) throws IOException {
-        String fileName = cmd.get(1);
-        if (fileName == null) {
-            sendError(out, "Missing filename");
-            return;
-        }
-
-        Path filePath = root.resolve(fileName).normalize();
-        if (!filePath.startsWith(root) || !Files.exists(filePath) || Files.isDirectory(filePath)) {
-            sendError(out, "File not found");
-            return;
-        }
-
-        long fileSize = Files.size(filePath);
-        int totalChunks = (int) Math.ceil((double) fileSize / DEFAULT_CHUNK_SIZE);
-
-        // hash toàn file
-        String fileSha256 = FileHashUtil.sha256(filePath);
 
-        // hash từng chunk
-        List<String> chunkHashes = new ArrayList<>(totalChunks);
-        // truy cập đến file để đọc từng chunk và băm, randomfile không cần phải đọc
-        // lần lượt từ 1 -> 10 mà có thể nhảy ngay đến 10 để đọc
-        try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-            byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
-            for (int i = 0; i < totalChunks; i++) {
-                long offset = (long) i * DEFAULT_CHUNK_SIZE;
-                raf.seek(offset);
+    /**
+     * Session mode: 1 kết nối phục vụ nhiều FILE_META_REQUEST/GET_CHUNK liên tiếp.
+     * Client có thể gửi nhiều request trước khi đọc response (pipeline),
+     * server xử lý và trả lời đúng thứ tự nhận được.
+     */
+    private void runSession(SocketChannel ch, BandwidthLimiter.Lease lease, DataInputStream in,
+                            SessionOptions options) throws IOException {
+        ch.socket().setSoTimeout(SESSION_IDLE_TIMEOUT_MS);
 
-                int toRead = (int) Math.min(DEFAULT_CHUNK_SIZE, fileSize - offset);
-                int read = raf.read(buffer, 0, toRead);
+        send(ch, lease, options.ack());
 
-                if (read <= 0) {
-                    chunkHashes.add(FileHashUtil.sha256(new byte[0]));
+        int served = 0;
+        try {
+            while (running) {
+                // sau SESSION_ACK, session bin1 gửi frame nhị phân thay cho writeUTF
+                TransferRequest request = options.isBinary()
+                        ? options.decode(BinaryFrames.readFrame(in))
+                        : TransferRequest.parse(in.readUTF());
+                if (request == null) {
+                    send(ch, lease, options.error("Invalid command"));
+                } else if (request instanceof TransferRequest.Close) {
+                    break;
                 } else {
-                    byte[] chunkData = new byte[read];
-                    // copy buffer -> chunkData, chunk cuối có thể có kích thước nhỏ hơn
-                    System.arraycopy(buffer, 0, chunkData, 0, read);
-                    chunkHashes.add(FileHashUtil.sha256(chunkData));
+                    send(ch, lease, handler.handle(request, options));
+                    served++;
                 }
             }
+        } catch (EOFException | SocketTimeoutException e) {
+            // client đóng session hoặc idle quá lâu
+        } finally {
+            System.out.println("[ChunkedFileServer] Session closed, served " + served + " requests");
         }
-
-        out.writeUTF(FileTransferProtocol.FILE_META_RESPONSE);
-        out.writeUTF(fileName);
-        out.writeLong(fileSize);
-        out.writeInt(DEFAULT_CHUNK_SIZE);
-        out.writeInt(totalChunks);
-        out.writeUTF(fileSha256);
-        for (int i = 0; i < totalChunks; i++) {
-            out.writeUTF(chunkHashes.get(i));
-        }
-        out.flush();
-
-        System.out.println("[ChunkedFileServer] Sent metadata for " + fileName + " chunks=" + totalChunks);
     }
 
-    private void handleChunkRequest(FileTransferProtocol.ParsedCommand cmd, Path root, DataOutputStream out) throws IOException {
-        String fileName = cmd.get(1);
-        String indexStr = cmd.get(2);
-
-        if (fileName == null || indexStr == null) {
-            sendError(out, "Missing parameters");
-            return;
-        }
-
-        int chunkIndex;
+    // channel đang blocking -> writeTo chỉ trả false khi hết token băng thông
+    // hoặc transferTo tạm gửi được 0 byte
+    private static void send(SocketChannel ch, BandwidthLimiter.Lease lease, TransferReply reply) throws IOException {
         try {
-            chunkIndex = Integer.parseInt(indexStr);
-        } catch (NumberFormatException e) {
-            sendError(out, "Invalid chunk index");
-            return;
-        }
-
-        Path filePath = root.resolve(fileName).normalize();
-        if (!filePath.startsWith(root) || !Files.exists(filePath) || Files.isDirectory(filePath)) {
-            sendError(out, "File not found");
-            return;
-        }
-
-        long fileSize = Files.size(filePath);
-        long offset = (long) chunkIndex * DEFAULT_CHUNK_SIZE;
-        if (offset >= fileSize || chunkIndex < 0) {
-            sendError(out, "Chunk index out of range");
-            return;
-        }
-
-        int dataLen = (int) Math.min(DEFAULT_CHUNK_SIZE, fileSize - offset);
-
-        byte[] chunkData = new byte[dataLen];
-        try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-            raf.seek(offset);
-            raf.readFully(chunkData);
+            while (!reply.writeTo(ch, lease)) {
+                long delay = reply.throttleDelayNanos();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Server stopping");
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        } finally {
+            reply.close();
         }
-
-        String chunkHash = FileHashUtil.sha256(chunkData);
-
-        out.writeUTF(FileTransferProtocol.CHUNK_DATA);
-        out.writeInt(chunkIndex);
-        out.writeInt(dataLen);
-        out.writeUTF(chunkHash);
-        out.write(chunkData);
-        out.flush();
-
-        System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + dataLen);
     }
 
-    private void sendError(DataOutputStream out, String reason) throws IOException {
-        out.writeUTF("ERROR");
-        out.writeUTF(reason);
-        out.flush();
+    static String peerKey(SocketChannel ch) {
+        InetAddress addr = ch.socket().getInetAddress();
+        return addr != null ? addr.getHostAddress() : "unknown";
     }
 }
@@ -23,6 +23,18 @@ public class DownloadControl {
         return cancelled;
     }
 
+    // Chờ millis ms (vd server báo BUSY), cancel thì thoát ngay, hết giờ mà đang pause thì chờ tới khi resume
+    public void sleep(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (this) {
+            long left;
+            while (!cancelled && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+        }
+        checkpoint();
+    }
+
     // Gọi ở những điểm an toàn (giữa các chunk / trước retry / trước read)
     public void checkpoint() throws InterruptedException {
         synchronized (this) {
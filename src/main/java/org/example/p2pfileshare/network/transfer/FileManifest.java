@@ -0,0 +1,63 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.HashAlgorithm;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.util.List;
+
+/**
+ * Kết quả băm 1 file đang share: hash cả file + hash từng chunk, theo 1 thuật toán
+ * (SHA-256 mặc định, peer có thể thống nhất thuật toán nhanh hơn).
+ *
+ * Gắn với size + lastModified lúc tính, file đổi thì manifest hết hiệu lực.
+ */
+public class FileManifest {
+    private final long fileSize;
+    private final long lastModified;
+    private final int chunkSize;
+    private final HashAlgorithm algorithm;
+    // tên giữ từ hồi chỉ có SHA-256, thực tế là hash cả file theo algorithm
+    private final String fileSha256;
+    private final List<String> chunkHashes;
+    // dựng khi có client xin metadata dạng Merkle, không lưu vào sidecar (suy lại được từ chunkHashes)
+    private volatile MerkleTree merkleTree;
+
+    public FileManifest(long fileSize, long lastModified, int chunkSize,
+                        String fileSha256, List<String> chunkHashes) {
+        this(fileSize, lastModified, chunkSize, HashAlgorithm.SHA_256, fileSha256, chunkHashes);
+    }
+
+    public FileManifest(long fileSize, long lastModified, int chunkSize, HashAlgorithm algorithm,
+                        String fileSha256, List<String> chunkHashes) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.chunkSize = chunkSize;
+        this.algorithm = algorithm;
+        this.fileSha256 = fileSha256;
+        this.chunkHashes = List.copyOf(chunkHashes);
+    }
+
+    /** Manifest còn đúng với file hiện tại không */
+    public boolean matches(long size, long mtime) {
+        return fileSize == size && lastModified == mtime;
+    }
+
+    public long getFileSize() { return fileSize; }
+    public long getLastModified() { return lastModified; }
+    public int getChunkSize() { return chunkSize; }
+    public HashAlgorithm getAlgorithm() { return algorithm; }
+    public int getTotalChunks() { return chunkHashes.size(); }
+    public String getFileSha256() { return fileSha256; }
+    public List<String> getChunkHashes() { return chunkHashes; }
+    public String getChunkHash(int chunkIndex) { return chunkHashes.get(chunkIndex); }
+
+    /** Chỉ dùng với manifest SHA-256 (nút trong của cây luôn là SHA-256) */
+    public MerkleTree getMerkleTree() {
+        MerkleTree tree = merkleTree;
+        if (tree == null) {
+            tree = MerkleTree.build(chunkHashes);
+            merkleTree = tree;
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,339 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache chunk vừa phục vụ, nằm ngoài heap (direct ByteBuffer), kèm hash của chunk.
+ *
+ * Nhiều peer tải cùng 1 file cùng lúc thì mỗi chunk chỉ đọc đĩa 1 lần: request trùng chunk
+ * đang được đọc sẽ chờ chung 1 lần đọc (single-flight) thay vì tự đọc.
+ *
+ * - Giới hạn theo tổng số byte, đẩy chunk lâu nhất chưa dùng ra trước (LRU).
+ * - Chunk gắn với size + mtime của file lúc đọc, file đổi thì coi như miss.
+ * - Buffer bị đẩy ra không bị tái sử dụng, reply đang gửi dở vẫn đọc được tới khi GC thu hồi.
+ */
+public final class HotChunkCache {
+
+    static final long DEFAULT_CAPACITY_BYTES = 128L * 1024 * 1024;
+    // 1 chunk chiếm quá 1/8 cache thì không giữ (đỡ đẩy cả cache ra vì vài chunk 16 MB)
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final Object lock = new Object();
+    private long capacity;
+    private long used;
+    private final LinkedHashMap<Key, Chunk> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Key, CompletableFuture<Chunk>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskReads = new LongAdder();
+    private final LongAdder sharedReads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+
+    private record Key(Path file, int chunkSize, int index) {}
+
+    HotChunkCache(long capacityBytes) {
+        this.capacity = Math.max(0, capacityBytes);
+    }
+
+    boolean isEnabled() {
+        synchronized (lock) {
+            return capacity > 0;
+        }
+    }
+
+    /** Đổi dung lượng lúc đang chạy, 0 = tắt cache (quay về gửi zero-copy) */
+    void setCapacity(long capacityBytes) {
+        synchronized (lock) {
+            capacity = Math.max(0, capacityBytes);
+            evictToFit();
+        }
+    }
+
+    void clear() {
+        synchronized (lock) {
+            for (Chunk c : entries.values()) {
+                evictions.increment();
+                evictedBytes.add(c.length());
+            }
+            entries.clear();
+            used = 0;
+        }
+    }
+
+    /**
+     * Lấy chunk từ cache, chưa có thì đọc đĩa 1 lần (request trùng chờ chung).
+     *
+     * @param knownHash hash chunk từ manifest nếu có, null thì tự băm lúc đọc
+     */
+    Chunk getOrLoad(OpenFileCache.Handle file, int chunkSize, int index, long offset, int length,
+                    String knownHash) throws IOException {
+        return getOrLoad(file, chunkSize, index, offset, length, HashAlgorithm.SHA_256, knownHash);
+    }
+
+    /**
+     * Như trên, knownHash theo thuật toán algorithm. Chunk đã cache theo thuật toán khác vẫn dùng được,
+     * hash theo thuật toán này được tính thêm 1 lần rồi giữ cùng chunk.
+     */
+    Chunk getOrLoad(OpenFileCache.Handle file, int chunkSize, int index, long offset, int length,
+                    HashAlgorithm algorithm, String knownHash) throws IOException {
+        Key key = new Key(file.getPath(), chunkSize, index);
+        long size = file.getSize();
+        long mtime = file.getLastModified();
+
+        synchronized (lock) {
+            Chunk cached = entries.get(key);
+            if (cached != null) {
+                if (cached.matches(size, mtime)) {
+                    hits.increment();
+                    if (knownHash != null) cached.putHash(algorithm, knownHash);
+                    return cached;
+                }
+                remove(key, cached);
+            }
+        }
+        misses.increment();
+
+        CompletableFuture<Chunk> mine = new CompletableFuture<>();
+        CompletableFuture<Chunk> existing = loading.putIfAbsent(key, mine);
+        if (existing != null) {
+            sharedReads.increment();
+            Chunk c = await(existing);
+            if (c.matches(size, mtime)) {
+                if (knownHash != null) c.putHash(algorithm, knownHash);
+                return c;
+            }
+            // đang đọc bản cũ của file -> tự đọc bản mới, không cache lẫn
+            return read(file.getChannel(), offset, length, algorithm, knownHash, size, mtime);
+        }
+
+        try {
+            Chunk c = read(file.getChannel(), offset, length, algorithm, knownHash, size, mtime);
+            put(key, c);
+            mine.complete(c);
+            return c;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    /** Chunk này có nên đi qua cache không */
+    boolean admits(int length) {
+        synchronized (lock) {
+            return capacity > 0 && length <= capacity / MAX_ENTRY_FRACTION;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(hits.sum(), misses.sum(), diskReads.sum(), sharedReads.sum(),
+                    evictions.sum(), evictedBytes.sum(), entries.size(), used, capacity);
+        }
+    }
+
+    private Chunk read(FileChannel fc, long offset, int length, HashAlgorithm algorithm, String knownHash,
+                       long size, long mtime) throws IOException {
+        diskReads.increment();
+        ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        long position = offset;
+        while (buf.hasRemaining()) {
+            int n = fc.read(buf, position);
+            if (n < 0) throw new EOFException("File truncated while reading");
+            position += n;
+        }
+        buf.flip();
+
+        Chunk c = new Chunk(buf.asReadOnlyBuffer(), size, mtime);
+        if (knownHash != null) {
+            c.putHash(algorithm, knownHash);
+        } else {
+            c.hash(algorithm);
+        }
+        return c;
+    }
+
+    private void put(Key key, Chunk c) {
+        synchronized (lock) {
+            if (capacity <= 0 || c.length() > capacity / MAX_ENTRY_FRACTION) return;
+            Chunk old = entries.put(key, c);
+            if (old != null) used -= old.length();
+            used += c.length();
+            evictToFit();
+        }
+    }
+
+    // gọi trong lock
+    private void remove(Key key, Chunk c) {
+        entries.remove(key);
+        used -= c.length();
+    }
+
+    // gọi trong lock
+    private void evictToFit() {
+        Iterator<Chunk> it = entries.values().iterator();
+        while (used > capacity && it.hasNext()) {
+            Chunk eldest = it.next();
+            it.remove();
+            used -= eldest.length();
+            evictions.increment();
+            evictedBytes.add(eldest.length());
+        }
+    }
+
+    private static Chunk await(CompletableFuture<Chunk> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunk read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause);
+        }
+    }
+
+    /** 1 chunk trong cache: dữ liệu chỉ đọc + hash, và bản nén (nếu session nào đã nén) */
+    static final class Chunk {
+        private final ByteBuffer data;
+        // thường chỉ 1 thuật toán, session khác thống nhất thuật toán khác thì băm thêm từ buffer
+        private final Map<HashAlgorithm, String> hashes = new EnumMap<>(HashAlgorithm.class);
+        private final long fileSize;
+        private final long lastModified;
+        // nén 1 lần, các session nén sau dùng lại
+        private volatile byte[] compressed;
+        private volatile boolean compressionTried;
+
+        Chunk(ByteBuffer data, long fileSize, long lastModified) {
+            this.data = data;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+        }
+
+        boolean matches(long size, long mtime) {
+            return fileSize == size && lastModified == mtime;
+        }
+
+        /** View riêng cho 1 reply (position/limit độc lập) */
+        ByteBuffer data() {
+            return data.duplicate();
+        }
+
+        String hash() {
+            return hash(HashAlgorithm.SHA_256);
+        }
+
+        /** Hash theo thuật toán này, chưa có thì băm từ buffer (không đọc lại đĩa) */
+        String hash(HashAlgorithm algorithm) {
+            synchronized (hashes) {
+                String h = hashes.get(algorithm);
+                if (h == null) {
+                    // băm thẳng trên buffer ngoài heap
+                    h = FileHashUtil.hash(algorithm, data.duplicate());
+                    hashes.put(algorithm, h);
+                }
+                return h;
+            }
+        }
+
+        private void putHash(HashAlgorithm algorithm, String h) {
+            synchronized (hashes) {
+                hashes.putIfAbsent(algorithm, h);
+            }
+        }
+
+        int length() {
+            return data.capacity();
+        }
+
+        byte[] toArray() {
+            byte[] out = new byte[length()];
+            data.duplicate().get(out);
+            return out;
+        }
+
+        boolean isCompressionTried() {
+            return compressionTried;
+        }
+
+        byte[] compressed() {
+            return compressed;
+        }
+
+        void setCompressed(byte[] value) {
+            compressed = value;
+            compressionTried = true;
+        }
+    }
+
+    /** Số liệu cache để UI / log theo dõi */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long diskReads;
+        private final long sharedReads;
+        private final long evictions;
+        private final long evictedBytes;
+        private final int entries;
+        private final long bytes;
+        private final long capacity;
+
+        Stats(long hits, long misses, long diskReads, long sharedReads, long evictions,
+              long evictedBytes, int entries, long bytes, long capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.diskReads = diskReads;
+            this.sharedReads = sharedReads;
+            this.evictions = evictions;
+            this.evictedBytes = evictedBytes;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.capacity = capacity;
+        }
+
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        /** số lần thật sự đọc đĩa */
+        public long getDiskReads() { return diskReads; }
+        /** số miss được phục vụ bằng lần đọc của request khác (single-flight) */
+        public long getSharedReads() { return sharedReads; }
+        public long getEvictions() { return evictions; }
+        public long getEvictedBytes() { return evictedBytes; }
+        public int getEntries() { return entries; }
+        public long getBytes() { return bytes; }
+        public long getCapacity() { return capacity; }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " diskReads=" + diskReads
+                    + " sharedReads=" + sharedReads + " evictions=" + evictions
+                    + " (" + evictedBytes + " B) entries=" + entries
+                    + " bytes=" + bytes + "/" + capacity;
+        }
+    }
+}
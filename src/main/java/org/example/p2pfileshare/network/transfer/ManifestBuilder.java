@@ -0,0 +1,114 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Tính manifest trong 1 lượt đọc file.
+ *
+ * Đọc tuần tự từng "cửa sổ" lớn (nhiều chunk) bằng FileChannel, thread gọi cập nhật
+ * hash cả file, còn hash từng chunk trong cửa sổ được chia cho ForkJoinPool.
+ * Dùng 2 buffer luân phiên: trong lúc pool băm cửa sổ trước thì đọc cửa sổ sau.
+ */
+public final class ManifestBuilder {
+
+    // ~16 MB mỗi lần đọc, đủ lớn để disk đọc tuần tự
+    private static final int TARGET_WINDOW_BYTES = 16 * 1024 * 1024;
+
+    private ManifestBuilder() {}
+
+    public static FileManifest build(Path file, int chunkSize) throws IOException {
+        return build(file, chunkSize, HashAlgorithm.SHA_256);
+    }
+
+    public static FileManifest build(Path file, int chunkSize, ForkJoinPool pool) throws IOException {
+        return build(file, chunkSize, HashAlgorithm.SHA_256, pool);
+    }
+
+    public static FileManifest build(Path file, int chunkSize, HashAlgorithm algorithm) throws IOException {
+        return build(file, chunkSize, algorithm, ForkJoinPool.commonPool());
+    }
+
+    public static FileManifest build(Path file, int chunkSize, HashAlgorithm algorithm,
+                                     ForkJoinPool pool) throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = fc.size();
+            int totalChunks = (int) Math.ceil((double) fileSize / chunkSize);
+            String[] chunkHashes = new String[totalChunks];
+
+            int chunksPerWindow = Math.max(1, TARGET_WINDOW_BYTES / chunkSize);
+            int windowBytes = (int) Math.min((long) chunksPerWindow * chunkSize, Math.max(fileSize, 1));
+            byte[][] buffers = {new byte[windowBytes], new byte[windowBytes]};
+            List<List<ForkJoinTask<?>>> pending = List.of(new ArrayList<>(), new ArrayList<>());
+
+            HashAlgorithm.Hasher whole = algorithm.newHasher();
+            long position = 0;
+            int chunkIndex = 0;
+            int slot = 0;
+
+            while (position < fileSize) {
+                // buffer này đang được pool băm ở vòng trước -> chờ xong mới ghi đè
+                joinAll(pending.get(slot));
+
+                byte[] buf = buffers[slot];
+                int len = (int) Math.min(windowBytes, fileSize - position);
+                readFully(fc, ByteBuffer.wrap(buf, 0, len), position);
+
+                List<ForkJoinTask<?>> tasks = pending.get(slot);
+                for (int off = 0; off < len; off += chunkSize) {
+                    final int index = chunkIndex++;
+                    final int chunkOff = off;
+                    final int chunkLen = Math.min(chunkSize, len - off);
+                    tasks.add(pool.submit(() -> {
+                        chunkHashes[index] = FileHashUtil.hash(algorithm, buf, chunkOff, chunkLen);
+                    }));
+                }
+
+                // hash cả file bắt buộc tuần tự, chạy song song với việc pool băm các chunk
+                whole.update(buf, 0, len);
+
+                position += len;
+                slot ^= 1;
+            }
+            joinAll(pending.get(0));
+            joinAll(pending.get(1));
+
+            if (Files.getLastModifiedTime(file).toMillis() != lastModified || fc.size() != fileSize) {
+                throw new IOException("File changed while hashing: " + file.getFileName());
+            }
+
+            return new FileManifest(fileSize, lastModified, chunkSize, algorithm,
+                    FileHashUtil.toHex(whole.digest()), Arrays.asList(chunkHashes));
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = fc.read(dst, position);
+            if (n < 0) throw new EOFException("File truncated while hashing");
+            position += n;
+        }
+    }
+
+    private static void joinAll(List<ForkJoinTask<?>> tasks) {
+        for (ForkJoinTask<?> t : tasks) {
+            t.join();
+        }
+        tasks.clear();
+    }
+}
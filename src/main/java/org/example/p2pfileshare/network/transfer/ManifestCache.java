@@ -0,0 +1,258 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache manifest (hash cả file + hash từng chunk) cho thư mục share.
+ *
+ * Key = đường dẫn file + chunk size + thuật toán băm, hợp lệ khi size + lastModified không đổi.
+ * Giữ 1 phần trong RAM (LRU) và ghi sidecar vào {@code <share>/.p2pshare/manifests/}
+ * để restart app không phải băm lại file lớn.
+ */
+public class ManifestCache {
+
+    /** Thư mục index nằm trong share folder, không được phục vụ cho peer */
+    public static final String INDEX_DIR = ".p2pshare";
+
+    private static final int MAGIC = 0x50324D46; // "P2MF"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_IN_MEMORY = 64;
+
+    private final Path root;
+    private final Path manifestDir;
+
+    // LRU: manifest file lớn có thể vài MB, không giữ hết trong RAM
+    private final Map<Key, FileManifest> memory = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, FileManifest> eldest) {
+                    return size() > MAX_IN_MEMORY;
+                }
+            });
+
+    // nhiều peer cùng hỏi 1 file chưa có manifest -> chỉ băm 1 lần
+    private final Map<Key, CompletableFuture<FileManifest>> computing = new ConcurrentHashMap<>();
+
+    // 1 file có thể có manifest theo nhiều chunk size (peer cũ 1 MB, peer mới tự chọn) và nhiều thuật toán
+    private record Key(Path file, int chunkSize, HashAlgorithm algorithm) {}
+
+    public ManifestCache(Path root) {
+        this.root = root;
+        this.manifestDir = root.resolve(INDEX_DIR).resolve("manifests");
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /** File nằm trong thư mục index -> không share ra ngoài */
+    public boolean isIndexPath(Path file) {
+        return file.startsWith(root.resolve(INDEX_DIR));
+    }
+
+    /**
+     * Lấy manifest hợp lệ cho file, chưa có (hoặc file đã đổi) thì băm và lưu lại.
+     */
+    public FileManifest getOrCompute(Path file, int chunkSize) throws IOException {
+        return getOrCompute(file, chunkSize, HashAlgorithm.SHA_256);
+    }
+
+    public FileManifest getOrCompute(Path file, int chunkSize, HashAlgorithm algorithm) throws IOException {
+        return getOrCompute(file, Files.size(file), Files.getLastModifiedTime(file).toMillis(), chunkSize, algorithm);
+    }
+
+    /** Như {@link #getOrCompute(Path, int)} khi đã có sẵn size + mtime của file */
+    public FileManifest getOrCompute(Path file, long size, long mtime, int chunkSize) throws IOException {
+        return getOrCompute(file, size, mtime, chunkSize, HashAlgorithm.SHA_256);
+    }
+
+    public FileManifest getOrCompute(Path file, long size, long mtime, int chunkSize,
+                                     HashAlgorithm algorithm) throws IOException {
+        FileManifest cached = lookup(file, size, mtime, chunkSize, algorithm);
+        if (cached != null) return cached;
+
+        Key key = new Key(file, chunkSize, algorithm);
+        CompletableFuture<FileManifest> mine = new CompletableFuture<>();
+        CompletableFuture<FileManifest> existing = computing.putIfAbsent(key, mine);
+        if (existing != null) {
+            FileManifest m = await(existing);
+            if (m.matches(size, mtime) && m.getChunkSize() == chunkSize) return m;
+            return getOrCompute(file, chunkSize, algorithm);
+        }
+
+        try {
+            FileManifest m = compute(file, chunkSize, algorithm);
+            memory.put(key, m);
+            store(file, m);
+            mine.complete(m);
+            return m;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            computing.remove(key, mine);
+        }
+    }
+
+    /**
+     * Chỉ lấy manifest đã có (RAM hoặc sidecar), không băm.
+     *
+     * @return null nếu chưa có hoặc file đã đổi
+     */
+    public FileManifest getIfValid(Path file, long size, long mtime, int chunkSize) {
+        return getIfValid(file, size, mtime, chunkSize, HashAlgorithm.SHA_256);
+    }
+
+    public FileManifest getIfValid(Path file, long size, long mtime, int chunkSize, HashAlgorithm algorithm) {
+        return lookup(file, size, mtime, chunkSize, algorithm);
+    }
+
+    public void invalidate(Path file) {
+        synchronized (memory) {
+            memory.keySet().removeIf(k -> k.file().equals(file));
+        }
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            for (int size = FileTransferProtocol.MIN_CHUNK_SIZE; size <= FileTransferProtocol.MAX_CHUNK_SIZE; size <<= 1) {
+                try {
+                    Files.deleteIfExists(sidecarOf(file, size, algorithm));
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    public void clearMemory() {
+        memory.clear();
+    }
+
+    private FileManifest lookup(Path file, long size, long mtime, int chunkSize, HashAlgorithm algorithm) {
+        Key key = new Key(file, chunkSize, algorithm);
+        FileManifest m = memory.get(key);
+        if (m != null) {
+            if (m.matches(size, mtime)) return m;
+            memory.remove(key);
+        }
+
+        m = load(file, chunkSize, algorithm);
+        if (m != null && m.matches(size, mtime)) {
+            memory.put(key, m);
+            return m;
+        }
+        return null;
+    }
+
+    private FileManifest compute(Path file, int chunkSize, HashAlgorithm algorithm) throws IOException {
+        long start = System.nanoTime();
+        // 1 lượt đọc: hash cả file + hash từng chunk (song song)
+        FileManifest m = ManifestBuilder.build(file, chunkSize, algorithm);
+        System.out.println("[ManifestCache] Hashed " + root.relativize(file) + " chunks=" + m.getTotalChunks()
+                + " (" + algorithm.getId() + ")"
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return m;
+    }
+
+    // ---------------- sidecar ----------------
+
+    // chunk 1 MB giữ tên cũ <hash>.mf để dùng lại sidecar đã có, chunk size khác: <hash>-<chunkSize>.mf,
+    // thuật toán khác SHA-256 thêm -<id thuật toán> (sidecar SHA-256 cũ vẫn đọc được)
+    private Path sidecarOf(Path file, int chunkSize, HashAlgorithm algorithm) {
+        String rel = root.relativize(file).toString().replace('\\', '/');
+        String name = FileHashUtil.sha256(rel.getBytes(StandardCharsets.UTF_8));
+        if (chunkSize != FileTransferProtocol.LEGACY_CHUNK_SIZE) name += "-" + chunkSize;
+        if (algorithm != HashAlgorithm.SHA_256) name += "-" + algorithm.getId();
+        return manifestDir.resolve(name + ".mf");
+    }
+
+    private FileManifest load(Path file, int expectedChunkSize, HashAlgorithm algorithm) {
+        Path sidecar = sidecarOf(file, expectedChunkSize, algorithm);
+        if (!Files.exists(sidecar)) return null;
+
+        String rel = root.relativize(file).toString().replace('\\', '/');
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+            if (!rel.equals(in.readUTF())) return null;
+
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            int chunkSize = in.readInt();
+            if (chunkSize != expectedChunkSize) return null;
+            String fileSha256 = in.readUTF();
+            int totalChunks = in.readInt();
+
+            List<String> chunkHashes = new ArrayList<>(totalChunks);
+            for (int i = 0; i < totalChunks; i++) {
+                chunkHashes.add(in.readUTF());
+            }
+            return new FileManifest(fileSize, lastModified, chunkSize, algorithm, fileSha256, chunkHashes);
+        } catch (IOException e) {
+            // sidecar hỏng -> bỏ, lần sau băm lại
+            System.err.println("[ManifestCache] Drop broken sidecar " + sidecar.getFileName() + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(sidecar);
+            } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    private void store(Path file, FileManifest m) {
+        Path sidecar = sidecarOf(file, m.getChunkSize(), m.getAlgorithm());
+        String rel = root.relativize(file).toString().replace('\\', '/');
+        try {
+            ensureIndexDir();
+            // ghi file tạm rồi move -> không để lại sidecar ghi dở
+            Path tmp = Files.createTempFile(manifestDir, "mf", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(rel);
+                out.writeLong(m.getFileSize());
+                out.writeLong(m.getLastModified());
+                out.writeInt(m.getChunkSize());
+                out.writeUTF(m.getFileSha256());
+                out.writeInt(m.getTotalChunks());
+                for (String h : m.getChunkHashes()) {
+                    out.writeUTF(h);
+                }
+            }
+            try {
+                Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // thư mục share chỉ đọc -> vẫn dùng được cache trong RAM
+            System.err.println("[ManifestCache] Cannot write sidecar for " + rel + ": " + e.getMessage());
+        }
+    }
+
+    private void ensureIndexDir() throws IOException {
+        if (Files.isDirectory(manifestDir)) return;
+        Files.createDirectories(manifestDir);
+        try {
+            // Windows: ẩn thư mục index khỏi Explorer
+            Files.setAttribute(root.resolve(INDEX_DIR), "dos:hidden", true);
+        } catch (UnsupportedOperationException | IOException ignored) {}
+    }
+
+    private static FileManifest await(CompletableFuture<FileManifest> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for manifest");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.BinaryFrames;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine non-blocking cho ChunkedFileServer: vài thread I/O (mỗi thread 1 Selector)
+ * phục vụ hàng nghìn kết nối cùng lúc.
+ *
+ * - 1 thread accept, chia kết nối round-robin cho các I/O loop.
+ * - I/O loop đọc request (frame writeUTF: 2 byte độ dài + dữ liệu, hoặc frame bin1 nếu session thống nhất),
+ *   ghi reply khi socket OP_WRITE.
+ * - Việc đụng tới disk (mở file, băm manifest) chạy trên worker pool nhỏ để không chặn selector.
+ *
+ * Giao thức giống hệt engine blocking: 1 request / kết nối cho peer cũ, hoặc session pipeline.
+ * Kết nối hết token băng thông thì tạm bỏ OP_WRITE và được loop đánh thức lại khi tới hạn.
+ * Kết nối chưa được {@link AdmissionControl} nhận thì chỉ đọc giữ request, bị từ chối thì trả BUSY.
+ */
+final class NioTransferEngine {
+
+    // số request pipeline tối đa đọc sẵn cho 1 kết nối, vượt thì tạm ngừng OP_READ
+    private static final int MAX_PENDING_REQUESTS = 64;
+    // frame writeUTF tối đa 2 + 65535 byte, frame bin1 tối đa 1 + 3 (varint) + 65535
+    private static final int MAX_FRAME = 4 + BinaryFrames.MAX_REQUEST_PAYLOAD;
+    private static final long SESSION_IDLE_TIMEOUT_MS = 60_000;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final int port;
+    private final TransferRequestHandler handler;
+    private final BandwidthLimiter limiter;
+    private final AdmissionControl admission;
+    private final int ioThreads;
+    private final int workerThreads;
+
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private IoLoop[] loops;
+    private ExecutorService workers;
+
+    NioTransferEngine(int port, TransferRequestHandler handler, BandwidthLimiter limiter,
+                      AdmissionControl admission, int ioThreads, int workerThreads) {
+        this.port = port;
+        this.handler = handler;
+        this.limiter = limiter;
+        this.admission = admission;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.workerThreads = Math.max(1, workerThreads);
+    }
+
+    void start() throws IOException {
+        running = true;
+
+        AtomicInteger workerId = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "chunked-nio-worker-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread t = new Thread(loops[i], "chunked-nio-io-" + i);
+            t.setDaemon(true);
+            loops[i].thread = t;
+            t.start();
+        }
+
+        acceptThread = new Thread(this::acceptLoop, "chunked-nio-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        System.out.println("[ChunkedFileServer] NIO engine listening on port " + port
+                + " (io=" + ioThreads + ", workers=" + workerThreads + ")");
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+
+        if (loops != null) {
+            for (IoLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+            for (IoLoop loop : loops) {
+                try {
+                    loop.thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (workers != null) {
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (acceptThread != null && acceptThread.isAlive()) {
+            try {
+                acceptThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel ch = serverChannel.accept();
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> loop.register(ch));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("[ChunkedFileServer] NIO accept() error: " + e.getMessage());
+                }
+            }
+        }
+        System.out.println("[ChunkedFileServer] NIO accept loop exited");
+    }
+
+    // ================= I/O loop =================
+
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // kết nối đang chờ token băng thông
+        private final List<Connection> throttled = new ArrayList<>();
+        private Thread thread;
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /** Chạy task trên thread của loop (mọi thay đổi trạng thái Connection đều ở đây) */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                String peerKey = ChunkedFileServer.peerKey(ch);
+                Connection conn = new Connection(this, ch, key, limiter.open(peerKey));
+                key.attach(conn);
+                conn.ticket = admission.tryEnter(peerKey,
+                        t -> execute(conn::admit),
+                        () -> execute(conn::reject));
+                if (conn.ticket == null) conn.reject();
+            } catch (IOException e) {
+                closeQuietly(ch);
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(selectTimeoutMs());
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection conn = (Connection) key.attachment();
+                        if (conn == null || !key.isValid()) continue;
+                        try {
+                            if (key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException | RuntimeException e) {
+                            conn.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+
+                    resumeThrottled();
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SELECT_TIMEOUT_MS) {
+                        closeIdle(now);
+                        lastSweep = now;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) System.err.println("[ChunkedFileServer] NIO loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    Connection conn = (Connection) key.attachment();
+                    if (conn != null) conn.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        void throttle(Connection conn, long delayNanos) {
+            conn.resumeAt = System.nanoTime() + delayNanos;
+            if (!conn.throttled) {
+                conn.throttled = true;
+                throttled.add(conn);
+            }
+        }
+
+        private long selectTimeoutMs() {
+            if (throttled.isEmpty()) return SELECT_TIMEOUT_MS;
+            long now = System.nanoTime();
+            long earliest = Long.MAX_VALUE;
+            for (Connection conn : throttled) {
+                earliest = Math.min(earliest, conn.resumeAt - now);
+            }
+            // select(0) = chờ mãi, nên tối thiểu 1 ms
+            return Math.max(1, Math.min(SELECT_TIMEOUT_MS, TimeUnit.NANOSECONDS.toMillis(earliest)));
+        }
+
+        private void resumeThrottled() {
+            if (throttled.isEmpty()) return;
+            long now = System.nanoTime();
+            List<Connection> due = new ArrayList<>();
+            throttled.removeIf(conn -> {
+                if (conn.closed || conn.resumeAt - now <= 0) {
+                    conn.throttled = false;
+                    if (!conn.closed) due.add(conn);
+                    return true;
+                }
+                return false;
+            });
+            for (Connection conn : due) {
+                try {
+                    conn.onWritable();
+                } catch (IOException | RuntimeException e) {
+                    conn.close();
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            List<Connection> idle = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (conn != null && conn.isIdleSince(now - SESSION_IDLE_TIMEOUT_MS)) idle.add(conn);
+            }
+            for (Connection conn : idle) conn.close();
+        }
+    }
+
+    // ================= 1 kết nối =================
+
+    private final class Connection {
+        private final IoLoop loop;
+        private final SocketChannel ch;
+        private final SelectionKey key;
+        private final BandwidthLimiter.Lease lease;
+
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private final Deque<Object> pending = new ArrayDeque<>(); // String (text) | BinaryFrames.Frame (bin1)
+
+        private boolean firstRequest = true;
+        private boolean session;      // false = peer cũ: 1 request rồi đóng
+        private SessionOptions options = SessionOptions.LEGACY;
+        private boolean closeAfterReply;
+        private boolean busy;         // request đang xử lý trên worker
+        private TransferReply current;
+        private boolean closed;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean throttled;    // hết token, chờ loop gọi lại onWritable
+        private long resumeAt;
+        private AdmissionControl.Ticket ticket;
+        private boolean admitted;     // false = đang chờ lượt, request đọc được giữ ở early
+        private boolean rejected;     // quá tải -> trả BUSY cho request đầu rồi đóng
+        private final List<String> early = new ArrayList<>();
+
+        Connection(IoLoop loop, SocketChannel ch, SelectionKey key, BandwidthLimiter.Lease lease) {
+            this.loop = loop;
+            this.ch = ch;
+            this.key = key;
+            this.lease = lease;
+        }
+
+        void onReadable() throws IOException {
+            int n = ch.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            parseFrames();
+            advance();
+        }
+
+        void onWritable() throws IOException {
+            if (current == null || throttled) {
+                updateInterest();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (!current.writeTo(ch, lease)) {
+                long delay = current.throttleDelayNanos();
+                if (delay > 0) {
+                    // hết token -> bỏ OP_WRITE, loop gọi lại khi tới hạn
+                    loop.throttle(this, delay);
+                }
+                // socket đầy -> chờ OP_WRITE (reply vừa tới từ worker có thể chưa đăng ký)
+                updateInterest();
+                return;
+            }
+
+            current.close();
+            current = null;
+            if (closeAfterReply && pending.isEmpty()) {
+                close();
+                return;
+            }
+            advance();
+        }
+
+        private void parseFrames() throws IOException {
+            in.flip();
+            while (in.remaining() >= 2) {
+                // framing có thể đổi ngay sau SESSION_OPEN -> xét lại từng frame
+                if (options.isBinary()) {
+                    int frameLen = BinaryFrames.frameLength(in);
+                    if (frameLen < 0 || in.remaining() < frameLen) break;
+
+                    byte[] frame = new byte[frameLen];
+                    in.get(frame);
+                    pending.add(BinaryFrames.readFrame(new DataInputStream(new ByteArrayInputStream(frame))));
+                    continue;
+                }
+
+                int len = ((in.get(in.position()) & 0xFF) << 8) | (in.get(in.position() + 1) & 0xFF);
+                if (in.remaining() < 2 + len) break;
+
+                byte[] frame = new byte[2 + len];
+                in.get(frame);
+                String request = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+                onRequest(request);
+            }
+            in.compact();
+
+            // frame lớn hơn buffer hiện tại -> nới buffer (tối đa 1 frame)
+            if (!in.hasRemaining() && in.capacity() < MAX_FRAME) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_FRAME, in.capacity() * 4));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        /** Tới lượt: xử lý các request đã đọc trong lúc chờ */
+        void admit() {
+            if (closed) return;
+            admitted = true;
+            for (String request : early) onRequest(request);
+            early.clear();
+            advance();
+        }
+
+        /** Quá tải / chờ quá lâu: trả BUSY ngay nếu client đã gửi request, chưa thì chờ request đầu */
+        void reject() {
+            if (closed) return;
+            rejected = true;
+            if (!early.isEmpty()) replyBusy();
+        }
+
+        // đọc hết request client đã gửi rồi mới trả BUSY + đóng, đóng khi còn dữ liệu chưa đọc thì TCP gửi RST
+        private void replyBusy() {
+            early.clear();
+            pending.clear();
+            closeAfterReply = true;
+            current = TransferReply.busy(admission.retryAfterMs());
+            updateInterest();
+        }
+
+        private void onRequest(String request) {
+            if (!admitted) {
+                if (rejected) {
+                    if (current == null) replyBusy();
+                } else if (early.size() < MAX_PENDING_REQUESTS) {
+                    early.add(request);
+                }
+                return;
+            }
+            if (firstRequest) {
+                firstRequest = false;
+                FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(request);
+                if (cmd != null && FileTransferProtocol.SESSION_OPEN.equals(cmd.command)) {
+                    session = true;
+                    options = handler.negotiate(cmd);
+                    current = options.ack();
+                    return;
+                }
+                // peer cũ: phục vụ đúng 1 request rồi đóng
+                closeAfterReply = true;
+                pending.add(request);
+                return;
+            }
+            if (session) pending.add(request);
+        }
+
+        /** Lấy request kế tiếp (nếu đang rảnh) và đẩy sang worker */
+        private void advance() {
+            if (closed) return;
+            if (current == null && !busy) {
+                Object request = pending.poll();
+                if (request != null) {
+                    TransferRequest req = request instanceof BinaryFrames.Frame frame
+                            ? options.decode(frame)
+                            : TransferRequest.parse((String) request);
+                    if (req == null) {
+                        current = options.error("Invalid command");
+                    } else if (req instanceof TransferRequest.Close) {
+                        close();
+                        return;
+                    } else {
+                        dispatch(req);
+                    }
+                }
+            }
+            updateInterest();
+        }
+
+        private void dispatch(TransferRequest request) {
+            busy = true;
+            SessionOptions opts = options;
+            try {
+                workers.execute(() -> {
+                    TransferReply reply;
+                    try {
+                        reply = handler.handle(request, opts);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("[ChunkedFileServer] Client error: " + e.getMessage());
+                        loop.execute(this::close);
+                        return;
+                    }
+                    loop.execute(() -> onReply(reply));
+                });
+            } catch (RejectedExecutionException e) {
+                // server đang dừng
+                close();
+            }
+        }
+
+        private void onReply(TransferReply reply) {
+            busy = false;
+            if (closed) {
+                reply.close();
+                return;
+            }
+            current = reply;
+            try {
+                // thử ghi ngay, phần lớn reply nhỏ ghi xong luôn không cần chờ OP_WRITE
+                onWritable();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid()) return;
+            int ops = 0;
+            boolean acceptMore = session ? pending.size() < MAX_PENDING_REQUESTS : firstRequest;
+            if (acceptMore) ops |= SelectionKey.OP_READ;
+            if (current != null && !throttled) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        boolean isIdleSince(long deadline) {
+            return !busy && current == null && lastActivity < deadline;
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            pending.clear();
+            lease.close();
+            if (ticket != null) ticket.close();
+            key.cancel();
+            closeQuietly(ch);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,238 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Cache FileChannel (chỉ đọc) đang mở + thuộc tính file đã kiểm tra, cho 1 share folder.
+ *
+ * GET_CHUNK liên tục vào vài file nóng không phải resolve/normalize path, exists/isDirectory/size,
+ * mở rồi đóng file mỗi lần nữa. FileChannel đọc theo vị trí (read/transferTo có position)
+ * nên nhiều request dùng chung 1 channel được.
+ *
+ * - LRU giới hạn số file mở; entry bị đẩy ra chỉ đóng channel khi không còn ai dùng.
+ * - Kiểm tra lại thuộc tính (1 lần readAttributes) tối đa mỗi {@link #REVALIDATE_NANOS}:
+ *   size / mtime / fileKey đổi (file bị sửa hoặc thay thế) thì mở lại.
+ * - Đổi share folder thì bỏ cả cache ({@link #close()}).
+ */
+final class OpenFileCache implements Closeable {
+
+    static final int DEFAULT_MAX_OPEN = 128;
+    private static final long REVALIDATE_NANOS = 1_000_000_000L;
+
+    private final Path root;
+    private final Path indexDir;
+    private final int maxOpen;
+    private boolean closed;
+
+    // access-order -> phần tử đầu là file lâu nhất chưa dùng
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    OpenFileCache(Path root) {
+        this(root, DEFAULT_MAX_OPEN);
+    }
+
+    OpenFileCache(Path root, int maxOpen) {
+        this.root = root;
+        this.indexDir = root.resolve(ManifestCache.INDEX_DIR);
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Lấy file đang share theo tên peer gửi lên.
+     *
+     * @return null nếu ra ngoài root / là thư mục index / không tồn tại / là thư mục;
+     *         handle phải close() khi dùng xong
+     */
+    Handle acquire(String fileName) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            if (closed) throw new IOException("Share folder changed");
+            entry = entries.get(fileName);
+            if (entry != null) {
+                if (System.nanoTime() - entry.validatedAt < REVALIDATE_NANOS) {
+                    entry.refs++;
+                    return new Handle(entry);
+                }
+            }
+        }
+
+        if (entry != null) {
+            BasicFileAttributes attrs = readAttributes(entry.path);
+            synchronized (this) {
+                if (attrs != null && entry.matches(attrs) && !entry.retired) {
+                    entry.validatedAt = System.nanoTime();
+                    entry.refs++;
+                    return new Handle(entry);
+                }
+                // file đã sửa / bị thay / bị xoá
+                if (entries.get(fileName) == entry) entries.remove(fileName);
+                retire(entry);
+            }
+            if (attrs == null || !attrs.isRegularFile()) return null;
+            return open(fileName, entry.path, attrs);
+        }
+
+        Path path = root.resolve(fileName).normalize();
+        if (!path.startsWith(root) || path.startsWith(indexDir)) return null;
+        BasicFileAttributes attrs = readAttributes(path);
+        if (attrs == null || !attrs.isRegularFile()) return null;
+        return open(fileName, path, attrs);
+    }
+
+    /** Bỏ entry của file (vd biết chắc file vừa bị ghi đè) */
+    synchronized void invalidate(String fileName) {
+        Entry entry = entries.remove(fileName);
+        if (entry != null) retire(entry);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Đóng mọi channel không còn dùng, channel đang gửi dở đóng khi handle cuối được trả */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Entry entry : entries.values()) {
+            retire(entry);
+        }
+        entries.clear();
+    }
+
+    private Handle open(String fileName, Path path, BasicFileAttributes attrs) throws IOException {
+        FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+        Entry fresh = new Entry(path, fc, attrs);
+
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(fc);
+                throw new IOException("Share folder changed");
+            }
+            Entry existing = entries.get(fileName);
+            if (existing != null && !existing.retired && existing.matches(attrs)) {
+                // thread khác vừa mở cùng file
+                closeQuietly(fc);
+                existing.refs++;
+                return new Handle(existing);
+            }
+            if (existing != null) retire(existing);
+
+            fresh.refs = 1;
+            entries.put(fileName, fresh);
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxOpen && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest == fresh) continue;
+                it.remove();
+                evicted.add(eldest);
+            }
+            for (Entry e : evicted) retire(e);
+        }
+        return new Handle(fresh);
+    }
+
+    // gọi trong synchronized
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (entry.refs == 0) closeQuietly(entry.channel);
+    }
+
+    private synchronized void release(Entry entry) {
+        if (--entry.refs == 0 && entry.retired) {
+            closeQuietly(entry.channel);
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(FileChannel fc) {
+        try {
+            fc.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static final class Entry {
+        final Path path;
+        final FileChannel channel;
+        final long size;
+        final long lastModified;
+        final Object fileKey;
+        long validatedAt;
+        int refs;
+        boolean retired;
+
+        Entry(Path path, FileChannel channel, BasicFileAttributes attrs) {
+            this.path = path;
+            this.channel = channel;
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+            this.fileKey = attrs.fileKey();
+            this.validatedAt = System.nanoTime();
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return attrs.isRegularFile()
+                    && attrs.size() == size
+                    && attrs.lastModifiedTime().toMillis() == lastModified
+                    && Objects.equals(attrs.fileKey(), fileKey);
+        }
+    }
+
+    /** 1 lần dùng file từ cache, close() để trả (không đóng channel) */
+    final class Handle implements Closeable {
+        private final Entry entry;
+        private boolean released;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        Path getPath() {
+            return entry.path;
+        }
+
+        FileChannel getChannel() {
+            return entry.channel;
+        }
+
+        /** size / mtime lúc kiểm tra gần nhất */
+        long getSize() {
+            return entry.size;
+        }
+
+        long getLastModified() {
+            return entry.lastModified;
+        }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            release(entry);
+        }
+    }
+}
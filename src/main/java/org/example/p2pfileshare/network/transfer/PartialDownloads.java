@@ -0,0 +1,195 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * File đang tải dở trên máy này, để ChunkedFileServer phục vụ lại cho peer khác từ .part
+ * (cả lớp cùng tải 1 file lớn thì file lan theo cây, không dồn hết vào người share gốc).
+ *
+ * Lần tải đăng ký khi đã có .part + DownloadProgress, bỏ đăng ký khi kết thúc (xong / lỗi / huỷ / dừng).
+ * Chỉ chunk đã có trong bitmap mới được đọc ra, và mỗi lần đọc được kiểm lại theo manifest của lần tải
+ * (hash chunk trong manifest, hoặc proof Merkle nhận kèm chunk lúc tải): peer khác nhận đúng hash / proof
+ * của manifest gốc chứ không phải hash tính lại từ những gì đang nằm trong .part.
+ * Gọi theo tên file đã xin bên nguồn (đường dẫn tương đối), file cùng tên có thật trong share folder thì
+ * server ưu tiên file đó.
+ */
+public final class PartialDownloads {
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private PartialDownloads() {}
+
+    /** Chunk đọc từ .part đã khớp manifest, kèm hash chunk (thuật toán của manifest) và proof nếu manifest Merkle */
+    record Chunk(byte[] data, String hash, List<String> proof) {}
+
+    /** 1 file đang tải dở */
+    public static final class Entry {
+        private final String fileName;
+        private final FileMetadata meta;
+        private final Path partFile;
+        private final DownloadProgress progress;
+        // manifest chỉ có gốc Merkle: proof (digest thô, từ lá lên) nhận kèm chunk trong lần tải này.
+        // Chunk không có proof (có từ lần tải trước, tải qua nguồn không Merkle) thì không phục vụ được
+        private final Map<Integer, byte[][]> proofs = new ConcurrentHashMap<>();
+        // .part mở 1 lần cho mọi chunk phục vụ (như OpenFileCache), đóng khi bỏ đăng ký
+        private FileChannel channel;
+        private boolean closed;
+
+        private Entry(String fileName, FileMetadata meta, Path partFile, DownloadProgress progress) {
+            this.fileName = fileName;
+            this.meta = meta;
+            this.partFile = partFile;
+            this.progress = progress;
+        }
+
+        /** Tên file bên nguồn (đường dẫn tương đối trong share folder của nguồn) */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getFileSize() {
+            return meta.getFileSize();
+        }
+
+        public double getProgressPercent() {
+            return progress.getProgressPercent();
+        }
+
+        FileMetadata getMeta() {
+            return meta;
+        }
+
+        /** Ghi nhận proof của chunk vừa nhận, gọi trước khi chunk được đánh dấu xong trong bitmap */
+        void addProof(int chunkIndex, List<String> proof) {
+            if (!meta.isMerkle() || proof == null) return;
+            byte[][] raw = new byte[proof.size()][];
+            for (int i = 0; i < raw.length; i++) raw[i] = FileHashUtil.fromHex(proof.get(i));
+            proofs.put(chunkIndex, raw);
+        }
+
+        /** Bản chụp các chunk phục vụ được: đã có trong bitmap, manifest Merkle thì phải có proof */
+        BitSet chunks() {
+            BitSet chunks = progress.getCompletedChunksBitSet();
+            if (meta.isMerkle()) {
+                for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+                    if (!proofs.containsKey(i)) chunks.clear(i);
+                }
+            } else if (meta.getChunkHashes().isEmpty()) {
+                chunks.clear();
+            }
+            return chunks;
+        }
+
+        /**
+         * Đọc 1 chunk đã tải xong từ .part và kiểm lại theo manifest.
+         *
+         * @return null nếu chunk chưa có (hoặc ngoài file, .part không còn), không có proof, hoặc không khớp manifest
+         */
+        Chunk readChunk(int chunkIndex) {
+            if (chunkIndex < 0 || chunkIndex >= meta.getTotalChunks() || !progress.isChunkComplete(chunkIndex)) {
+                return null;
+            }
+            byte[][] proof = proofs.get(chunkIndex);
+            if (meta.isMerkle() ? proof == null : meta.getChunkHashes().isEmpty()) return null;
+            long offset = (long) chunkIndex * meta.getChunkSize();
+            int len = (int) Math.min(meta.getChunkSize(), meta.getFileSize() - offset);
+            byte[] data = new byte[len];
+            // lần tải kết thúc (đổi tên / xoá .part) thì channel bị đóng: đọc lỗi = không phục vụ
+            try {
+                FileChannel fc = channel();
+                ByteBuffer dst = ByteBuffer.wrap(data);
+                while (dst.hasRemaining()) {
+                    int n = fc.read(dst, offset + dst.position());
+                    if (n < 0) throw new EOFException("Part file truncated");
+                }
+            } catch (IOException e) {
+                // client nhận CHUNK_ERROR rồi lấy chunk ở nguồn khác, session vẫn dùng tiếp được
+                System.err.println("[PartialDownloads] Cannot read chunk " + chunkIndex + " of " + fileName + ": "
+                        + e.getMessage());
+                return null;
+            }
+            Chunk chunk = verify(chunkIndex, data, proof);
+            if (chunk == null) {
+                System.err.println("[PartialDownloads] Chunk " + chunkIndex + " of " + fileName
+                        + " does not match manifest, not served");
+            }
+            return chunk;
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if (closed) throw new ClosedChannelException();
+            // thread đọc bị interrupt thì channel tự đóng: mở lại cho request sau
+            if (channel == null || !channel.isOpen()) channel = FileChannel.open(partFile, StandardOpenOption.READ);
+            return channel;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
+
+        private Chunk verify(int chunkIndex, byte[] data, byte[][] rawProof) {
+            if (meta.isMerkle()) {
+                List<String> proof = new ArrayList<>(rawProof.length);
+                for (byte[] h : rawProof) proof.add(FileHashUtil.toHex(h));
+                byte[] leaf = FileHashUtil.digest(HashAlgorithm.SHA_256, data, 0, data.length);
+                if (!MerkleTree.verify(leaf, chunkIndex, meta.getTotalChunks(), proof, meta.getMerkleRoot())) {
+                    return null;
+                }
+                return new Chunk(data, FileHashUtil.toHex(leaf), proof);
+            }
+            String expected = meta.getChunkHashes().get(chunkIndex);
+            byte[] actual = FileHashUtil.digest(meta.getHashAlgorithm(), data, 0, data.length);
+            return FileHashUtil.matches(actual, expected) ? new Chunk(data, expected, null) : null;
+        }
+    }
+
+    /**
+     * Đăng ký 1 lần tải, gọi {@link #unregister(Entry)} khi lần tải kết thúc.
+     *
+     * @return null nếu file này đang được 1 lần tải khác phục vụ (lần đó giữ tới khi kết thúc)
+     */
+    static Entry register(String fileName, FileMetadata meta, Path partFile, DownloadProgress progress) {
+        Entry e = new Entry(fileName, meta, partFile, progress);
+        return entries.putIfAbsent(fileName, e) == null ? e : null;
+    }
+
+    static void unregister(Entry e) {
+        if (e == null) return;
+        entries.remove(e.fileName, e);
+        e.close();
+    }
+
+    /** @return null nếu không tải dở file này */
+    static Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /** Các file đang tải dở để quảng bá cho peer khác (LIST_FILES / SEARCH) */
+    public static List<Entry> list() {
+        return new ArrayList<>(entries.values());
+    }
+}
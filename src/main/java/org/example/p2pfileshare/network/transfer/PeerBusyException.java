@@ -0,0 +1,23 @@
+package org.example.p2pfileshare.network.transfer;
+
+import java.io.IOException;
+
+/**
+ * Server trả BUSY (quá tải): không phải lỗi của file hay mạng,
+ * client nên chờ {@link #getRetryAfterMs()} rồi kết nối lại.
+ */
+public class PeerBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterMs;
+
+    public PeerBusyException(String reason, int retryAfterMs) {
+        super(reason + " (retry after " + retryAfterMs + " ms)");
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public int getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
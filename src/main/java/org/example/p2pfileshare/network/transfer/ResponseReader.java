@@ -0,0 +1,90 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.BinaryFrames;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Đọc field của response theo framing của session: text (readUTF/readInt/...) hoặc bin1
+ * (opcode, varint, digest thô...). Phía đọc tương ứng với các hàm ghi của {@link TransferReply}.
+ */
+final class ResponseReader {
+
+    private final DataInputStream in;
+    private final boolean binary;
+    // bin1: file ID của FILE_META_RESPONSE vừa đọc
+    private int lastFileId = -1;
+
+    ResponseReader(DataInputStream in, boolean binary) {
+        this.in = in;
+        this.binary = binary;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    DataInputStream stream() {
+        return in;
+    }
+
+    /** Loại response, bin1 cũng trả về tên như bản text */
+    String type() throws IOException {
+        return binary ? BinaryFrames.responseType(in.readUnsignedByte()) : in.readUTF();
+    }
+
+    int int32() throws IOException {
+        return binary ? BinaryFrames.readVarInt(in) : in.readInt();
+    }
+
+    long int64() throws IOException {
+        return binary ? BinaryFrames.readVarLong(in) : in.readLong();
+    }
+
+    /** Hash SHA-256 dạng hex */
+    String hash() throws IOException {
+        return binary ? BinaryFrames.readDigest(in) : in.readUTF();
+    }
+
+    /** Hash dạng hex theo thuật toán đã thống nhất cho file (bin1 cần biết độ dài digest) */
+    String hash(HashAlgorithm algorithm) throws IOException {
+        return binary ? BinaryFrames.readDigest(in, algorithm.getDigestLength()) : in.readUTF();
+    }
+
+    /** Như {@link #hash(HashAlgorithm)} nhưng trả digest thô để so sánh, bin1 không qua hex */
+    byte[] digest(HashAlgorithm algorithm) throws IOException {
+        if (!binary) {
+            String hex = in.readUTF();
+            try {
+                return FileHashUtil.fromHex(hex);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid hash: " + hex);
+            }
+        }
+        byte[] raw = new byte[algorithm.getDigestLength()];
+        in.readFully(raw);
+        return raw;
+    }
+
+    String text() throws IOException {
+        return binary ? BinaryFrames.readString(in) : in.readUTF();
+    }
+
+    void readFully(byte[] b) throws IOException {
+        in.readFully(b);
+    }
+
+    /** Ô tên file của FILE_META_RESPONSE: text là tên, bin1 là file ID (giữ lại cho request sau) */
+    String fileRef(String requestedName) throws IOException {
+        if (!binary) return in.readUTF();
+        lastFileId = BinaryFrames.readVarInt(in);
+        return requestedName;
+    }
+
+    int lastFileId() {
+        return lastFileId;
+    }
+}
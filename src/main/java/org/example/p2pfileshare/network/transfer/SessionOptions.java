@@ -0,0 +1,223 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.BinaryFrames;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.HashAlgorithm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tuỳ chọn đã thống nhất lúc SESSION_OPEN cho 1 kết nối.
+ * Kết nối 1 lần (peer cũ) dùng {@link #LEGACY}: không nén, framing text.
+ *
+ * Session framing nhị phân còn giữ bảng file ID đã cấp trong META_RESPONSE
+ * (request sau chỉ gửi ID thay cho tên file + chunk size).
+ * Session cũng nhớ file nào client đã nhận metadata dạng Merkle để gửi kèm proof mỗi chunk,
+ * và thuật toán băm đã thống nhất cho từng file (chưa xin metadata thì SHA-256).
+ */
+final class SessionOptions {
+
+    static final SessionOptions LEGACY = new SessionOptions(1, false, false, false, false);
+
+    // version client gửi trong SESSION_OPEN
+    private final int clientVersion;
+    // client có gửi danh sách codec -> server phải trả codec đã chọn trong SESSION_ACK
+    private final boolean codecOffered;
+    private final boolean compress;
+    // client có gửi framing -> server trả framing đã chọn sau codec
+    private final boolean framingOffered;
+    private final boolean binary;
+
+    // file ID - 1 -> file + chunk size, chỉ dùng khi binary (request trong 1 session xử lý lần lượt)
+    private final List<FileRef> files = new ArrayList<>();
+    private final Map<FileRef, Integer> fileIds = new HashMap<>();
+    // file + chunk size đã trả FILE_META_ROOT -> chunk gửi kèm CHUNK_PROOF
+    private final Set<FileRef> proofFiles = new HashSet<>();
+    // file + chunk size -> thuật toán băm khác SHA-256 đã trả trong FILE_META_RESPONSE
+    private final Map<FileRef, HashAlgorithm> hashAlgorithms = new HashMap<>();
+
+    private record FileRef(String fileName, int chunkSize) {}
+
+    private SessionOptions(int clientVersion, boolean codecOffered, boolean compress, boolean framingOffered,
+                           boolean binary) {
+        this.clientVersion = clientVersion;
+        this.codecOffered = codecOffered;
+        this.compress = compress;
+        this.framingOffered = framingOffered;
+        this.binary = binary;
+    }
+
+    /** Đọc SESSION_OPEN|version[|codec[|framing]], chỉ bật nén khi client đề nghị và server cho phép */
+    static SessionOptions negotiate(FileTransferProtocol.ParsedCommand open, boolean compressionAllowed) {
+        int version;
+        try {
+            version = Integer.parseInt(open.get(1));
+        } catch (NumberFormatException e) {
+            version = 1;
+        }
+        String codec = open.get(2);
+        // session không đề nghị gì vẫn cần trạng thái riêng (proof, file ID), LEGACY chỉ cho kết nối 1 lần
+        if (codec == null) return new SessionOptions(version, false, false, false, false);
+        boolean deflate = compressionAllowed && FileTransferProtocol.CODEC_DEFLATE.equals(codec);
+        String framing = open.get(3);
+        boolean binary = BinaryFrames.FRAMING_BIN1.equals(framing);
+        return new SessionOptions(version, true, deflate, framing != null, binary);
+    }
+
+    /** Client đọc được FILE_META_PARTIAL: được phục vụ file đang tải dở (session v9+) */
+    boolean acceptsPartial() {
+        return clientVersion >= 9;
+    }
+
+    boolean isCompress() {
+        return compress;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /** false với kết nối 1 lần của peer cũ: không có session để nhớ trạng thái */
+    boolean isSession() {
+        return this != LEGACY;
+    }
+
+    /** Reply rỗng theo framing của session */
+    TransferReply reply() {
+        return new TransferReply(binary);
+    }
+
+    TransferReply error(String reason) {
+        return TransferReply.error(reason, binary);
+    }
+
+    // SESSION_ACK luôn là text: client chỉ biết framing sau khi đọc xong ack
+    TransferReply ack() {
+        TransferReply reply = new TransferReply()
+                .writeUTF(FileTransferProtocol.SESSION_ACK)
+                .writeInt(FileTransferProtocol.SESSION_VERSION);
+        if (codecOffered) {
+            reply.writeUTF(compress ? FileTransferProtocol.CODEC_DEFLATE : FileTransferProtocol.CODEC_NONE);
+        }
+        if (framingOffered) {
+            reply.writeUTF(binary ? BinaryFrames.FRAMING_BIN1 : BinaryFrames.FRAMING_TEXT);
+        }
+        return reply;
+    }
+
+    /** ID cho file + chunk size vừa trả trong META_RESPONSE (cùng cặp thì cùng ID) */
+    synchronized int fileId(String fileName, int chunkSize) {
+        FileRef ref = new FileRef(fileName, chunkSize);
+        Integer id = fileIds.get(ref);
+        if (id == null) {
+            files.add(ref);
+            id = files.size();
+            fileIds.put(ref, id);
+        }
+        return id;
+    }
+
+    /** Từ giờ gửi proof Merkle cùng mỗi chunk của file này */
+    synchronized void enableProofs(String fileName, int chunkSize) {
+        proofFiles.add(new FileRef(fileName, chunkSize));
+    }
+
+    synchronized boolean sendsProofs(String fileName, int chunkSize) {
+        return !proofFiles.isEmpty() && proofFiles.contains(new FileRef(fileName, chunkSize));
+    }
+
+    /** Hash gửi kèm chunk của file này theo thuật toán đã thống nhất ở FILE_META_REQUEST */
+    synchronized void setHashAlgorithm(String fileName, int chunkSize, HashAlgorithm algorithm) {
+        FileRef ref = new FileRef(fileName, chunkSize);
+        if (algorithm == HashAlgorithm.SHA_256) {
+            hashAlgorithms.remove(ref);
+        } else {
+            hashAlgorithms.put(ref, algorithm);
+            // cây Merkle chỉ dựng trên hash SHA-256
+            proofFiles.remove(ref);
+        }
+    }
+
+    synchronized HashAlgorithm hashAlgorithm(String fileName, int chunkSize) {
+        if (hashAlgorithms.isEmpty()) return HashAlgorithm.SHA_256;
+        return hashAlgorithms.getOrDefault(new FileRef(fileName, chunkSize), HashAlgorithm.SHA_256);
+    }
+
+    private synchronized FileRef file(int id) {
+        return id >= 1 && id <= files.size() ? files.get(id - 1) : null;
+    }
+
+    // fileRef: ID đã cấp, hoặc INLINE_FILE_REF + tên + chunk size
+    private FileRef readFileRef(DataInputStream in) throws IOException {
+        int id = BinaryFrames.readVarInt(in);
+        if (id != BinaryFrames.INLINE_FILE_REF) return file(id);
+        String fileName = BinaryFrames.readString(in);
+        int chunkSize = BinaryFrames.readVarInt(in);
+        return new FileRef(fileName, chunkSize);
+    }
+
+    /**
+     * Đọc 1 request nhị phân ra {@link TransferRequest}: file ID thay bằng tên + chunk size đã cấp.
+     *
+     * @return null nếu opcode lạ / payload hỏng / file ID chưa cấp (caller trả "Invalid command")
+     */
+    TransferRequest decode(BinaryFrames.Frame frame) {
+        try {
+            DataInputStream in = frame.payloadStream();
+            switch (frame.opcode()) {
+                case BinaryFrames.OP_META_REQUEST: {
+                    int preferred = BinaryFrames.readVarInt(in);
+                    String fileName = BinaryFrames.readString(in);
+                    int flags = in.available() > 0 ? BinaryFrames.readVarInt(in) : 0;
+                    String algorithms = (flags & BinaryFrames.META_FLAG_HASH_ALGS) != 0
+                            ? BinaryFrames.readString(in) : null;
+                    return new TransferRequest.Meta(fileName, preferred,
+                            (flags & BinaryFrames.META_FLAG_MERKLE) != 0, algorithms);
+                }
+                case BinaryFrames.OP_GET_CHUNK: {
+                    FileRef file = readFileRef(in);
+                    int index = BinaryFrames.readVarInt(in);
+                    if (file == null) return null;
+                    return new TransferRequest.Chunk(file.fileName(), index, file.chunkSize());
+                }
+                case BinaryFrames.OP_GET_CHUNKS: {
+                    FileRef file = readFileRef(in);
+                    int n = BinaryFrames.readVarInt(in);
+                    if (file == null || n <= 0 || n > FileTransferProtocol.MAX_BATCH_CHUNKS) return null;
+                    int[] indexes = new int[n];
+                    for (int i = 0; i < n; i++) indexes[i] = BinaryFrames.readVarInt(in);
+                    return new TransferRequest.Batch(file.fileName(), file.chunkSize(), indexes);
+                }
+                case BinaryFrames.OP_GET_STREAM: {
+                    FileRef file = readFileRef(in);
+                    if (file == null) return null;
+                    return new TransferRequest.Stream(file.fileName(), file.chunkSize());
+                }
+                case BinaryFrames.OP_GET_HAVE: {
+                    FileRef file = readFileRef(in);
+                    if (file == null) return null;
+                    return new TransferRequest.Have(file.fileName(), file.chunkSize());
+                }
+                case BinaryFrames.OP_GET_RANGE: {
+                    long offset = BinaryFrames.zigZagDecode(BinaryFrames.readVarLong(in));
+                    int length = BinaryFrames.readVarInt(in);
+                    String fileName = BinaryFrames.readString(in);
+                    return new TransferRequest.Range(fileName, offset, length);
+                }
+                case BinaryFrames.OP_SESSION_CLOSE:
+                    return new TransferRequest.Close();
+                default:
+                    return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
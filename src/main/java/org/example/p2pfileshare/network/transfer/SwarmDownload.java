@@ -0,0 +1,567 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.model.PeerInfo;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.HashAlgorithm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Tải 1 file từ nhiều peer cùng share file đó (swarm), dùng chung .part / .bitmap / .meta.properties
+ * với tải 1 peer nên resume được bằng cả 2 cách.
+ *
+ * - Mỗi nguồn 1 session; nguồn nào trả manifest khác đa số (size, chunk size, thuật toán băm,
+ *   hash cả file) hoặc không khớp manifest đã chọn tới từng chunk (danh sách hash chunk / gốc Merkle)
+ *   thì bị bỏ trước khi tải. Mọi chunk được kiểm theo manifest đó, không theo hash nguồn gửi kèm.
+ * - Mỗi nguồn 1 thread xin chunk qua {@link ChunkScheduler} chung (chunk hiếm trước / tuần tự, endgame).
+ *   Nguồn có thể mới có 1 phần file (GET_HAVE), nguồn như vậy được hỏi lại định kỳ.
+ *   Cỡ mỗi request theo throughput đo được của nguồn đó, nên nguồn nhanh nhận phần lớn file,
+ *   nguồn chậm vẫn góp phần.
+ * - Nguồn rớt giữa chừng: chunk đang bay được trả lại cho nguồn khác, thử kết nối lại vài lần rồi bỏ.
+ *   Chunk còn thiếu cuối cùng tải lại từng chunk, lần lượt qua các nguồn.
+ */
+final class SwarmDownload {
+
+    // kết nối lại 1 nguồn bị rớt tối đa chừng này lần trong cả lần tải
+    private static final int MAX_RECONNECTS = 3;
+    private static final long RECONNECT_DELAY_MS = 500;
+    // mỗi request xin lượng chunk đủ cho khoảng chừng này ms theo throughput của nguồn
+    private static final long TARGET_REQUEST_MS = 250;
+    // số request đang bay trên mỗi nguồn (1 đang nhận, 1 server đã chuẩn bị sẵn)
+    private static final int REQUEST_PIPELINE_DEPTH = 2;
+    // server cũ không có GET_CHUNKS: request = chừng này GET_CHUNK pipeline
+    private static final int MAX_SINGLE_CHUNK_REQUEST = 8;
+    // nguồn trả quá chừng này chunk sai hash thì bỏ (lỗi đĩa / gửi dữ liệu bậy)
+    private static final int MAX_BAD_CHUNKS = 8;
+    // hệ số EWMA cho throughput, mẫu mới chiếm chừng này
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+    // hết chunk để nhận nhưng nguồn khác còn đang tải: chờ chừng này rồi xem có chunk bị trả lại không
+    private static final long IDLE_WAIT_MS = 50;
+    // nguồn mới có 1 phần file: hỏi lại GET_HAVE cách nhau ít nhất chừng này
+    private static final long HAVE_REFRESH_MS = 2000;
+    // chỉ còn chunk mà nguồn chưa có: chờ nguồn tải thêm, quá chừng này không có chunk mới nào thì thôi
+    private static final long STALL_TIMEOUT_MS = 30_000;
+
+    /** 1 peer nguồn */
+    static final class Source {
+        final String host;
+        final int port;
+        final String label;
+        ChunkSession session;
+        // metadata nhận trên session của nguồn này (Merkle hay không tùy version server),
+        // sau agreeOnManifest là đã khớp manifest của lần tải tới từng chunk: chunk kiểm theo meta này
+        FileMetadata meta;
+        // chunk nguồn có lúc kết nối; sau đó scheduler giữ bản mới nhất
+        BitSet have;
+        ChunkScheduler.Peer peer;
+        long haveCheckedAt;
+        // byte/giây, EWMA; 0 = chưa đo
+        volatile double bytesPerSec;
+        volatile boolean dead;
+        long receivedBytes;
+        int badChunks;
+        int reconnects;
+
+        Source(String host, int port, String label) {
+            this.host = host;
+            this.port = port;
+            this.label = label;
+        }
+    }
+
+    // 1 request đang bay: các chunk đã nhận, done = số chunk đã xử lý response
+    private static final class Request {
+        final int[] chunks;
+        int done;
+
+        Request(int[] chunks) {
+            this.chunks = chunks;
+        }
+    }
+
+    // so manifest giữa các nguồn (gốc Merkle so riêng: peer cũ không có)
+    private record ManifestKey(long fileSize, int chunkSize, int totalChunks, HashAlgorithm algorithm,
+                               String fileHash) {
+        static ManifestKey of(FileMetadata m) {
+            return new ManifestKey(m.getFileSize(), m.getChunkSize(), m.getTotalChunks(), m.getHashAlgorithm(),
+                    m.getFileSha256());
+        }
+    }
+
+    private final List<Source> sources;
+    private final String fileName;
+    private final Path saveTo;
+    private final Path partFile;
+    private final Path metaFile;
+    private final Path bitmapFile;
+    private final Consumer<Double> progressCallback;
+    private final DownloadControl control;
+    private final ChunkScheduler.Order order;
+
+    private FileMetadata meta;
+    private DownloadProgress progress;
+    private ChunkScheduler scheduler;
+    // đăng ký phục vụ .part cho peer khác, null nếu lần tải khác cùng tên đang giữ
+    private PartialDownloads.Entry seeding;
+    // mọi chunk đều đã khớp gốc Merkle, trực tiếp hoặc qua danh sách hash chunk dựng ra đúng gốc
+    // (chunk tải qua kết nối 1 lần chỉ có hash gửi kèm thì false)
+    private volatile boolean proofVerified;
+    // lần cuối có chunk mới được lưu (System.currentTimeMillis)
+    private volatile long lastProgressAt;
+
+    SwarmDownload(List<PeerInfo> peers, String fileName, Path saveTo,
+                  Consumer<Double> progressCallback, DownloadControl control, ChunkScheduler.Order order) {
+        this(uniqueSources(peers), order, fileName, saveTo, progressCallback, control);
+    }
+
+    /** Tải từ đúng 1 peer host:port (peer đó mới có 1 phần file, xem {@link ChunkedFileClient}) */
+    SwarmDownload(String host, int port, String fileName, Path saveTo,
+                  Consumer<Double> progressCallback, DownloadControl control) {
+        this(List.of(new Source(host, port, host + ":" + port)), ChunkScheduler.Order.RAREST_FIRST,
+                fileName, saveTo, progressCallback, control);
+    }
+
+    private SwarmDownload(List<Source> sources, ChunkScheduler.Order order, String fileName, Path saveTo,
+                          Consumer<Double> progressCallback, DownloadControl control) {
+        this.sources = sources;
+        this.fileName = fileName;
+        this.saveTo = saveTo;
+        this.partFile = Path.of(saveTo.toString() + ".part");
+        this.metaFile = Path.of(saveTo.toString() + ".meta.properties");
+        this.bitmapFile = Path.of(saveTo.toString() + ".bitmap");
+        this.progressCallback = progressCallback;
+        this.control = control;
+        this.order = order;
+    }
+
+    // cùng ip:port chỉ tính 1 nguồn
+    private static List<Source> uniqueSources(List<PeerInfo> peers) {
+        Map<String, Source> unique = new LinkedHashMap<>();
+        for (PeerInfo p : peers) {
+            unique.putIfAbsent(p.getIp() + ":" + p.getFileServerPort(),
+                    new Source(p.getIp(), p.getFileServerPort(), p.getName() + "@" + p.getIp()));
+        }
+        return new ArrayList<>(unique.values());
+    }
+
+    boolean run() throws IOException {
+        if (sources.isEmpty()) throw new IOException("No source for " + fileName);
+
+        // 1) Metadata từ mọi nguồn (song song: 1 peer chết không làm chậm cả lượt)
+        connectAll();
+        List<Source> agreed = agreeOnManifest();
+        try {
+            if (control != null) control.checkpoint();
+        } catch (InterruptedException e) {
+            closeAll();
+            ChunkedFileClient.cleanupOnCancel(partFile, bitmapFile, metaFile);
+            return false;
+        }
+        if (agreed.isEmpty() || (agreed.size() == 1 && !isPartial(agreed.get(0)))) {
+            // không đủ nguồn cho swarm (peer cũ không có session...) -> tải 1 peer như thường
+            closeAll();
+            Source only = agreed.isEmpty() ? sources.get(0) : agreed.get(0);
+            if (only.meta != null && only.meta.isPartial()) {
+                throw new IOException("No source with a verifiable manifest for " + fileName);
+            }
+            System.out.println("[SwarmDownload] Single source " + only.label + ", using normal download");
+            return ChunkedFileClient.downloadFile(only.host, only.port, fileName, saveTo, progressCallback, control);
+        }
+        System.out.println("[SwarmDownload] " + fileName + ": " + agreed.size() + " sources, chunks="
+                + meta.getTotalChunks() + ", chunkSize=" + meta.getChunkSize()
+                + ", hash=" + meta.getHashAlgorithm().getId() + ", order=" + order);
+
+        try {
+            // 2-5) Giống tải 1 peer: meta cũ không khớp thì reset, .part đúng size, load bitmap
+            proofVerified = ChunkedFileClient.prepareResume(meta, partFile, metaFile, bitmapFile);
+            progress = new DownloadProgress(fileName, meta.getFileSize(), meta.getChunkSize(),
+                    meta.getTotalChunks(), meta.getFileSha256());
+            progress.loadBitmap(bitmapFile);
+            reportProgress();
+            scheduler = new ChunkScheduler(progress, order);
+            // peer khác tải file này từ mình được ngay những chunk đã có
+            seeding = PartialDownloads.register(fileName, meta, partFile, progress);
+            lastProgressAt = System.currentTimeMillis();
+            for (Source s : agreed) {
+                s.peer = scheduler.addPeer(s.have);
+                s.haveCheckedAt = lastProgressAt;
+            }
+
+            // 6a) Mỗi nguồn 1 thread, thread gọi chờ tất cả xong
+            List<Thread> workers = new ArrayList<>(agreed.size());
+            for (Source s : agreed) {
+                Thread t = new Thread(() -> runSource(s), "swarm-" + s.label);
+                t.setDaemon(true);
+                workers.add(t);
+                t.start();
+            }
+            try {
+                for (Thread t : workers) t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            closeAll();
+            for (Source s : agreed) {
+                System.out.println("[SwarmDownload] " + s.label + ": " + s.receivedBytes + " bytes, "
+                        + Math.round(s.bytesPerSec / 1024) + " KB/s" + (s.dead ? " (dropped)" : ""));
+            }
+
+            if (control != null && control.isCancelled()) {
+                ChunkedFileClient.cleanupOnCancel(partFile, bitmapFile, metaFile);
+                return false;
+            }
+
+            // 6b) Chunk lỗi / bị bỏ dở: tải lại từng chunk, thử lần lượt các nguồn
+            if (!fetchRemaining(agreed)) {
+                if (control != null && control.isCancelled()) {
+                    ChunkedFileClient.cleanupOnCancel(partFile, bitmapFile, metaFile);
+                }
+                return false;
+            }
+
+            // 7-8) Verify cả file, đổi tên .part
+            return ChunkedFileClient.finishDownload(meta, saveTo, partFile, metaFile, bitmapFile, progress,
+                    proofVerified, control);
+        } finally {
+            closeAll();
+            PartialDownloads.unregister(seeding);
+        }
+    }
+
+    // ---------------- metadata ----------------
+
+    private void connectAll() {
+        int preferredChunkSize = ChunkedFileClient.savedChunkSize(metaFile);
+        List<HashAlgorithm> accepted = ChunkedFileClient.acceptedHashAlgorithms(metaFile);
+        List<Thread> threads = new ArrayList<>(sources.size());
+        for (Source s : sources) {
+            Thread t = new Thread(() -> connect(s, preferredChunkSize, accepted), "swarm-meta-" + s.label);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void connect(Source s, int preferredChunkSize, List<HashAlgorithm> accepted) {
+        try {
+            ChunkSession session = ChunkSession.open(s.host, s.port);
+            if (session == null) {
+                System.err.println("[SwarmDownload] " + s.label + " has no session support, skipped");
+                return;
+            }
+            s.session = session;
+            s.meta = session.requestMetadata(fileName, preferredChunkSize, true, accepted);
+            s.have = session.requestHave(s.meta);
+        } catch (IOException e) {
+            System.err.println("[SwarmDownload] " + s.label + " unavailable: " + e.getMessage());
+            if (s.session != null) s.session.close();
+            s.session = null;
+            s.meta = null;
+        }
+    }
+
+    /**
+     * Nhóm nguồn theo manifest, giữ nhóm đông nhất (bằng nhau thì nhóm của nguồn đứng trước).
+     * Trong nhóm chọn 1 manifest cho lần tải, nguồn nào không khớp nó tới từng chunk
+     * ({@link ChunkedFileClient#matchesManifest}) thì bỏ.
+     */
+    private List<Source> agreeOnManifest() {
+        Map<ManifestKey, List<Source>> groups = new LinkedHashMap<>();
+        for (Source s : sources) {
+            if (s.meta == null) continue;
+            groups.computeIfAbsent(ManifestKey.of(s.meta), k -> new ArrayList<>()).add(s);
+        }
+        List<Source> best = List.of();
+        for (List<Source> group : groups.values()) {
+            if (group.size() > best.size()) best = group;
+        }
+        if (best.isEmpty()) return best;
+
+        // meta lưu ra .meta.properties: ưu tiên bản Merkle (kiểm được cả file bằng gốc),
+        // rồi bản đủ hash chunk, bản của nguồn đang tải dở sau cùng
+        meta = null;
+        for (Source s : best) {
+            if (meta == null || manifestRank(s.meta) > manifestRank(meta)) meta = s.meta;
+        }
+        List<Source> agreed = new ArrayList<>(best.size());
+        for (Source s : best) {
+            if (ChunkedFileClient.matchesManifest(meta, s.meta)) {
+                agreed.add(s);
+            } else {
+                System.err.println("[SwarmDownload] " + s.label + " chunk hashes / Merkle root differ, skipped");
+                s.dead = true;
+            }
+        }
+        for (Source s : sources) {
+            if (s.meta != null && !best.contains(s)) {
+                System.err.println("[SwarmDownload] " + s.label + " has a different version of "
+                        + fileName + ", skipped");
+                s.dead = true;
+            }
+        }
+        return agreed;
+    }
+
+    private static int manifestRank(FileMetadata m) {
+        int rank = m.isPartial() ? 0 : 4;
+        if (m.isMerkle()) return rank + 2;
+        return m.getChunkHashes().isEmpty() ? rank : rank + 1;
+    }
+
+    // ---------------- tải từ 1 nguồn ----------------
+
+    private void runSource(Source s) {
+        try {
+            while (!s.dead) {
+                if (s.session == null && !reconnect(s)) {
+                    s.dead = true;
+                    break;
+                }
+                try {
+                    pump(s);
+                    return;
+                } catch (IOException e) {
+                    System.err.println("[SwarmDownload] " + s.label + " broken: " + e.getMessage());
+                    s.session.close();
+                    s.session = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancel: run() dọn file tạm
+        } finally {
+            scheduler.removePeer(s.peer);
+            if (s.session != null) {
+                s.session.close();
+                s.session = null;
+            }
+        }
+    }
+
+    /** Kết nối lại nguồn bị rớt, manifest phải vẫn như cũ */
+    private boolean reconnect(Source s) throws InterruptedException {
+        while (s.reconnects < MAX_RECONNECTS) {
+            s.reconnects++;
+            sleep(RECONNECT_DELAY_MS * s.reconnects);
+            try {
+                ChunkSession session = ChunkSession.open(s.host, s.port);
+                if (session == null) return false;
+                FileMetadata again = session.requestMetadata(fileName, meta.getChunkSize(), s.meta.isMerkle(),
+                        List.of(meta.getHashAlgorithm()));
+                if (!ChunkedFileClient.matchesManifest(meta, again)) {
+                    System.err.println("[SwarmDownload] " + s.label + " file changed, dropped");
+                    session.close();
+                    return false;
+                }
+                // nguồn có thể vừa tải xong (partial -> đủ file): chunk kiểm theo manifest mới nhận
+                s.meta = again;
+                s.session = session;
+                return true;
+            } catch (IOException e) {
+                System.err.println("[SwarmDownload] " + s.label + " reconnect " + s.reconnects + "/"
+                        + MAX_RECONNECTS + " failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Nhận chunk và request cho tới khi hết chunk để nhận và không nguồn nào còn chunk đang bay.
+     * Nguồn mới có 1 phần file thì chờ thêm, hỏi lại GET_HAVE định kỳ, tới khi hết chunk nó có thể cho.
+     * Mất kết nối thì trả lại các chunk chưa nhận rồi ném IOException.
+     */
+    private void pump(Source s) throws IOException, InterruptedException {
+        Deque<Request> pending = new ArrayDeque<>(REQUEST_PIPELINE_DEPTH);
+        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+            while (true) {
+                while (pending.size() < REQUEST_PIPELINE_DEPTH) {
+                    if (control != null) control.checkpoint();
+                    int[] chunks = scheduler.claim(s.peer, requestSize(s));
+                    if (chunks.length == 0) break;
+                    pending.add(new Request(chunks));
+                    send(s, chunks);
+                }
+                if (pending.isEmpty()) {
+                    // session đang rảnh: hỏi lại nguồn đã tải thêm được chunk nào chưa
+                    if (refreshHave(s)) continue;
+                    // nguồn khác rớt thì chunk của nó được trả lại -> nhận tiếp
+                    if (scheduler.outstanding() == 0 && !awaitsMoreChunks(s)) return;
+                    scheduler.awaitChange(IDLE_WAIT_MS);
+                    continue;
+                }
+                s.session.flush();
+
+                Request request = pending.peek();
+                long start = System.nanoTime();
+                long bytes = receive(s, raf, request);
+                pending.poll();
+                updateThroughput(s, bytes, System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            for (Request request : pending) {
+                for (int i = request.done; i < request.chunks.length; i++) {
+                    scheduler.release(s.peer, request.chunks[i]);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /** Nguồn chưa có đủ file và đã tới lúc hỏi lại: GET_HAVE rồi cập nhật scheduler. @return true nếu đã hỏi */
+    private boolean refreshHave(Source s) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - s.haveCheckedAt < HAVE_REFRESH_MS || !scheduler.isPartial(s.peer)) return false;
+        s.haveCheckedAt = now;
+        scheduler.updatePeer(s.peer, s.session.requestHave(s.meta));
+        return true;
+    }
+
+    // còn chunk thiếu mà nguồn (đang tải dở) chưa có, và cả swarm chưa đứng yên quá STALL_TIMEOUT_MS
+    private boolean awaitsMoreChunks(Source s) {
+        return scheduler.isPartial(s.peer) && scheduler.lacksMissing(s.peer)
+                && System.currentTimeMillis() - lastProgressAt < STALL_TIMEOUT_MS;
+    }
+
+    private boolean isPartial(Source s) {
+        return s.have.cardinality() < s.meta.getTotalChunks();
+    }
+
+    // số chunk cho request kế tiếp: đủ cho ~TARGET_REQUEST_MS theo throughput, chưa đo thì 1 chunk
+    private int requestSize(Source s) {
+        int max = s.session.supportsBatch()
+                ? FileTransferProtocol.maxBatchChunks(meta.getChunkSize())
+                : MAX_SINGLE_CHUNK_REQUEST;
+        double bytes = s.bytesPerSec * TARGET_REQUEST_MS / 1000.0;
+        int n = (int) (bytes / meta.getChunkSize());
+        return Math.max(1, Math.min(max, n));
+    }
+
+    private void send(Source s, int[] chunks) throws IOException {
+        if (s.session.supportsBatch()) {
+            s.session.sendBatchRequest(fileName, meta.getChunkSize(), chunks);
+        } else {
+            for (int chunkIndex : chunks) s.session.sendChunkRequest(fileName, chunkIndex, meta.getChunkSize());
+        }
+    }
+
+    /** Đọc response của 1 request, lưu chunk khớp manifest. @return số byte đã nhận */
+    private long receive(Source s, RandomAccessFile raf, Request request) throws IOException, InterruptedException {
+        if (s.session.supportsBatch()) {
+            int count = s.session.readBatchHeader();
+            if (count < 0) {
+                // server từ chối cả batch: nguồn khác tải các chunk này
+                for (int chunkIndex : request.chunks) scheduler.failed(s.peer, chunkIndex);
+                request.done = request.chunks.length;
+                return 0;
+            }
+            if (count != request.chunks.length) {
+                throw new IOException("Batch size mismatch: asked " + request.chunks.length + " got " + count);
+            }
+        }
+        long bytes = 0;
+        for (int chunkIndex : request.chunks) {
+            byte[] chunkData = s.session.readChunk(s.meta, chunkIndex);
+            request.done++;
+            if (chunkData == null) {
+                // lỗi / không khớp manifest: nguồn khác tải chunk này, nguồn này không được xin lại
+                scheduler.failed(s.peer, chunkIndex);
+                if (++s.badChunks > MAX_BAD_CHUNKS) {
+                    s.dead = true;
+                    throw new IOException("Too many bad chunks");
+                }
+                continue;
+            }
+            bytes += chunkData.length;
+            if (control != null) control.checkpoint();
+
+            // endgame: nguồn khác đã gửi chunk này trước thì bỏ bản này
+            if (!progress.isChunkComplete(chunkIndex)) {
+                ChunkedFileClient.storeChunk(raf, chunkIndex, chunkData, s.session.lastProof(), meta, bitmapFile,
+                        progress, seeding, progressCallback);
+                lastProgressAt = System.currentTimeMillis();
+            }
+            // lưu xong mới trả: chunk không bị nguồn khác xin lại trong lúc đang ghi
+            scheduler.done(s.peer, chunkIndex);
+        }
+        s.receivedBytes += bytes;
+        return bytes;
+    }
+
+    private void updateThroughput(Source s, long bytes, long elapsedNanos) {
+        if (bytes <= 0 || elapsedNanos <= 0) return;
+        double sample = bytes * 1e9 / elapsedNanos;
+        s.bytesPerSec = s.bytesPerSec == 0 ? sample
+                : s.bytesPerSec + THROUGHPUT_SMOOTHING * (sample - s.bytesPerSec);
+    }
+
+    // ---------------- phần còn thiếu ----------------
+
+    /** Tải lại từng chunk còn thiếu, mỗi chunk thử lần lượt các nguồn có nó (bắt đầu xoay vòng) */
+    private boolean fetchRemaining(List<Source> agreed) throws IOException {
+        int next = 0;
+        for (int i = progress.nextMissingChunk(0); i >= 0; i = progress.nextMissingChunk(i + 1)) {
+            ChunkedFileClient.ChunkFetch fetched = ChunkedFileClient.ChunkFetch.FAILED;
+            for (int attempt = 0; attempt < agreed.size() && fetched == ChunkedFileClient.ChunkFetch.FAILED;
+                 attempt++) {
+                Source s = agreed.get(next++ % agreed.size());
+                if (!scheduler.has(s.peer, i)) continue;
+                fetched = ChunkedFileClient.downloadChunk(s.host, s.port, fileName, i, meta, partFile, seeding,
+                        control);
+                if (control != null && control.isCancelled()) return false;
+            }
+            if (fetched == ChunkedFileClient.ChunkFetch.FAILED) {
+                System.err.println("[SwarmDownload] Failed to download chunk " + i + " from any source");
+                return false;
+            }
+            // chunk này chỉ được kiểm tra bằng hash server gửi kèm
+            if (fetched == ChunkedFileClient.ChunkFetch.HASH_ONLY) markUnproven();
+            progress.markChunkComplete(i);
+            progress.saveBitmap(bitmapFile);
+            reportProgress();
+        }
+        return true;
+    }
+
+    private synchronized void markUnproven() throws IOException {
+        if (!proofVerified) return;
+        proofVerified = false;
+        ChunkedFileClient.saveMeta(metaFile, meta, false);
+    }
+
+    private void reportProgress() {
+        if (progressCallback != null) {
+            progressCallback.accept(progress.getProgressPercent() / 100.0);
+        }
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        if (control != null) {
+            control.sleep(millis);
+        } else {
+            Thread.sleep(millis);
+        }
+    }
+
+    private void closeAll() {
+        for (Source s : sources) {
+            if (s.session != null) {
+                s.session.close();
+                s.session = null;
+            }
+        }
+    }
+}
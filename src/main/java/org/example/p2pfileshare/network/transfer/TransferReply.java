@@ -0,0 +1,294 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.BinaryFrames;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 1 response của transfer server, tách khỏi cách ghi ra socket (blocking hay selector).
+ *
+ * Gồm các đoạn header (encode giống DataOutputStream: writeUTF/writeInt/...) xen với
+ * các đoạn file gửi bằng FileChannel.transferTo, để payload chunk không đi qua heap.
+ *
+ * Các hàm type/int32/int64/hash/text ghi field theo framing của session: text (như trên)
+ * hoặc bin1 (opcode, varint, digest thô... xem {@link BinaryFrames}).
+ */
+final class TransferReply {
+
+    private final Deque<Object> segments = new ArrayDeque<>(); // ByteBuffer | FileRegion
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(128);
+    private final DataOutputStream out = new DataOutputStream(pending);
+    private final boolean binary;
+    // writeTo có giới hạn băng thông trả false vì hết token -> số nano giây nên chờ
+    private long throttleNanos;
+
+    TransferReply() {
+        this(false);
+    }
+
+    TransferReply(boolean binary) {
+        this.binary = binary;
+    }
+
+    static TransferReply error(String reason) {
+        return error(reason, false);
+    }
+
+    static TransferReply error(String reason, boolean binary) {
+        return new TransferReply(binary).type("ERROR").text(reason);
+    }
+
+    static TransferReply busy(int retryAfterMs) {
+        return new TransferReply()
+                .writeUTF(FileTransferProtocol.BUSY)
+                .writeInt(retryAfterMs)
+                .writeUTF("Server busy");
+    }
+
+    TransferReply writeUTF(String s) {
+        try {
+            out.writeUTF(s);
+        } catch (IOException e) {
+            // ByteArrayOutputStream không ném IOException, chỉ có UTFDataFormatException (chuỗi > 64 KB)
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    TransferReply writeInt(int v) {
+        try {
+            out.writeInt(v);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    TransferReply writeLong(long v) {
+        try {
+            out.writeLong(v);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /** Loại response: tên (text) hoặc opcode (bin1) */
+    TransferReply type(String type) {
+        if (!binary) return writeUTF(type);
+        pending.write(BinaryFrames.responseOpcode(type));
+        return this;
+    }
+
+    TransferReply int32(int v) {
+        if (!binary) return writeInt(v);
+        try {
+            BinaryFrames.writeVarInt(out, v);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    TransferReply int64(long v) {
+        if (!binary) return writeLong(v);
+        try {
+            BinaryFrames.writeVarLong(out, v);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /** Offset có thể âm (GET_RANGE): bin1 dùng zigzag */
+    TransferReply signed64(long v) {
+        return int64(binary ? BinaryFrames.zigZagEncode(v) : v);
+    }
+
+    /** Hash hex: text gửi nguyên chuỗi, bin1 gửi digest thô (SHA-256: 32 byte) */
+    TransferReply hash(String hex) {
+        if (!binary) return writeUTF(hex);
+        try {
+            BinaryFrames.writeDigest(out, hex);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    TransferReply text(String s) {
+        if (!binary) return writeUTF(s);
+        try {
+            BinaryFrames.writeString(out, s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    TransferReply write(byte[] data, int off, int len) {
+        pending.write(data, off, len);
+        return this;
+    }
+
+    /** Thêm nguyên buffer (vd chunk trong cache ngoài heap), reply đọc trên view riêng */
+    TransferReply buffer(ByteBuffer data) {
+        seal();
+        segments.add(data.duplicate());
+        return this;
+    }
+
+    /** Thêm đoạn file, reply sẽ đóng channel khi gửi xong (hoặc khi close()) */
+    TransferReply file(FileChannel fc, long position, long count) {
+        return file(fc, position, count, fc);
+    }
+
+    /** Thêm đoạn file từ channel dùng chung, reply gọi owner.close() khi gửi xong thay vì đóng channel */
+    TransferReply file(FileChannel fc, long position, long count, Closeable owner) {
+        seal();
+        segments.add(new FileRegion(fc, position, count, owner));
+        return this;
+    }
+
+    /**
+     * Ghi càng nhiều càng tốt ra channel.
+     *
+     * Channel blocking: ghi hết rồi trả về true.
+     * Channel non-blocking: trả về false khi socket buffer đầy, gọi lại khi OP_WRITE.
+     */
+    boolean writeTo(WritableByteChannel ch) throws IOException {
+        seal();
+        while (!segments.isEmpty()) {
+            Object seg = segments.peek();
+            if (seg instanceof ByteBuffer bb) {
+                ch.write(bb);
+                if (bb.hasRemaining()) return false;
+            } else {
+                FileRegion region = (FileRegion) seg;
+                if (!region.transferTo(ch)) return false;
+                region.close();
+            }
+            segments.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Như {@link #writeTo(WritableByteChannel)} nhưng xin token của {@link BandwidthLimiter}
+     * trước mỗi lần ghi (tối đa 1 quantum).
+     *
+     * Trả false khi socket đầy hoặc hết token; trường hợp hết token thì
+     * {@link #throttleDelayNanos()} > 0 là thời gian nên chờ trước khi gọi lại.
+     */
+    boolean writeTo(WritableByteChannel ch, BandwidthLimiter.Lease lease) throws IOException {
+        throttleNanos = 0;
+        if (lease == null || lease.isUnlimited()) {
+            return writeTo(ch);
+        }
+        seal();
+        while (!segments.isEmpty()) {
+            Object seg = segments.peek();
+            long remaining = seg instanceof ByteBuffer bb ? bb.remaining() : ((FileRegion) seg).remaining;
+            while (remaining > 0) {
+                long grant = lease.tryAcquire(remaining);
+                if (grant < 0) {
+                    throttleNanos = -grant;
+                    return false;
+                }
+
+                long sent;
+                if (seg instanceof ByteBuffer bb) {
+                    int limit = bb.limit();
+                    bb.limit(bb.position() + (int) grant);
+                    try {
+                        sent = ch.write(bb);
+                    } finally {
+                        bb.limit(limit);
+                    }
+                } else {
+                    sent = ((FileRegion) seg).transfer(ch, grant);
+                }
+
+                lease.refund(grant - sent);
+                remaining -= sent;
+                if (sent < grant) return false; // socket đầy
+            }
+            if (seg instanceof FileRegion region) region.close();
+            segments.poll();
+        }
+        return true;
+    }
+
+    long throttleDelayNanos() {
+        return throttleNanos;
+    }
+
+    /** Giải phóng file channel còn giữ (client ngắt giữa chừng) */
+    void close() {
+        for (Object seg : segments) {
+            if (seg instanceof FileRegion region) region.close();
+        }
+        segments.clear();
+    }
+
+    private void seal() {
+        if (pending.size() > 0) {
+            segments.add(ByteBuffer.wrap(pending.toByteArray()));
+            pending.reset();
+        }
+    }
+
+    private static final class FileRegion {
+        private final FileChannel fc;
+        private final Closeable owner;
+        private long position;
+        private long remaining;
+        private boolean released;
+
+        FileRegion(FileChannel fc, long position, long count, Closeable owner) {
+            this.fc = fc;
+            this.owner = owner;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        // transferTo có thể gửi thiếu -> lặp tới khi đủ hoặc socket hết chỗ
+        boolean transferTo(WritableByteChannel ch) throws IOException {
+            while (remaining > 0) {
+                if (transfer(ch, remaining) <= 0) return false;
+            }
+            return true;
+        }
+
+        /** Gửi tối đa max byte, trả về số byte đã gửi (0 = socket đầy) */
+        long transfer(WritableByteChannel ch, long max) throws IOException {
+            long n = fc.transferTo(position, Math.min(remaining, max), ch);
+            if (n <= 0) {
+                if (position >= fc.size()) throw new EOFException("File truncated while sending");
+                return 0;
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        void close() {
+            if (released) return;
+            released = true;
+            try {
+                owner.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
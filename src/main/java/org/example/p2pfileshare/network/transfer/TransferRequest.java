@@ -0,0 +1,145 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+
+/**
+ * 1 request đã đọc xong, tham số đã parse sẵn: {@link TransferRequestHandler} nhận thẳng dạng này.
+ *
+ * bin1: {@link SessionOptions#decode} đọc frame ra đây luôn, không dựng lại chuỗi command.
+ * Framing text / kết nối 1 lần của peer cũ: {@link #of(FileTransferProtocol.ParsedCommand)}.
+ * Kiểm tra theo ngữ nghĩa (chunk size hợp lệ, batch quá lớn...) để handler làm chung cho cả 2 framing.
+ */
+sealed interface TransferRequest {
+
+    /** FILE_META_REQUEST: preferredChunkSize 0 = server chọn; hashAlgorithms null = peer cũ, chỉ SHA-256 */
+    record Meta(String fileName, int preferredChunkSize, boolean merkle, String hashAlgorithms)
+            implements TransferRequest {}
+
+    record Chunk(String fileName, int chunkIndex, int chunkSize) implements TransferRequest {}
+
+    /** GET_CHUNKS: index theo thứ tự client xin */
+    record Batch(String fileName, int chunkSize, int[] indexes) implements TransferRequest {}
+
+    record Stream(String fileName, int chunkSize) implements TransferRequest {}
+
+    record Have(String fileName, int chunkSize) implements TransferRequest {}
+
+    /** GET_RANGE: offset âm = -offset byte cuối file */
+    record Range(String fileName, long offset, int length) implements TransferRequest {}
+
+    record Close() implements TransferRequest {}
+
+    /** Command text sai cú pháp / không biết: handler trả ERROR với lý do này */
+    record Invalid(String reason) implements TransferRequest {}
+
+    /** @return null nếu dòng rỗng (caller trả "Invalid command") */
+    static TransferRequest parse(String line) {
+        FileTransferProtocol.ParsedCommand cmd = FileTransferProtocol.parse(line);
+        return cmd != null ? of(cmd) : null;
+    }
+
+    static TransferRequest of(FileTransferProtocol.ParsedCommand cmd) {
+        String command = cmd.command;
+        String fileName = cmd.get(1);
+        if (FileTransferProtocol.SESSION_CLOSE.equals(command)) {
+            return new Close();
+        } else if (FileTransferProtocol.FILE_META_REQUEST.equals(command)) {
+            // FILE_META_REQUEST|file[|chunkSize[|form[|algs]]]
+            if (fileName == null) return new Invalid("Missing filename");
+            // không có tham số chunk size -> peer cũ, chỉ biết chunk 1 MB
+            int preferred = TransferRequestHandler.DEFAULT_CHUNK_SIZE;
+            if (cmd.get(2) != null) {
+                try {
+                    preferred = Integer.parseInt(cmd.get(2));
+                } catch (NumberFormatException e) {
+                    return new Invalid("Invalid chunk size");
+                }
+            }
+            return new Meta(fileName, preferred, FileTransferProtocol.META_MERKLE.equals(cmd.get(3)), cmd.get(4));
+        } else if (FileTransferProtocol.GET_CHUNK.equals(command)) {
+            // GET_CHUNK|file|index[|chunkSize]
+            if (fileName == null || cmd.get(2) == null) return new Invalid("Missing parameters");
+            int chunkIndex;
+            try {
+                chunkIndex = Integer.parseInt(cmd.get(2));
+            } catch (NumberFormatException e) {
+                return new Invalid("Invalid chunk index");
+            }
+            // peer mới gửi kèm chunk size đã nhận trong FILE_META_RESPONSE
+            int chunkSize = TransferRequestHandler.DEFAULT_CHUNK_SIZE;
+            if (cmd.get(3) != null) {
+                chunkSize = parseInt(cmd.get(3));
+                if (chunkSize < 0) return new Invalid("Invalid chunk size");
+            }
+            return new Chunk(fileName, chunkIndex, chunkSize);
+        } else if (FileTransferProtocol.GET_CHUNKS.equals(command)) {
+            // GET_CHUNKS|file|chunkSize|start|count hoặc GET_CHUNKS|file|chunkSize|i,j,k
+            String spec = cmd.get(3);
+            if (fileName == null || cmd.get(2) == null || spec == null) return new Invalid("Missing parameters");
+            int chunkSize = parseInt(cmd.get(2));
+            if (chunkSize < 0) return new Invalid("Invalid chunk size");
+            int[] indexes;
+            try {
+                indexes = parseBatchIndexes(spec, cmd.get(4));
+            } catch (NumberFormatException e) {
+                return new Invalid("Invalid chunk list");
+            }
+            if (indexes == null) return new Invalid("Batch too large");
+            return new Batch(fileName, chunkSize, indexes);
+        } else if (FileTransferProtocol.GET_STREAM.equals(command) || FileTransferProtocol.GET_HAVE.equals(command)) {
+            // GET_STREAM|file|chunkSize, GET_HAVE|file|chunkSize
+            if (fileName == null || cmd.get(2) == null) return new Invalid("Missing parameters");
+            int chunkSize = parseInt(cmd.get(2));
+            if (chunkSize < 0) return new Invalid("Invalid chunk size");
+            return FileTransferProtocol.GET_STREAM.equals(command)
+                    ? new Stream(fileName, chunkSize)
+                    : new Have(fileName, chunkSize);
+        } else if (FileTransferProtocol.GET_RANGE.equals(command)) {
+            // GET_RANGE|file|offset|length
+            if (fileName == null || cmd.get(2) == null || cmd.get(3) == null) {
+                return new Invalid("Missing parameters");
+            }
+            try {
+                return new Range(fileName, Long.parseLong(cmd.get(2)), Integer.parseInt(cmd.get(3)));
+            } catch (NumberFormatException e) {
+                return new Invalid("Invalid range");
+            }
+        } else {
+            return new Invalid("Unknown command: " + command);
+        }
+    }
+
+    // -1 nếu không phải số không âm
+    private static int parseInt(String s) {
+        try {
+            return Math.max(-1, Integer.parseInt(s));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * "start" + "count" hoặc "i,j,k". Giới hạn theo chunk size handler kiểm sau,
+     * ở đây chỉ chặn trước khi cấp mảng.
+     *
+     * @return danh sách index theo thứ tự, null nếu quá MAX_BATCH_CHUNKS
+     */
+    private static int[] parseBatchIndexes(String spec, String countStr) {
+        if (countStr != null) {
+            int start = Integer.parseInt(spec);
+            int count = Integer.parseInt(countStr);
+            if (count < 0) throw new NumberFormatException("negative count");
+            if (count > FileTransferProtocol.MAX_BATCH_CHUNKS) return null;
+            int[] indexes = new int[count];
+            for (int i = 0; i < count; i++) indexes[i] = start + i;
+            return indexes;
+        }
+        String[] parts = spec.split(",");
+        if (parts.length > FileTransferProtocol.MAX_BATCH_CHUNKS) return null;
+        int[] indexes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            indexes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return indexes;
+    }
+}
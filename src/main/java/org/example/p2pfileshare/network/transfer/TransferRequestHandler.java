@@ -0,0 +1,698 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.FileMetadata;
+import org.example.p2pfileshare.network.protocol.FileTransferProtocol;
+import org.example.p2pfileshare.util.FileHashUtil;
+import org.example.p2pfileshare.util.HashAlgorithm;
+import org.example.p2pfileshare.util.MerkleTree;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Xử lý FILE_META_REQUEST / GET_CHUNK / GET_CHUNKS / GET_STREAM / GET_RANGE / GET_HAVE, trả về {@link TransferReply}.
+ *
+ * Không biết gì về socket: dùng chung cho engine blocking (thread / connection)
+ * và engine selector (NIO).
+ *
+ * File không có trong share folder nhưng máy này đang tải dở ({@link PartialDownloads}) thì phục vụ
+ * metadata / GET_HAVE / chunk đã có từ .part cho client v9+.
+ */
+class TransferRequestHandler {
+
+    // peer cũ không gửi chunk size -> giữ 1 MB như trước
+    static final int DEFAULT_CHUNK_SIZE = FileTransferProtocol.LEGACY_CHUNK_SIZE;
+    // tự chọn chunk size: nhắm khoảng chừng này chunk / file (file 40 GB -> 16 MB, file 100 MB -> 256 KB)
+    private static final int TARGET_CHUNKS_PER_FILE = 1024;
+
+    // owner cho các đoạn file của GET_STREAM trừ đoạn cuối (đoạn cuối mới trả handle)
+    private static final Closeable KEEP_HANDLE = () -> {};
+
+    private final AtomicReference<Path> shareFolder;
+
+    // hash cả file + từng chunk, lưu bền dưới <share>/.p2pshare để FILE_META_REQUEST không phải băm lại
+    private volatile ManifestCache manifestCache;
+    // channel file đang mở + thuộc tính đã kiểm tra, GET_CHUNK không phải mở/stat file mỗi lần
+    private volatile OpenFileCache openFiles;
+    // nén chunk cho session đã thống nhất codec
+    private final ChunkCompressor compressor = new ChunkCompressor();
+    private volatile boolean compressionEnabled = true;
+    // chunk nóng ngoài heap: nhiều peer cùng tải 1 file thì mỗi chunk chỉ đọc đĩa 1 lần
+    private final HotChunkCache hotChunks = new HotChunkCache(HotChunkCache.DEFAULT_CAPACITY_BYTES);
+
+    TransferRequestHandler(AtomicReference<Path> shareFolder) {
+        this.shareFolder = shareFolder;
+        Path root = shareFolder.get();
+        this.manifestCache = root != null ? new ManifestCache(root) : null;
+        this.openFiles = root != null ? new OpenFileCache(root) : null;
+    }
+
+    /** Gọi khi đổi thư mục share */
+    synchronized void onFolderChanged(Path newFolder) {
+        manifestCache = newFolder != null ? new ManifestCache(newFolder) : null;
+        OpenFileCache old = openFiles;
+        openFiles = newFolder != null ? new OpenFileCache(newFolder) : null;
+        if (old != null) old.close();
+        hotChunks.clear();
+    }
+
+    HotChunkCache getHotChunks() {
+        return hotChunks;
+    }
+
+    void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /** Thống nhất tuỳ chọn session từ SESSION_OPEN */
+    SessionOptions negotiate(FileTransferProtocol.ParsedCommand open) {
+        return SessionOptions.negotiate(open, compressionEnabled);
+    }
+
+    /** Kết nối 1 lần của peer cũ: 1 command text */
+    TransferReply handle(FileTransferProtocol.ParsedCommand cmd) throws IOException {
+        return handle(TransferRequest.of(cmd), SessionOptions.LEGACY);
+    }
+
+    TransferReply handle(TransferRequest request, SessionOptions options) throws IOException {
+        Path root = shareFolder.get();
+        if (root == null) {
+            return options.error("No share folder set");
+        }
+
+        if (request instanceof TransferRequest.Meta meta) {
+            return handleMetaRequest(meta, root, options);
+        } else if (request instanceof TransferRequest.Chunk chunk) {
+            return handleChunkRequest(chunk, root, options);
+        } else if (request instanceof TransferRequest.Batch batch) {
+            return handleBatchRequest(batch, root, options);
+        } else if (request instanceof TransferRequest.Stream stream) {
+            return handleStreamRequest(stream, root, options);
+        } else if (request instanceof TransferRequest.Range range) {
+            return handleRangeRequest(range, root, options);
+        } else if (request instanceof TransferRequest.Have have) {
+            return handleHaveRequest(have, root, options);
+        } else if (request instanceof TransferRequest.Invalid invalid) {
+            return options.error(invalid.reason());
+        } else {
+            // SESSION_CLOSE ngoài session
+            return options.error("Unknown command: " + FileTransferProtocol.SESSION_CLOSE);
+        }
+    }
+
+    // hàm xử lý handleMetaRequest
+    private TransferReply handleMetaRequest(TransferRequest.Meta request, Path root,
+                                            SessionOptions options) throws IOException {
+        String fileName = request.fileName();
+        int preferred = request.preferredChunkSize();
+        if (preferred < 0) return options.error("Invalid chunk size");
+
+        // client v7 gửi kèm thuật toán băm chấp nhận được, không gửi thì SHA-256 như peer cũ
+        String offeredAlgorithms = request.hashAlgorithms();
+        HashAlgorithm algorithm = HashAlgorithm.choose(offeredAlgorithms);
+
+        FileManifest manifest;
+        try (OpenFileCache.Handle file = filesFor(root).acquire(fileName)) {
+            if (file == null) {
+                return partialMetaResponse(fileName, offeredAlgorithms, options);
+            }
+            ManifestCache cache = cacheFor(root);
+            int chunkSize = chooseChunkSize(file.getSize(), preferred);
+
+            // client để server tự chọn: manifest đã có với chunk size gần đúng (±4 lần) thì dùng luôn, khỏi băm lại
+            manifest = null;
+            if (preferred == FileTransferProtocol.AUTO_CHUNK_SIZE) {
+                for (int candidate : new int[]{chunkSize, chunkSize / 2, chunkSize * 2, chunkSize / 4, chunkSize * 4}) {
+                    if (!FileTransferProtocol.isValidChunkSize(candidate)) continue;
+                    manifest = cache.getIfValid(file.getPath(), file.getSize(), file.getLastModified(), candidate,
+                            algorithm);
+                    if (manifest != null) break;
+                }
+            }
+            // manifest có sẵn (RAM/sidecar) thì không đọc file, chưa có hoặc file đã đổi thì băm lại
+            if (manifest == null) {
+                manifest = cache.getOrCompute(file.getPath(), file.getSize(), file.getLastModified(), chunkSize,
+                        algorithm);
+            }
+        }
+        // kết nối 1 lần không có request sau để nhớ, chunk lấy lẻ luôn kèm SHA-256
+        if (options.isSession()) options.setHashAlgorithm(fileName, manifest.getChunkSize(), algorithm);
+        long fileSize = manifest.getFileSize();
+        int totalChunks = manifest.getTotalChunks();
+        String fileSha256 = manifest.getFileSha256();
+        List<String> chunkHashes = manifest.getChunkHashes();
+
+        // file lớn + client xin dạng Merkle: chỉ gửi gốc, hash từng chunk đi kèm chunk dưới dạng proof
+        if (request.merkle() && options.isSession()
+                && algorithm == HashAlgorithm.SHA_256
+                && totalChunks >= FileTransferProtocol.MERKLE_MIN_CHUNKS) {
+            String merkleRoot = manifest.getMerkleTree().getRoot();
+            options.enableProofs(fileName, manifest.getChunkSize());
+            TransferReply reply = options.reply().type(FileTransferProtocol.FILE_META_ROOT);
+            appendFileRef(reply, fileName, manifest.getChunkSize(), options);
+            reply.int64(fileSize)
+                    .int32(manifest.getChunkSize())
+                    .int32(totalChunks);
+            if (offeredAlgorithms != null) reply.text(algorithm.getId());
+            reply.hash(fileSha256)
+                    .hash(merkleRoot);
+            System.out.println("[ChunkedFileServer] Sent Merkle metadata for " + fileName + " chunks=" + totalChunks
+                    + " chunkSize=" + manifest.getChunkSize());
+            return reply;
+        }
+
+        TransferReply reply = options.reply().type(FileTransferProtocol.FILE_META_RESPONSE);
+        appendFileRef(reply, fileName, manifest.getChunkSize(), options);
+        reply.int64(fileSize)
+                .int32(manifest.getChunkSize())
+                .int32(totalChunks);
+        if (offeredAlgorithms != null) reply.text(algorithm.getId());
+        reply.hash(fileSha256);
+        for (int i = 0; i < totalChunks; i++) {
+            reply.hash(chunkHashes.get(i));
+        }
+
+        System.out.println("[ChunkedFileServer] Sent metadata for " + fileName + " chunks=" + totalChunks
+                + " chunkSize=" + manifest.getChunkSize() + " hash=" + algorithm.getId());
+        return reply;
+    }
+
+    // bin1: request sau gọi file bằng ID thay vì lặp lại tên
+    private static void appendFileRef(TransferReply reply, String fileName, int chunkSize, SessionOptions options) {
+        if (options.isBinary()) {
+            reply.int32(options.fileId(fileName, chunkSize));
+        } else {
+            reply.writeUTF(fileName);
+        }
+    }
+
+    private TransferReply handleChunkRequest(TransferRequest.Chunk request, Path root,
+                                             SessionOptions options) throws IOException {
+        String fileName = request.fileName();
+        int chunkIndex = request.chunkIndex();
+        int chunkSize = request.chunkSize();
+        if (!FileTransferProtocol.isValidChunkSize(chunkSize)) {
+            return options.error("Invalid chunk size");
+        }
+
+        OpenFileCache.Handle file = filesFor(root).acquire(fileName);
+        if (file == null) {
+            PartialDownloads.Entry partial = partialFor(fileName, chunkSize, options);
+            if (partial == null) {
+                return options.error("File not found");
+            }
+            PartialDownloads.Chunk chunk = partial.readChunk(chunkIndex);
+            if (chunk == null) {
+                return options.error("Chunk not available");
+            }
+            TransferReply reply = options.reply();
+            appendPartialChunk(reply, partial, chunkIndex, chunk, options);
+            return reply;
+        }
+        if (chunkIndex < 0 || (long) chunkIndex * chunkSize >= file.getSize()) {
+            file.close();
+            return options.error("Chunk index out of range");
+        }
+
+        TransferReply reply = options.reply();
+        appendChunk(reply, file, root, fileName, chunkIndex, chunkSize, options);
+        return reply;
+    }
+
+    /**
+     * GET_CHUNKS|file|chunkSize|start|count hoặc GET_CHUNKS|file|chunkSize|i,j,k
+     *   -> CHUNK_BATCH, count, rồi từng record CHUNK_DATA / CHUNK_DATA_Z / CHUNK_ERROR theo thứ tự xin.
+     *
+     * Lỗi của cả request (thiếu tham số, quá lớn, không có file) trả ERROR như GET_CHUNK;
+     * lỗi của riêng 1 chunk (vd ngoài file) chỉ thành CHUNK_ERROR, các chunk khác vẫn gửi.
+     */
+    private TransferReply handleBatchRequest(TransferRequest.Batch request, Path root,
+                                             SessionOptions options) throws IOException {
+        String fileName = request.fileName();
+        int chunkSize = request.chunkSize();
+        if (!FileTransferProtocol.isValidChunkSize(chunkSize)) {
+            return options.error("Invalid chunk size");
+        }
+        int[] indexes = request.indexes();
+        if (indexes.length > FileTransferProtocol.maxBatchChunks(chunkSize)) {
+            return options.error("Batch too large");
+        }
+
+        // kiểm tra file 1 lần trước khi hứa gửi count record
+        try (OpenFileCache.Handle probe = filesFor(root).acquire(fileName)) {
+            if (probe == null) {
+                return partialBatch(fileName, chunkSize, indexes, options);
+            }
+        }
+
+        TransferReply reply = options.reply()
+                .type(FileTransferProtocol.CHUNK_BATCH)
+                .int32(indexes.length);
+        boolean done = false;
+        try {
+            for (int chunkIndex : indexes) {
+                // mỗi record giữ 1 handle riêng (đoạn zero-copy trả handle khi gửi xong)
+                OpenFileCache.Handle file = filesFor(root).acquire(fileName);
+                if (file == null) {
+                    appendChunkError(reply, chunkIndex, "File not found");
+                } else if (chunkIndex < 0 || (long) chunkIndex * chunkSize >= file.getSize()) {
+                    file.close();
+                    appendChunkError(reply, chunkIndex, "Chunk index out of range");
+                } else {
+                    appendChunk(reply, file, root, fileName, chunkIndex, chunkSize, options);
+                }
+            }
+            done = true;
+        } finally {
+            // lỗi giữa chừng -> trả các handle đã gắn vào reply
+            if (!done) reply.close();
+        }
+
+        System.out.println("[ChunkedFileServer] Sent batch " + fileName + " chunks=" + indexes.length);
+        return reply;
+    }
+
+    /**
+     * GET_STREAM|file|chunkSize -> STREAM_DATA, fileSize, chunkSize, totalChunks, fileSha256,
+     * rồi cả file theo thứ tự chunk, mỗi chunk theo sau là hash của nó
+     * (session đã nhận FILE_META_ROOT thì thêm proof: n (int) + n hash).
+     *
+     * Dành cho tải mới: không round trip nào giữa các chunk, dữ liệu gửi zero-copy.
+     * Không nén và không đi qua hot cache (đọc tuần tự 1 lần, giữ cache cho chunk được xin lẻ).
+     */
+    private TransferReply handleStreamRequest(TransferRequest.Stream request, Path root,
+                                              SessionOptions options) throws IOException {
+        String fileName = request.fileName();
+        int chunkSize = request.chunkSize();
+        if (!FileTransferProtocol.isValidChunkSize(chunkSize)) {
+            return options.error("Invalid chunk size");
+        }
+
+        OpenFileCache.Handle file = filesFor(root).acquire(fileName);
+        if (file == null) {
+            return options.error("File not found");
+        }
+
+        boolean handedOff = false;
+        try {
+            // thường đã có sẵn từ FILE_META_REQUEST ngay trước đó
+            FileManifest manifest = cacheFor(root).getOrCompute(file.getPath(), file.getSize(),
+                    file.getLastModified(), chunkSize, options.hashAlgorithm(fileName, chunkSize));
+            long fileSize = manifest.getFileSize();
+            int totalChunks = manifest.getTotalChunks();
+            MerkleTree proofs = options.sendsProofs(fileName, chunkSize) ? manifest.getMerkleTree() : null;
+
+            TransferReply reply = options.reply()
+                    .type(FileTransferProtocol.STREAM_DATA)
+                    .int64(fileSize)
+                    .int32(chunkSize)
+                    .int32(totalChunks)
+                    .hash(manifest.getFileSha256());
+            for (int i = 0; i < totalChunks; i++) {
+                long offset = (long) i * chunkSize;
+                long len = Math.min(chunkSize, fileSize - offset);
+                // cả stream giữ 1 handle, trả về cache khi đoạn cuối gửi xong (hoặc reply bị huỷ)
+                reply.file(file.getChannel(), offset, len, i == totalChunks - 1 ? file : KEEP_HANDLE)
+                        .hash(manifest.getChunkHash(i));
+                if (proofs != null) appendProofHashes(reply, proofs.getProof(i));
+            }
+            handedOff = totalChunks > 0;
+
+            System.out.println("[ChunkedFileServer] Streaming " + fileName + " chunks=" + totalChunks
+                    + " chunkSize=" + chunkSize);
+            return reply;
+        } finally {
+            if (!handedOff) file.close();
+        }
+    }
+
+    /**
+     * Ghi 1 record CHUNK_DATA / CHUNK_DATA_Z vào reply.
+     *
+     * Nhận quyền sở hữu handle: đoạn zero-copy giữ lại tới khi gửi xong, còn lại trả ngay.
+     * Caller đã kiểm tra chunkIndex nằm trong file.
+     * Hash theo thuật toán session đã thống nhất cho file; client đã nhận FILE_META_ROOT của file
+     * thì gửi CHUNK_PROOF ngay trước record.
+     */
+    private void appendChunk(TransferReply reply, OpenFileCache.Handle file, Path root, String fileName,
+                             int chunkIndex, int chunkSize, SessionOptions options) throws IOException {
+        HashAlgorithm algorithm = options.hashAlgorithm(fileName, chunkSize);
+        boolean proof = options.sendsProofs(fileName, chunkSize);
+        byte[] chunkData;
+        int dataLen;
+        String chunkHash = null;
+        boolean tryCompress;
+        boolean handedOff = false; // reply zero-copy giữ handle, tự trả khi gửi xong
+        try {
+            long fileSize = file.getSize();
+            long offset = (long) chunkIndex * chunkSize;
+            dataLen = (int) Math.min(chunkSize, fileSize - offset);
+
+            // Đã có hash chunk từ FILE_META_REQUEST và file chưa đổi -> gửi file -> socket bằng sendfile,
+            // dữ liệu không đi qua heap Java. Reply trả handle về cache khi gửi xong.
+            FileManifest manifest = cacheFor(root).getIfValid(file.getPath(), fileSize,
+                    file.getLastModified(), chunkSize, algorithm);
+            if (proof) {
+                // file đổi sau FILE_META_ROOT -> proof theo bản mới, client sẽ thấy không khớp gốc cũ
+                if (manifest == null) {
+                    manifest = cacheFor(root).getOrCompute(file.getPath(), fileSize, file.getLastModified(), chunkSize,
+                            algorithm);
+                }
+                reply.type(FileTransferProtocol.CHUNK_PROOF).int32(chunkIndex);
+                appendProofHashes(reply, manifest.getMerkleTree().getProof(chunkIndex));
+            }
+            tryCompress = options.isCompress() && compressor.worthTrying(file.getPath(), file.getLastModified());
+
+            if (hotChunks.admits(dataLen)) {
+                HotChunkCache.Chunk chunk = hotChunks.getOrLoad(file, chunkSize, chunkIndex, offset, dataLen,
+                        algorithm, manifest != null ? manifest.getChunkHash(chunkIndex) : null);
+                appendCachedChunk(reply, file, chunkIndex, chunk, chunk.hash(algorithm), tryCompress);
+                return;
+            }
+
+            if (manifest != null && !tryCompress) {
+                System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + dataLen + " (zero-copy)");
+                handedOff = true;
+                reply.type(FileTransferProtocol.CHUNK_DATA)
+                        .int32(chunkIndex)
+                        .int32(dataLen)
+                        .hash(manifest.getChunkHash(chunkIndex))
+                        .file(file.getChannel(), offset, dataLen, file);
+                return;
+            }
+
+            if (manifest != null) chunkHash = manifest.getChunkHash(chunkIndex);
+
+            chunkData = new byte[dataLen];
+            readFully(file.getChannel(), ByteBuffer.wrap(chunkData), offset);
+
+            if (chunkHash == null) chunkHash = FileHashUtil.hash(algorithm, chunkData);
+
+            // hash luôn là của dữ liệu gốc, client giải nén xong mới kiểm tra
+            byte[] compressed = tryCompress
+                    ? compressor.compress(file.getPath(), file.getLastModified(), chunkData, dataLen)
+                    : null;
+            if (compressed != null) {
+                System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + dataLen
+                        + " (deflate " + compressed.length + ")");
+                reply.type(FileTransferProtocol.CHUNK_DATA_Z)
+                        .int32(chunkIndex)
+                        .int32(dataLen)
+                        .hash(chunkHash)
+                        .int32(compressed.length)
+                        .write(compressed, 0, compressed.length);
+                return;
+            }
+        } finally {
+            if (!handedOff) file.close();
+        }
+
+        System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + dataLen);
+        reply.type(FileTransferProtocol.CHUNK_DATA)
+                .int32(chunkIndex)
+                .int32(dataLen)
+                .hash(chunkHash)
+                .write(chunkData, 0, dataLen);
+    }
+
+    // chunk từ cache: bản nén (nén 1 lần cho mọi session) hoặc gửi thẳng từ buffer ngoài heap
+    private void appendCachedChunk(TransferReply reply, OpenFileCache.Handle file, int chunkIndex,
+                                   HotChunkCache.Chunk chunk, String chunkHash, boolean tryCompress) {
+        if (tryCompress) {
+            byte[] compressed = chunk.compressed();
+            if (compressed == null && !chunk.isCompressionTried()) {
+                byte[] raw = chunk.toArray();
+                compressed = compressor.compress(file.getPath(), file.getLastModified(), raw, raw.length);
+                chunk.setCompressed(compressed);
+            }
+            if (compressed != null) {
+                System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + chunk.length()
+                        + " (deflate " + compressed.length + ", cached)");
+                reply.type(FileTransferProtocol.CHUNK_DATA_Z)
+                        .int32(chunkIndex)
+                        .int32(chunk.length())
+                        .hash(chunkHash)
+                        .int32(compressed.length)
+                        .write(compressed, 0, compressed.length);
+                return;
+            }
+        }
+
+        System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + chunk.length() + " (cached)");
+        reply.type(FileTransferProtocol.CHUNK_DATA)
+                .int32(chunkIndex)
+                .int32(chunk.length())
+                .hash(chunkHash)
+                .buffer(chunk.data());
+    }
+
+    private static void appendProofHashes(TransferReply reply, List<String> proof) {
+        reply.int32(proof.size());
+        for (String h : proof) reply.hash(h);
+    }
+
+    private static void appendChunkError(TransferReply reply, int chunkIndex, String reason) {
+        reply.type(FileTransferProtocol.CHUNK_ERROR)
+                .int32(chunkIndex)
+                .text(reason);
+    }
+
+    /**
+     * GET_RANGE|file|offset|length -> RANGE_DATA, offset thật (long), length (int), fileSize (long), bytes.
+     *
+     * Offset âm = đọc -offset byte cuối file. Đoạn vượt quá cuối file bị cắt ngắn.
+     * Không kèm hash: đây là lát cắt tuỳ ý, client cần toàn vẹn thì kiểm tra bằng hash chunk.
+     */
+    private TransferReply handleRangeRequest(TransferRequest.Range request, Path root,
+                                             SessionOptions options) throws IOException {
+        String fileName = request.fileName();
+        long requestedOffset = request.offset();
+        int length = request.length();
+        if (length < 0 || length > FileTransferProtocol.MAX_RANGE_LENGTH) {
+            return options.error("Invalid range length");
+        }
+
+        OpenFileCache.Handle file = filesFor(root).acquire(fileName);
+        if (file == null) {
+            return options.error("File not found");
+        }
+
+        long fileSize = file.getSize();
+        long offset = requestedOffset < 0 ? Math.max(0, fileSize + requestedOffset) : requestedOffset;
+        if (offset > fileSize) {
+            file.close();
+            return options.error("Range out of bounds");
+        }
+        int dataLen = (int) Math.min(length, fileSize - offset);
+
+        System.out.println("[ChunkedFileServer] Sent range " + fileName + " @" + offset + " len=" + dataLen);
+        TransferReply reply = options.reply()
+                .type(FileTransferProtocol.RANGE_DATA)
+                .int64(offset)
+                .int32(dataLen)
+                .int64(fileSize);
+        if (dataLen == 0) {
+            file.close();
+            return reply;
+        }
+        return reply.file(file.getChannel(), offset, dataLen, file);
+    }
+
+    /**
+     * GET_HAVE|file|chunkSize -> CHUNK_MAP, totalChunks, haveCount, len, bitmap.
+     *
+     * File trong share folder luôn đủ: trả haveCount = totalChunks, không kèm bitmap.
+     * File đang tải dở: bitmap các chunk đã có.
+     */
+    private TransferReply handleHaveRequest(TransferRequest.Have request, Path root,
+                                            SessionOptions options) throws IOException {
+        String fileName = request.fileName();
+        int chunkSize = request.chunkSize();
+        if (!FileTransferProtocol.isValidChunkSize(chunkSize)) {
+            return options.error("Invalid chunk size");
+        }
+
+        long fileSize;
+        try (OpenFileCache.Handle file = filesFor(root).acquire(fileName)) {
+            if (file == null) {
+                return partialHave(fileName, chunkSize, options);
+            }
+            fileSize = file.getSize();
+        }
+        int totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        return options.reply()
+                .type(FileTransferProtocol.CHUNK_MAP)
+                .int32(totalChunks)
+                .int32(totalChunks)
+                .int32(0);
+    }
+
+    // ---------------- file đang tải dở ----------------
+
+    // null nếu không tải dở file này, client cũ, hoặc chunk size khác lần tải (bitmap theo chunk size đó)
+    private static PartialDownloads.Entry partialFor(String fileName, int chunkSize, SessionOptions options) {
+        if (!options.acceptsPartial()) return null;
+        PartialDownloads.Entry partial = PartialDownloads.get(fileName);
+        if (partial == null || (chunkSize > 0 && partial.getMeta().getChunkSize() != chunkSize)) return null;
+        return partial;
+    }
+
+    /**
+     * FILE_META_PARTIAL: file, fileSize, chunkSize, totalChunks, [alg], fileSha256,
+     * rồi "full" + hash từng chunk hoặc "merkle" + gốc: manifest của lần tải, client kiểm chunk theo nó.
+     * Chunk size và thuật toán băm là của lần tải, không theo client xin.
+     */
+    private TransferReply partialMetaResponse(String fileName, String offeredAlgorithms, SessionOptions options) {
+        PartialDownloads.Entry partial = partialFor(fileName, 0, options);
+        if (partial == null) {
+            return options.error("File not found");
+        }
+        FileMetadata meta = partial.getMeta();
+        // client không gửi danh sách thuật toán thì hiểu hash cả file là SHA-256;
+        // lần tải không có gì để kiểm từng chunk thì không phục vụ
+        if ((offeredAlgorithms == null && meta.getHashAlgorithm() != HashAlgorithm.SHA_256)
+                || (!meta.isMerkle() && meta.getChunkHashes().isEmpty())) {
+            return options.error("File not found");
+        }
+        options.setHashAlgorithm(fileName, meta.getChunkSize(), meta.getHashAlgorithm());
+        if (meta.isMerkle()) options.enableProofs(fileName, meta.getChunkSize());
+
+        TransferReply reply = options.reply().type(FileTransferProtocol.FILE_META_PARTIAL);
+        appendFileRef(reply, fileName, meta.getChunkSize(), options);
+        reply.int64(meta.getFileSize())
+                .int32(meta.getChunkSize())
+                .int32(meta.getTotalChunks());
+        if (offeredAlgorithms != null) reply.text(meta.getHashAlgorithm().getId());
+        reply.hash(meta.getFileSha256());
+        if (meta.isMerkle()) {
+            reply.text(FileTransferProtocol.META_MERKLE)
+                    .hash(meta.getMerkleRoot());
+        } else {
+            reply.text(FileTransferProtocol.META_FULL);
+            for (String h : meta.getChunkHashes()) reply.hash(h);
+        }
+        System.out.println("[ChunkedFileServer] Sent partial metadata for " + fileName + " ("
+                + Math.round(partial.getProgressPercent()) + "% downloaded)");
+        return reply;
+    }
+
+    private TransferReply partialHave(String fileName, int chunkSize, SessionOptions options) {
+        PartialDownloads.Entry partial = partialFor(fileName, chunkSize, options);
+        if (partial == null) {
+            return options.error("File not found");
+        }
+        BitSet chunks = partial.chunks();
+        int totalChunks = partial.getMeta().getTotalChunks();
+        int haveCount = chunks.cardinality();
+        byte[] bitmap = haveCount == totalChunks ? new byte[0] : chunks.toByteArray();
+        return options.reply()
+                .type(FileTransferProtocol.CHUNK_MAP)
+                .int32(totalChunks)
+                .int32(haveCount)
+                .int32(bitmap.length)
+                .write(bitmap, 0, bitmap.length);
+    }
+
+    private TransferReply partialBatch(String fileName, int chunkSize, int[] indexes, SessionOptions options) {
+        PartialDownloads.Entry partial = partialFor(fileName, chunkSize, options);
+        if (partial == null) {
+            return options.error("File not found");
+        }
+        TransferReply reply = options.reply()
+                .type(FileTransferProtocol.CHUNK_BATCH)
+                .int32(indexes.length);
+        for (int chunkIndex : indexes) {
+            PartialDownloads.Chunk chunk = partial.readChunk(chunkIndex);
+            if (chunk == null) {
+                appendChunkError(reply, chunkIndex, "Chunk not available");
+            } else {
+                appendPartialChunk(reply, partial, chunkIndex, chunk, options);
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Chunk từ .part đã kiểm theo manifest của lần tải: gửi hash chunk (và proof) của manifest đó.
+     * Không nén, không qua hot cache (đang tải dở, ít peer xin lại cùng chunk).
+     */
+    private static void appendPartialChunk(TransferReply reply, PartialDownloads.Entry partial, int chunkIndex,
+                                           PartialDownloads.Chunk chunk, SessionOptions options) {
+        String fileName = partial.getFileName();
+        int chunkSize = partial.getMeta().getChunkSize();
+        HashAlgorithm algorithm = options.hashAlgorithm(fileName, chunkSize);
+        // session chưa nhận FILE_META_PARTIAL của file này thì hash theo thuật toán mặc định của session
+        String hash = algorithm == partial.getMeta().getHashAlgorithm()
+                ? chunk.hash()
+                : FileHashUtil.hash(algorithm, chunk.data());
+        if (chunk.proof() != null && options.sendsProofs(fileName, chunkSize)) {
+            reply.type(FileTransferProtocol.CHUNK_PROOF).int32(chunkIndex);
+            appendProofHashes(reply, chunk.proof());
+        }
+        System.out.println("[ChunkedFileServer] Sent chunk " + chunkIndex + " len=" + chunk.data().length
+                + " (partial)");
+        reply.type(FileTransferProtocol.CHUNK_DATA)
+                .int32(chunkIndex)
+                .int32(chunk.data().length)
+                .hash(hash)
+                .write(chunk.data(), 0, chunk.data().length);
+    }
+
+    /**
+     * Chunk size cho 1 file: client yêu cầu cụ thể (vd đang resume) thì theo client,
+     * 0 thì chọn theo size file. Luôn là lũy thừa của 2 trong [MIN_CHUNK_SIZE, MAX_CHUNK_SIZE].
+     */
+    static int chooseChunkSize(long fileSize, int preferred) {
+        if (preferred > 0) return roundChunkSize(preferred);
+        return roundChunkSize(fileSize / TARGET_CHUNKS_PER_FILE);
+    }
+
+    // làm tròn lên lũy thừa của 2 rồi kẹp trong khoảng cho phép
+    private static int roundChunkSize(long size) {
+        if (size <= FileTransferProtocol.MIN_CHUNK_SIZE) return FileTransferProtocol.MIN_CHUNK_SIZE;
+        if (size >= FileTransferProtocol.MAX_CHUNK_SIZE) return FileTransferProtocol.MAX_CHUNK_SIZE;
+        int s = (int) size;
+        return Integer.bitCount(s) == 1 ? s : Integer.highestOneBit(s) << 1;
+    }
+
+    // đọc theo vị trí, không đụng position của channel dùng chung
+    private static void readFully(FileChannel fc, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = fc.read(dst, position);
+            if (n < 0) throw new EOFException("File truncated while reading");
+            position += n;
+        }
+    }
+
+    private OpenFileCache filesFor(Path root) {
+        OpenFileCache files = openFiles;
+        if (files == null || !files.getRoot().equals(root)) {
+            synchronized (this) {
+                files = openFiles;
+                if (files == null || !files.getRoot().equals(root)) {
+                    if (files != null) files.close();
+                    files = new OpenFileCache(root);
+                    openFiles = files;
+                }
+            }
+        }
+        return files;
+    }
+
+    // cache gắn với root đang dùng cho request này (changeFolder có thể vừa đổi)
+    private ManifestCache cacheFor(Path root) {
+        ManifestCache cache = manifestCache;
+        if (cache == null || !cache.getRoot().equals(root)) {
+            cache = new ManifestCache(root);
+            manifestCache = cache;
+        }
+        return cache;
+    }
+}
@@ -1,9 +1,11 @@
 package org.example.p2pfileshare.service;
 
+import org.example.p2pfileshare.model.PeerInfo;
 import org.example.p2pfileshare.network.transfer.DownloadControl;
 import org.example.p2pfileshare.network.transfer.ChunkedFileClient;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
@@ -25,6 +27,7 @@ public class DownloadJob {
     private final String host;
     private final int port;
     private final String remotePath;   // fileName / relativePath phía server
+    private final List<PeerInfo> sources; // swarm: nhiều peer cùng có file, null = chỉ host/port
     private final Path saveTo;
 
     private final Consumer<Double> onProgress; // 0..1
@@ -41,9 +44,26 @@ public class DownloadJob {
                        Consumer<Double> onProgress,
                        Consumer<State> onState,
                        Consumer<Throwable> onError) {
+        this(host, port, null, remotePath, saveTo, onProgress, onState, onError);
+    }
+
+    /** Tải cùng lúc từ mọi peer trong sources (đều share file này), peer đầu tiên là nguồn chính */
+    public DownloadJob(List<PeerInfo> sources, String remotePath, Path saveTo,
+                       Consumer<Double> onProgress,
+                       Consumer<State> onState,
+                       Consumer<Throwable> onError) {
+        this(sources.get(0).getIp(), sources.get(0).getFileServerPort(), List.copyOf(sources),
+                remotePath, saveTo, onProgress, onState, onError);
+    }
+
+    private DownloadJob(String host, int port, List<PeerInfo> sources, String remotePath, Path saveTo,
+                        Consumer<Double> onProgress,
+                        Consumer<State> onState,
+                        Consumer<Throwable> onError) {
 
         this.host = Objects.requireNonNull(host);
         this.port = port;
+        this.sources = sources;
         this.remotePath = Objects.requireNonNull(remotePath);
         this.saveTo = Objects.requireNonNull(saveTo);
 
@@ -61,13 +81,15 @@ public class DownloadJob {
         worker = new Thread(() -> {
             try {
                 // Gọi ChunkedFileClient có hỗ trợ control
-                success = ChunkedFileClient.downloadFile(
-                        host, port, remotePath, saveTo,
-                        p -> {
-                            if (onProgress != null) onProgress.accept(p);
-                        },
-                        control
-                );
+                Consumer<Double> progress = p -> {
+                    if (onProgress != null) onProgress.accept(p);
+                };
+                // 1 nguồn cũng đi qua swarm: nguồn đó có thể mới tải dở file (chỉ có 1 phần chunk)
+                if (sources != null) {
+                    success = ChunkedFileClient.downloadFile(sources, remotePath, saveTo, progress, control);
+                } else {
+                    success = ChunkedFileClient.downloadFile(host, port, remotePath, saveTo, progress, control);
+                }
 
                 if (control.isCancelled()) {
                     setState(State.CANCELLED);
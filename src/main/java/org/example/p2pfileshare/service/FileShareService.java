@@ -5,6 +5,8 @@ import org.example.p2pfileshare.model.PeerInfo;
 import org.example.p2pfileshare.model.SharedFileLocal;
 import org.example.p2pfileshare.network.transfer.ChunkedFileClient;
 import org.example.p2pfileshare.network.transfer.ChunkedFileServer;
+import org.example.p2pfileshare.network.transfer.PartialDownloads;
+import org.example.p2pfileshare.util.AppConfig;
 import org.example.p2pfileshare.util.DownloadHistoryManager;
 import org.example.p2pfileshare.service.DownloadJob;
 import java.util.function.Consumer;
@@ -12,38 +14,95 @@ import java.io.File;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import org.example.p2pfileshare.service.SimpleAIService;
 
 public class FileShareService {
 
+    // engine selector: nhiều peer tải cùng lúc không phải xếp hàng chờ thread
+    private static final ChunkedFileServer.Mode FILE_SERVER_MODE = ChunkedFileServer.Mode.NIO;
+    // giới hạn upload (byte/giây, 0 = không giới hạn), lưu lại giữa các lần chạy
+    private static final String KEY_UPLOAD_LIMIT_GLOBAL = "upload_limit_global";
+    private static final String KEY_UPLOAD_LIMIT_PER_PEER = "upload_limit_per_peer";
+
     private final int fileServerPort;
     private File shareFolder;
     private ChunkedFileServer fileServer; // dùng ChunkedFileServer để chia sẻ file
     private HistoryService historyService;
     private String myDisplayName;
     private final SimpleAIService aiService = new SimpleAIService();
+    private ShareIndex shareIndex; // danh mục file share trong RAM, cập nhật theo WatchService
+    // dòng LIST_FILES của file đang tải dở: subject/tag đoán 1 lần mỗi lần tải (như file share lúc index),
+    // lần tải kết thúc (bỏ đăng ký) thì entry tự rơi khỏi map
+    private final Map<PartialDownloads.Entry, SharedFileLocal> partialListings =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private long uploadLimitGlobal;
+    private long uploadLimitPerPeer;
 
     public FileShareService(int fileServerPort, HistoryService historyService) {
         this.fileServerPort = fileServerPort;
         this.historyService = historyService;
+        this.uploadLimitGlobal = loadLimit(KEY_UPLOAD_LIMIT_GLOBAL);
+        this.uploadLimitPerPeer = loadLimit(KEY_UPLOAD_LIMIT_PER_PEER);
     }
 
     // khởi tạo server từ người share
     public synchronized void startServer() {
         if (fileServer == null && shareFolder != null) {
-            fileServer = new ChunkedFileServer(fileServerPort, shareFolder.toPath());
+            fileServer = newFileServer(shareFolder.toPath());
             fileServer.start();
         }
     }
 
+    /** Đổi giới hạn upload lúc đang chạy (byte/giây, 0 = không giới hạn) */
+    public synchronized void setUploadLimits(long globalBytesPerSec, long perPeerBytesPerSec) {
+        uploadLimitGlobal = Math.max(0, globalBytesPerSec);
+        uploadLimitPerPeer = Math.max(0, perPeerBytesPerSec);
+        AppConfig.save(KEY_UPLOAD_LIMIT_GLOBAL, String.valueOf(uploadLimitGlobal));
+        AppConfig.save(KEY_UPLOAD_LIMIT_PER_PEER, String.valueOf(uploadLimitPerPeer));
+        if (fileServer != null) {
+            fileServer.setUploadLimits(uploadLimitGlobal, uploadLimitPerPeer);
+        }
+    }
+
+    public long getUploadLimitGlobal() {
+        return uploadLimitGlobal;
+    }
+
+    public long getUploadLimitPerPeer() {
+        return uploadLimitPerPeer;
+    }
+
+    private ChunkedFileServer newFileServer(Path folder) {
+        ChunkedFileServer server = new ChunkedFileServer(fileServerPort, folder, FILE_SERVER_MODE);
+        if (uploadLimitGlobal > 0 || uploadLimitPerPeer > 0) {
+            server.setUploadLimits(uploadLimitGlobal, uploadLimitPerPeer);
+        }
+        return server;
+    }
+
+    private static long loadLimit(String key) {
+        String saved = AppConfig.load(key);
+        if (saved == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(saved.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     // dừng server
-    public void stopServer() {
+    public synchronized void stopServer() {
         if (fileServer != null) {
             fileServer.stopServer();
             fileServer = null;
         }
+        closeShareIndex();
     }
 
     // đổi folder chia sẻ
@@ -51,6 +110,7 @@ public class FileShareService {
         // folder null → không share
         if (folder == null || !folder.exists() || !folder.isDirectory()) {
             this.shareFolder = null;
+            closeShareIndex();
             if (fileServer != null) {
                 fileServer.changeFolder(null);
             }
@@ -59,10 +119,15 @@ public class FileShareService {
 
         // set thư mục mới
         this.shareFolder = folder;
+        // index lại trên thread nền (cùng thư mục thì giữ index cũ)
+        if (shareIndex == null || !shareIndex.getRoot().equals(folder.toPath())) {
+            closeShareIndex();
+            shareIndex = ShareIndex.open(folder.toPath(), aiService);
+        }
 
         // nếu server chưa chạy → khởi động
         if (fileServer == null) {
-            fileServer = new ChunkedFileServer(fileServerPort, folder.toPath());
+            fileServer = newFileServer(folder.toPath());
             fileServer.start();
         }
         // nếu server đang chạy → đổi folder ngay lập tức không cần restart
@@ -80,69 +145,81 @@ public class FileShareService {
         return historyService.loadHistory();
     }
 
-    // liệt kê file trong thư mục chia sẻ
+    // liệt kê file trong thư mục chia sẻ (từ index, không đọc ổ đĩa), không sửa được
     public List<SharedFileLocal> listSharedFiles() {
-        List<SharedFileLocal> result = new ArrayList<>();
-
-        if (shareFolder == null) return result;
-
-        File[] files = shareFolder.listFiles();
-        if (files == null) return result;
-
-        for (File f : files) {
-            if (f.isFile() && !f.isHidden()) {
-                result.add(buildMetadata(f));
-            }
-        }
+        ShareIndex index = currentIndex();
+        return index == null ? List.of() : index.list();
+    }
 
-        return result;
+    /** File cho peer khác thấy (LIST_FILES): file đang share + file đang tải dở (tải được phần đã có) */
+    public List<SharedFileLocal> listAdvertisedFiles() {
+        List<SharedFileLocal> list = new ArrayList<>(listSharedFiles());
+        addPartialFiles(list, null);
+        return list;
     }
 
     public List<SharedFileLocal> searchLocalFiles(String keyword) {
-        // 1. Lấy tất cả file đang chia sẻ
-        List<SharedFileLocal> allFiles = listSharedFiles();
+        ShareIndex index = currentIndex();
+        if (index == null) return new ArrayList<>();
 
-        // 2. Nếu từ khóa trống thì trả về danh sách rỗng (hoặc trả hết tùy ý)
+        List<SharedFileLocal> result;
+        // Nếu từ khóa trống thì trả hết
         if (keyword == null || keyword.trim().isEmpty() || keyword.equals("*")) {
-            return new ArrayList<>(allFiles);
+            result = new ArrayList<>(index.list());
+            keyword = null;
+        } else {
+            // Lọc file khớp tên
+            result = index.search(keyword);
         }
+        addPartialFiles(result, keyword);
+        return result;
+    }
 
-        String searchKey = keyword.toLowerCase().trim();
-
-        // 3. Lọc file khớp tên
-        return allFiles.stream()
-                .filter(f -> f.getFileName().toLowerCase().contains(searchKey))
-                .collect(Collectors.toList());
+    // thêm file đang tải dở (tên chứa keyword, null = mọi file), bỏ qua file đã có trong share folder
+    private void addPartialFiles(List<SharedFileLocal> files, String keyword) {
+        List<PartialDownloads.Entry> partials = PartialDownloads.list();
+        if (partials.isEmpty()) return;
+        String key = keyword == null ? null : keyword.toLowerCase().trim();
+        Set<String> shared = new HashSet<>();
+        for (SharedFileLocal f : files) shared.add(f.getRelativePath());
+        for (PartialDownloads.Entry e : partials) {
+            if (shared.contains(e.getFileName())) continue;
+            SharedFileLocal listing = partialListings.computeIfAbsent(e, this::partialListing);
+            if (key != null && !listing.getFileName().toLowerCase().contains(key)) continue;
+            files.add(listing);
+        }
     }
 
-    // tạo metadata cho file
-    private SharedFileLocal buildMetadata(File f) {
-        String fileName = f.getName();
-        long size = f.length();
+    private SharedFileLocal partialListing(PartialDownloads.Entry e) {
+        String relativePath = e.getFileName();
+        String fileName = Path.of(relativePath).getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String extension = dot >= 0 && dot < fileName.length() - 1
+                ? fileName.substring(dot + 1).toLowerCase() : "";
+        String subject = aiService.predictSubject(fileName);
+        return new SharedFileLocal(fileName, relativePath, extension, e.getFileSize(), subject,
+                aiService.predictTag(subject), true);
+    }
 
-        // đường dẫn tương đối để bên client tải về đúng
-        String relativePath = shareFolder.toPath()
-                .relativize(f.toPath())
-                .toString();
+    /** Quét lại thư mục chia sẻ ngay (bình thường index tự cập nhật khi file đổi) */
+    public void rescanSharedFiles() {
+        ShareIndex index = currentIndex();
+        if (index != null) index.rescan();
+    }
 
-        String extension = "";
-        int dot = fileName.lastIndexOf('.');
-        if (dot >= 0 && dot < fileName.length() - 1) {
-            extension = fileName.substring(dot + 1).toLowerCase();
+    // server đã dừng (stopServer) mà vẫn còn thư mục share -> mở lại index khi cần
+    private synchronized ShareIndex currentIndex() {
+        if (shareIndex == null && shareFolder != null) {
+            shareIndex = ShareIndex.open(shareFolder.toPath(), aiService);
         }
+        return shareIndex;
+    }
 
-        String subject = aiService.predictSubject(fileName);
-        String tags = aiService.predictTag(subject);
-
-        return new SharedFileLocal(
-                fileName,
-                relativePath,
-                extension,
-                size,
-                subject,
-                tags,
-                true
-        );
+    private void closeShareIndex() {
+        if (shareIndex != null) {
+            shareIndex.close();
+            shareIndex = null;
+        }
     }
 
     public void setMyDisplayName(String myDisplayName) {
@@ -156,11 +233,21 @@ public class FileShareService {
     public DownloadJob startDownload(PeerInfo peer, String relativePath, Path saveTo,
                                      Consumer<Double> progressCallback,
                                      Consumer<String> statusCallback) {
+        return startDownload(List.of(peer), relativePath, saveTo, progressCallback, statusCallback);
+    }
+
+    /**
+     * Tải từ mọi peer trong peers (cùng share file này) song song; peer có bản khác
+     * (size / hash khác đa số) bị bỏ qua. Lịch sử ghi theo peer đầu tiên.
+     */
+    public DownloadJob startDownload(List<PeerInfo> peers, String relativePath, Path saveTo,
+                                     Consumer<Double> progressCallback,
+                                     Consumer<String> statusCallback) {
+        PeerInfo peer = peers.get(0);
 
         // Tạo Job: service chỉ tạo & trả về, UI giữ job để pause/resume/cancel
         DownloadJob job = new DownloadJob(
-                peer.getIp(),
-                peer.getFileServerPort(),
+                peers,
                 relativePath,
                 saveTo,
                 p -> {
@@ -0,0 +1,248 @@
+package org.example.p2pfileshare.service;
+
+import org.example.p2pfileshare.model.SharedFileLocal;
+import org.example.p2pfileshare.network.transfer.ManifestCache;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Danh mục file đang share (chỉ file ở cấp đầu của share folder), giữ trong RAM.
+ *
+ * Quét 1 lần trên thread nền khi mở, sau đó cập nhật theo WatchService (tạo / sửa / xóa file).
+ * Phân loại môn học / tag chỉ chạy 1 lần mỗi file, LIST_FILES và SEARCH_REQ đọc snapshot,
+ * không chạm ổ đĩa.
+ */
+public class ShareIndex implements AutoCloseable {
+
+    // listSharedFiles ngay sau khi mở chờ lần quét đầu tối đa chừng này, quá thì trả phần đã có
+    private static final long INITIAL_SCAN_WAIT_MS = 5000;
+
+    private final Path root;
+    private final SimpleAIService aiService;
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    // tên file -> entry; chỉ sửa trong các hàm synchronized
+    private final Map<String, Entry> entries = new HashMap<>();
+    // bản chụp sắp theo tên, thay nguyên list mỗi lần đổi -> đọc không cần lock
+    private volatile List<Entry> snapshot = List.of();
+    private volatile List<SharedFileLocal> files = List.of();
+
+    private WatchService watcher;
+    private Thread thread;
+    private volatile boolean closed;
+
+    // tên viết thường tính sẵn để tìm không phải toLowerCase từng file mỗi lần
+    private record Entry(SharedFileLocal file, String lowerName) {}
+
+    private ShareIndex(Path root, SimpleAIService aiService) {
+        this.root = root;
+        this.aiService = aiService;
+    }
+
+    /** Mở index cho thư mục, quét + theo dõi trên thread nền */
+    public static ShareIndex open(Path root, SimpleAIService aiService) {
+        ShareIndex index = new ShareIndex(root, aiService);
+        index.thread = new Thread(index::run, "share-index");
+        index.thread.setDaemon(true);
+        index.thread.start();
+        return index;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /** Danh sách file (không sửa được), sắp theo tên */
+    public List<SharedFileLocal> list() {
+        awaitInitialScan();
+        return files;
+    }
+
+    /** File có tên chứa keyword (không phân biệt hoa thường) */
+    public List<SharedFileLocal> search(String keyword) {
+        awaitInitialScan();
+        String key = keyword.toLowerCase().trim();
+        List<SharedFileLocal> result = new ArrayList<>();
+        for (Entry e : snapshot) {
+            if (e.lowerName.contains(key)) result.add(e.file);
+        }
+        return result;
+    }
+
+    /** Quét lại toàn bộ thư mục ngay trên thread gọi (nút "Quét lại" / sự kiện bị tràn) */
+    public synchronized void rescan() {
+        Map<String, Entry> old = new HashMap<>(entries);
+        entries.clear();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(root)) {
+            for (Path p : dir) {
+                String name = p.getFileName().toString();
+                Entry e = load(p, old.get(name));
+                if (e != null) entries.put(name, e);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            System.err.println("[ShareIndex] Cannot scan " + root + ": " + e.getMessage());
+        }
+        publish();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        WatchService w;
+        synchronized (this) {
+            w = watcher;
+        }
+        if (w != null) {
+            try {
+                w.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (thread != null) thread.interrupt();
+    }
+
+    private void awaitInitialScan() {
+        try {
+            ready.await(INITIAL_SCAN_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        WatchKey key = null;
+        WatchService w = null;
+        try {
+            w = root.getFileSystem().newWatchService();
+            synchronized (this) {
+                watcher = w;
+            }
+            if (closed) {
+                w.close();
+                return;
+            }
+            // đăng ký trước khi quét: file tạo trong lúc quét vẫn có sự kiện
+            key = root.register(w, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("[ShareIndex] Cannot watch " + root + ": " + e.getMessage()
+                    + " (updates only on rescan)");
+            // register lỗi: WatchService đã mở không ai dùng nữa
+            if (w != null) closeWatcher(w);
+        } finally {
+            rescan();
+            ready.countDown();
+        }
+        if (key == null) return;
+
+        try {
+            while (!closed) {
+                WatchKey k = watcher.take();
+                boolean overflow = false;
+                Set<String> changed = new HashSet<>();
+                // gom các sự kiện đang chờ rồi mới publish 1 lần (copy nhiều file cùng lúc)
+                do {
+                    for (WatchEvent<?> event : k.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add(((Path) event.context()).toString());
+                        }
+                    }
+                    if (!k.reset()) {
+                        // share folder bị xóa / đổi tên
+                        clear();
+                        return;
+                    }
+                } while ((k = watcher.poll()) != null);
+
+                if (overflow) {
+                    rescan();
+                } else {
+                    update(changed);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // close()
+        }
+    }
+
+    private void closeWatcher(WatchService w) {
+        synchronized (this) {
+            if (watcher == w) watcher = null;
+        }
+        try {
+            w.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void update(Set<String> names) {
+        for (String name : names) {
+            Entry e = load(root.resolve(name), entries.get(name));
+            if (e != null) {
+                entries.put(name, e);
+            } else {
+                entries.remove(name);
+            }
+        }
+        publish();
+    }
+
+    private synchronized void clear() {
+        entries.clear();
+        publish();
+    }
+
+    /** @return null nếu không share file này (thư mục, file ẩn, thư mục index, đã bị xóa) */
+    private Entry load(Path p, Entry previous) {
+        String fileName = p.getFileName().toString();
+        if (ManifestCache.INDEX_DIR.equals(fileName)) return null;
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || Files.isHidden(p)) return null;
+        } catch (IOException e) {
+            return null;
+        }
+        long size = attrs.size();
+        if (previous != null && previous.file.getSize() == size) return previous;
+
+        String subject;
+        String tags;
+        if (previous != null) {
+            // phân loại chỉ theo tên file, sửa nội dung không cần chạy lại
+            subject = previous.file.getSubject();
+            tags = previous.file.getTag();
+        } else {
+            subject = aiService.predictSubject(fileName);
+            tags = aiService.predictTag(subject);
+        }
+
+        String extension = "";
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0 && dot < fileName.length() - 1) {
+            extension = fileName.substring(dot + 1).toLowerCase();
+        }
+
+        // đường dẫn tương đối để bên client tải về đúng
+        String relativePath = root.relativize(p).toString();
+        SharedFileLocal file = new SharedFileLocal(fileName, relativePath, extension, size, subject, tags, true);
+        return new Entry(file, fileName.toLowerCase());
+    }
+
+    private void publish() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(e -> e.file.getFileName()));
+        List<SharedFileLocal> list = new ArrayList<>(sorted.size());
+        for (Entry e : sorted) list.add(e.file);
+        snapshot = List.copyOf(sorted);
+        files = Collections.unmodifiableList(list);
+    }
+}
@@ -0,0 +1,156 @@
+package org.example.p2pfileshare.util;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor cho server kiểu "1 task / kết nối" (ChunkedFileServer blocking, ControlServer).
+ *
+ * - PLATFORM_POOL: pool cố định, giới hạn = số thread.
+ * - VIRTUAL_THREADS: mỗi kết nối 1 virtual thread (Java 21+), giữ code blocking đơn giản
+ *   mà vẫn chịu được hàng nghìn peer chậm/idle. JVM cũ hơn thì dùng cached pool platform thread.
+ *
+ * Cả 2 đều có giới hạn số kết nối đồng thời, theo 1 trong 2 cách:
+ * - accept loop gọi {@link #acquire()} trước accept() rồi {@link #execute(Runnable)} (ControlServer):
+ *   đủ giới hạn thì kết nối mới nằm chờ ở backlog của OS thay vì bị accept rồi xếp hàng.
+ * - server tự quyết định nhận kết nối nào (ChunkedFileServer qua AdmissionControl: accept ngay,
+ *   xếp hàng hoặc trả BUSY) thì gọi {@link #executeAdmitted(Runnable)}, không dùng permit ở đây;
+ *   giới hạn của nó phải lấy từ {@link #effectiveLimit(Model, int)} để không vượt số thread thật.
+ */
+public final class ConnectionExecutor {
+
+    public enum Model {
+        PLATFORM_POOL,
+        VIRTUAL_THREADS
+    }
+
+    // VIRTUAL_THREADS trên JVM < 21 thì tối đa chừng này platform thread (mỗi thread giữ 1 stack riêng)
+    public static final int MAX_PLATFORM_THREADS = 128;
+
+    private static final boolean VIRTUAL_THREADS_AVAILABLE = Runtime.version().feature() >= 21;
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final boolean virtual;
+
+    private ConnectionExecutor(ExecutorService delegate, int maxConcurrent, boolean virtual) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+        this.virtual = virtual;
+    }
+
+    public static ConnectionExecutor create(Model model, String threadName, int maxConcurrent) {
+        int limit = effectiveLimit(model, maxConcurrent);
+        if (model == Model.VIRTUAL_THREADS) {
+            ExecutorService vt = newVirtualThreadPerTaskExecutor();
+            if (vt != null) {
+                return new ConnectionExecutor(vt, limit, true);
+            }
+            // mỗi kết nối 1 platform thread: không để giới hạn của virtual thread (hàng nghìn) thành số thread
+            limit = Math.min(limit, MAX_PLATFORM_THREADS);
+            System.out.println("[ConnectionExecutor] Virtual threads not available (Java "
+                    + Runtime.version().feature() + "), using at most " + limit + " platform threads for "
+                    + threadName);
+        }
+        return new ConnectionExecutor(Executors.newFixedThreadPool(limit, daemonFactory(threadName)), limit, false);
+    }
+
+    /**
+     * Số kết nối đồng thời thực tế của model: VIRTUAL_THREADS trên JVM không có virtual thread (< 21)
+     * chạy platform thread nên bị kẹp về {@link #MAX_PLATFORM_THREADS}.
+     * Server có giới hạn kết nối riêng (AdmissionControl) phải dùng số này.
+     */
+    public static int effectiveLimit(Model model, int maxConcurrent) {
+        int limit = Math.max(1, maxConcurrent);
+        if (model == Model.VIRTUAL_THREADS && !VIRTUAL_THREADS_AVAILABLE) {
+            return Math.min(limit, MAX_PLATFORM_THREADS);
+        }
+        return limit;
+    }
+
+    /** Chờ tới khi còn slot cho 1 kết nối mới (gọi trước accept) */
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    /** Trả slot khi không dùng tới (vd accept lỗi) */
+    public void release() {
+        permits.release();
+    }
+
+    /** Chạy task đã giữ 1 slot từ {@link #acquire()}, slot tự trả khi task xong */
+    public void execute(Runnable task) {
+        try {
+            delegate.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Chạy task không qua slot của executor, dùng khi số kết nối đã được giới hạn ở chỗ khác
+     * (vd AdmissionControl của ChunkedFileServer).
+     */
+    public void executeAdmitted(Runnable task) {
+        delegate.execute(task);
+    }
+
+    /** @return các task chưa kịp chạy */
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    // Build nhắm Java 17 nên gọi qua reflection, chạy trên 21+ mới có
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger id = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + id.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
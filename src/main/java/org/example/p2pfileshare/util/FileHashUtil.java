@@ -1,46 +1,161 @@
+
 package org.example.p2pfileshare.util;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class FileHashUtil {
+    // đọc file theo block lớn, ít syscall hơn buffer 8 KB
+    private static final int FILE_READ_BUFFER = 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // bộ băm rảnh giữ lại tối đa chừng này / thuật toán, dùng chung mọi thread
+    // (không theo thread: virtual thread / worker đến rồi đi thì số bộ băm vẫn không tăng theo)
+    private static final int MAX_POOLED_HASHERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final Map<HashAlgorithm, BlockingQueue<HashAlgorithm.Hasher>> HASHERS = new EnumMap<>(HashAlgorithm.class);
+
+    static {
+        for (HashAlgorithm a : HashAlgorithm.values()) {
+            HASHERS.put(a, new ArrayBlockingQueue<>(MAX_POOLED_HASHERS));
+        }
+    }
+
   // băm từng chunck để kiểm tra tính toàn vẹn
     public static String sha256(byte[] data) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data);
-            return bytesToHex(hash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return sha256(data, 0, data.length);
+    }
+
+    // băm 1 đoạn của buffer (không cần copy ra mảng mới)
+    public static String sha256(byte[] data, int offset, int length) {
+        return hash(HashAlgorithm.SHA_256, data, offset, length);
     }
 // băm cả file để kiểm tra tính toàn vẹn
     public static String sha256(Path filePath) throws IOException {
+        return hash(HashAlgorithm.SHA_256, filePath);
+    }
+
+    // như sha256(...) nhưng theo thuật toán đã thống nhất cho file
+    public static String hash(HashAlgorithm algorithm, byte[] data) {
+        return hash(algorithm, data, 0, data.length);
+    }
+
+    public static String hash(HashAlgorithm algorithm, byte[] data, int offset, int length) {
+        return bytesToHex(digest(algorithm, data, offset, length));
+    }
+
+    // băm phần còn lại của buffer (kể cả direct buffer, không copy ra heap)
+    public static String hash(HashAlgorithm algorithm, ByteBuffer data) {
+        return bytesToHex(digest(algorithm, data));
+    }
+
+    public static String hash(HashAlgorithm algorithm, Path filePath) throws IOException {
+        return bytesToHex(digest(algorithm, filePath));
+    }
+
+    // ---------------- digest thô: so sánh bằng byte, chỉ đổi ra hex khi cần ghi ra ngoài ----------------
+
+    public static byte[] digest(HashAlgorithm algorithm, byte[] data, int offset, int length) {
+        HashAlgorithm.Hasher hasher = borrowHasher(algorithm);
+        try {
+            hasher.update(data, offset, length);
+            return hasher.digest();
+        } finally {
+            returnHasher(algorithm, hasher);
+        }
+    }
+
+    /** Đọc hết buffer (position tới limit) */
+    public static byte[] digest(HashAlgorithm algorithm, ByteBuffer data) {
+        HashAlgorithm.Hasher hasher = borrowHasher(algorithm);
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            try (InputStream fis = Files.newInputStream(filePath)) {
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    digest.update(buffer, 0, read);
-                }
+            hasher.update(data);
+            return hasher.digest();
+        } finally {
+            returnHasher(algorithm, hasher);
+        }
+    }
+
+    public static byte[] digest(HashAlgorithm algorithm, Path filePath) throws IOException {
+        HashAlgorithm.Hasher hasher = borrowHasher(algorithm);
+        try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            // direct: channel đọc thẳng vào, không qua buffer tạm rồi copy sang heap
+            ByteBuffer buffer = ByteBuffer.allocateDirect(FILE_READ_BUFFER);
+            while (fc.read(buffer) != -1) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
             }
-            return bytesToHex(digest.digest());
+            return hasher.digest();
+        } finally {
+            returnHasher(algorithm, hasher);
+        }
+    }
+
+    /**
+     * Mượn 1 bộ băm sạch cho thuật toán này từ pool (hết thì tạo mới), thay vì MessageDigest.getInstance
+     * mỗi chunk. Phải trả lại bằng {@link #returnHasher} trong finally và không dùng tiếp sau khi trả.
+     */
+    public static HashAlgorithm.Hasher borrowHasher(HashAlgorithm algorithm) {
+        HashAlgorithm.Hasher hasher = HASHERS.get(algorithm).poll();
+        return hasher != null ? hasher : algorithm.newHasher();
+    }
+
+    /** Trả bộ băm đã mượn (reset luôn, phòng lần dùng vừa rồi ném exception giữa chừng); pool đầy thì bỏ */
+    public static void returnHasher(HashAlgorithm algorithm, HashAlgorithm.Hasher hasher) {
+        hasher.reset();
+        HASHERS.get(algorithm).offer(hasher);
+    }
+
+    /** Digest thô có đúng là hash hex này không (không đổi digest ra chuỗi) */
+    public static boolean matches(byte[] digest, String hex) {
+        if (hex == null || hex.length() != digest.length * 2) return false;
+        for (int i = 0; i < digest.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0 || (byte) ((hi << 4) | lo) != digest[i]) return false;
+        }
+        return true;
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
+    public static String toHex(byte[] bytes) {
+        return bytesToHex(bytes);
+    }
+
+    // hex (2 ký tự / byte) -> bytes, ném IllegalArgumentException nếu không phải hex
+    public static byte[] fromHex(String hex) {
+        if ((hex.length() & 1) != 0) throw new IllegalArgumentException("Odd hex length");
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("Invalid hex: " + hex);
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
     private static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            out[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
         }
-        return sb.toString();
+        return new String(out);
     }
 }
-
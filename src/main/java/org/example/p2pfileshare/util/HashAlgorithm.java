@@ -0,0 +1,114 @@
+package org.example.p2pfileshare.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Thuật toán băm dùng cho manifest (hash cả file + hash từng chunk).
+ *
+ * SHA-256 là mặc định và là thứ peer cũ hiểu. MURMUR3_128 nhanh hơn nhiều trên máy yếu
+ * nhưng không phải hash mật mã: chỉ chống lỗi đường truyền / đĩa, không chống peer cố tình
+ * gửi dữ liệu giả. 2 bên thống nhất thuật toán trong FILE_META_REQUEST.
+ */
+public enum HashAlgorithm {
+
+    SHA_256("sha-256", 32) {
+        @Override
+        public Hasher newHasher() {
+            return new DigestHasher(FileHashUtil.newSha256());
+        }
+    },
+
+    MURMUR3_128("murmur3-128", 16) {
+        @Override
+        public Hasher newHasher() {
+            return new Murmur3Hasher();
+        }
+    };
+
+    public static final HashAlgorithm DEFAULT = SHA_256;
+
+    private final String id;
+    private final int digestLength;
+
+    HashAlgorithm(String id, int digestLength) {
+        this.id = id;
+        this.digestLength = digestLength;
+    }
+
+    /** Tên trên wire / trong .meta.properties */
+    public String getId() {
+        return id;
+    }
+
+    /** Số byte của digest */
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    public abstract Hasher newHasher();
+
+    /** @return null nếu không biết thuật toán này */
+    public static HashAlgorithm fromId(String id) {
+        if (id == null) return null;
+        for (HashAlgorithm a : values()) {
+            if (a.id.equalsIgnoreCase(id.trim())) return a;
+        }
+        return null;
+    }
+
+    /**
+     * Chọn thuật toán đầu tiên mình hỗ trợ trong danh sách đề nghị "a,b,c" (theo thứ tự ưu tiên của bên kia).
+     * Không có gì chung (hoặc không đề nghị) thì dùng {@link #DEFAULT}.
+     */
+    public static HashAlgorithm choose(String offered) {
+        if (offered == null) return DEFAULT;
+        for (String id : offered.split(",")) {
+            HashAlgorithm a = fromId(id);
+            if (a != null) return a;
+        }
+        return DEFAULT;
+    }
+
+    /** Bộ băm: update nhiều lần rồi digest(), dùng lại được (xem FileHashUtil.borrowHasher) */
+    public interface Hasher {
+        void update(byte[] data, int offset, int length);
+
+        /** Đọc hết phần còn lại của buffer (position tới limit) */
+        void update(ByteBuffer data);
+
+        /** Kết quả rồi reset về trạng thái ban đầu */
+        byte[] digest();
+
+        /** Bỏ dữ liệu đã update dở (vd lần dùng trước ném exception giữa chừng) */
+        void reset();
+    }
+
+    private static final class DigestHasher implements Hasher {
+        private final MessageDigest md;
+
+        DigestHasher(MessageDigest md) {
+            this.md = md;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            md.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            md.update(data);
+        }
+
+        @Override
+        public byte[] digest() {
+            return md.digest();
+        }
+
+        @Override
+        public void reset() {
+            md.reset();
+        }
+    }
+}
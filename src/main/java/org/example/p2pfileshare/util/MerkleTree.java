@@ -0,0 +1,130 @@
+package org.example.p2pfileshare.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cây Merkle trên hash các chunk của 1 file.
+ *
+ * - Lá là SHA-256 của từng chunk (đúng hash trong manifest).
+ * - Nút trong = SHA-256(0x01 || trái || phải), tiền tố 0x01 để nút trong không trùng dạng với lá.
+ * - Tầng có số nút lẻ thì nút cuối được đẩy thẳng lên tầng trên (không nhân đôi).
+ *
+ * Proof của 1 chunk là các hash anh em từ lá lên gốc (bỏ qua tầng chunk đó không có anh em),
+ * nên dài tối đa ceil(log2(số chunk)) hash.
+ */
+public final class MerkleTree {
+
+    private static final byte[] NODE_PREFIX = {0x01};
+
+    // levels[0] = lá, levels[last] = [gốc]; mỗi hash 32 byte thô
+    private final byte[][][] levels;
+
+    private MerkleTree(byte[][][] levels) {
+        this.levels = levels;
+    }
+
+    /** Dựng cây từ hash chunk (hex) */
+    public static MerkleTree build(List<String> leafHashes) {
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = new byte[leafHashes.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = FileHashUtil.fromHex(leafHashes.get(i));
+        }
+        levels.add(level);
+
+        HashAlgorithm.Hasher md = FileHashUtil.borrowHasher(HashAlgorithm.SHA_256);
+        try {
+            while (level.length > 1) {
+                byte[][] parent = new byte[(level.length + 1) / 2][];
+                for (int i = 0; i < parent.length; i++) {
+                    int left = 2 * i;
+                    parent[i] = left + 1 < level.length ? node(md, level[left], level[left + 1]) : level[left];
+                }
+                levels.add(parent);
+                level = parent;
+            }
+        } finally {
+            FileHashUtil.returnHasher(HashAlgorithm.SHA_256, md);
+        }
+        return new MerkleTree(levels.toArray(new byte[0][][]));
+    }
+
+    public int getLeafCount() {
+        return levels[0].length;
+    }
+
+    /** Gốc dạng hex, file rỗng (0 chunk) thì là SHA-256 của chuỗi rỗng */
+    public String getRoot() {
+        byte[][] top = levels[levels.length - 1];
+        if (top.length == 0) return FileHashUtil.sha256(new byte[0]);
+        return FileHashUtil.toHex(top[0]);
+    }
+
+    /** Proof của chunk leafIndex: hash anh em (hex) từ dưới lên */
+    public List<String> getProof(int leafIndex) {
+        if (leafIndex < 0 || leafIndex >= getLeafCount()) {
+            throw new IndexOutOfBoundsException("Leaf " + leafIndex + " of " + getLeafCount());
+        }
+        List<String> proof = new ArrayList<>(levels.length);
+        int index = leafIndex;
+        for (int depth = 0; depth < levels.length - 1; depth++) {
+            byte[][] level = levels[depth];
+            int sibling = index ^ 1;
+            if (sibling < level.length) {
+                proof.add(FileHashUtil.toHex(level[sibling]));
+            }
+            index >>= 1;
+        }
+        return proof;
+    }
+
+    /**
+     * Kiểm tra hash 1 chunk có nằm trong cây có gốc root không.
+     *
+     * @param leafCount tổng số chunk của file (quyết định tầng nào không có anh em)
+     */
+    public static boolean verify(String leafHash, int leafIndex, int leafCount, List<String> proof, String root) {
+        try {
+            return verify(FileHashUtil.fromHex(leafHash), leafIndex, leafCount, proof, root);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /** Như trên với hash chunk dạng thô (vừa băm xong, khỏi đổi qua hex) */
+    public static boolean verify(byte[] leafHash, int leafIndex, int leafCount, List<String> proof, String root) {
+        if (leafIndex < 0 || leafIndex >= leafCount || proof == null) return false;
+        HashAlgorithm.Hasher md = FileHashUtil.borrowHasher(HashAlgorithm.SHA_256);
+        try {
+            byte[] hash = leafHash;
+            int index = leafIndex;
+            int width = leafCount;
+            int used = 0;
+            while (width > 1) {
+                if ((index & 1) == 1) {
+                    if (used >= proof.size()) return false;
+                    hash = node(md, FileHashUtil.fromHex(proof.get(used++)), hash);
+                } else if (index + 1 < width) {
+                    if (used >= proof.size()) return false;
+                    hash = node(md, hash, FileHashUtil.fromHex(proof.get(used++)));
+                }
+                index >>= 1;
+                width = (width + 1) / 2;
+            }
+            return used == proof.size() && FileHashUtil.matches(hash, root);
+        } catch (IllegalArgumentException e) {
+            // proof / root không phải hex
+            return false;
+        } finally {
+            FileHashUtil.returnHasher(HashAlgorithm.SHA_256, md);
+        }
+    }
+
+    private static byte[] node(HashAlgorithm.Hasher md, byte[] left, byte[] right) {
+        md.update(NODE_PREFIX, 0, 1);
+        md.update(left, 0, left.length);
+        md.update(right, 0, right.length);
+        return md.digest();
+    }
+}
@@ -0,0 +1,154 @@
+package org.example.p2pfileshare.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * MurmurHash3 x64 128-bit (seed 0), dạng stream: kết quả giống bản băm 1 lần của Austin Appleby
+ * (h1 rồi h2, little-endian), nên khớp với Guava Hashing.murmur3_128().
+ *
+ * Mỗi vòng xử lý 16 byte chỉ bằng nhân / xoay bit, nhanh hơn SHA-256 nhiều lần trên CPU
+ * không có lệnh SHA.
+ */
+final class Murmur3Hasher implements HashAlgorithm.Hasher {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private long h1;
+    private long h2;
+    private long length;
+    // byte lẻ chưa đủ 1 block 16 byte, chờ lần update sau
+    private final byte[] tail = new byte[16];
+    private int tailLength;
+
+    @Override
+    public void update(byte[] data, int offset, int len) {
+        length += len;
+        if (tailLength > 0) {
+            int n = Math.min(16 - tailLength, len);
+            System.arraycopy(data, offset, tail, tailLength, n);
+            tailLength += n;
+            offset += n;
+            len -= n;
+            if (tailLength < 16) return;
+            block((long) LONG_LE.get(tail, 0), (long) LONG_LE.get(tail, 8));
+            tailLength = 0;
+        }
+        while (len >= 16) {
+            block((long) LONG_LE.get(data, offset), (long) LONG_LE.get(data, offset + 8));
+            offset += 16;
+            len -= 16;
+        }
+        if (len > 0) {
+            System.arraycopy(data, offset, tail, 0, len);
+            tailLength = len;
+        }
+    }
+
+    @Override
+    public void update(ByteBuffer data) {
+        if (data.hasArray()) {
+            update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        // buffer ngoài heap: đọc long trực tiếp, không copy ra mảng
+        length += data.remaining();
+        while (tailLength > 0 && tailLength < 16 && data.hasRemaining()) {
+            tail[tailLength++] = data.get();
+        }
+        if (tailLength == 16) {
+            block((long) LONG_LE.get(tail, 0), (long) LONG_LE.get(tail, 8));
+            tailLength = 0;
+        }
+        ByteOrder order = data.order();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (data.remaining() >= 16) {
+                block(data.getLong(), data.getLong());
+            }
+        } finally {
+            data.order(order);
+        }
+        while (data.hasRemaining()) {
+            tail[tailLength++] = data.get();
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        if (tailLength > 0) {
+            Arrays.fill(tail, tailLength, 16, (byte) 0);
+            long k1 = (long) LONG_LE.get(tail, 0);
+            long k2 = (long) LONG_LE.get(tail, 8);
+            if (tailLength > 8) {
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            }
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] out = new byte[16];
+        LONG_LE.set(out, 0, h1);
+        LONG_LE.set(out, 8, h2);
+        reset();
+        return out;
+    }
+
+    @Override
+    public void reset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        tailLength = 0;
+    }
+
+    private void block(long k1, long k2) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,211 @@
+package org.example.p2pfileshare.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pool kết nối phía client theo endpoint (host:port), để các request ngắn liên tiếp tới cùng 1 peer
+ * (metadata, chunk lẻ, LIST_FILES...) dùng lại kết nối TCP đã mở thay vì mỗi lần 1 socket mới.
+ *
+ * - Giới hạn số kết nối mỗi peer (đang mượn + đang rảnh), đủ thì chờ kết nối được trả, quá lâu thì lỗi.
+ * - Lấy kết nối rảnh mới trả gần nhất trước, kiểm tra {@link Connection#isHealthy()} trước khi đưa ra.
+ * - Kết nối rảnh quá idleTimeoutMs thì đóng (thread nền quét định kỳ), đặt ngắn hơn idle timeout
+ *   của server để không dùng phải kết nối server vừa đóng.
+ * - Connector trả null (peer cũ không giữ kết nối được) thì nhớ endpoint đó 1 lúc, caller tự dùng kết nối 1 lần.
+ *
+ * Kết nối mượn ra phải được trả bằng {@link #release(Connection, boolean)}: reusable = false khi request
+ * lỗi giữa chừng (không biết stream còn đồng bộ không) thì kết nối bị đóng.
+ */
+public final class PeerConnectionPool<C extends PeerConnectionPool.Connection> {
+
+    /** 1 kết nối trong pool */
+    public interface Connection extends AutoCloseable {
+        /** Còn dùng lại được: chưa bị đóng 2 phía, không có byte lạ đang chờ đọc */
+        boolean isHealthy();
+
+        @Override
+        void close();
+    }
+
+    @FunctionalInterface
+    public interface Connector<C> {
+        /** @return null nếu peer không hỗ trợ giữ kết nối */
+        C connect(String host, int port) throws IOException;
+    }
+
+    // peer không hỗ trợ giữ kết nối: chừng này sau mới thử lại (peer có thể đã cập nhật)
+    private static final long UNSUPPORTED_RECHECK_MS = 5 * 60_000;
+
+    private final String name;
+    private final int maxPerPeer;
+    private final long idleTimeoutMs;
+    private final long acquireTimeoutMs;
+
+    // chỉ đọc / sửa dưới lock của pool
+    private final Map<String, Endpoint> endpoints = new HashMap<>();
+    private final Map<C, Endpoint> borrowed = new IdentityHashMap<>();
+    private Thread evictor;
+
+    private final class Endpoint {
+        // kết nối rảnh, cuối deque là mới trả nhất
+        final ArrayDeque<Idle<C>> idle = new ArrayDeque<>();
+        // đang mượn + đang rảnh + đang mở dở
+        int open;
+        long unsupportedUntil;
+    }
+
+    private record Idle<C>(C connection, long since) {}
+
+    /**
+     * @param name             tên hiển thị trong log / tên thread dọn
+     * @param maxPerPeer       số kết nối tối đa tới 1 peer
+     * @param idleTimeoutMs    kết nối rảnh quá chừng này thì đóng
+     * @param acquireTimeoutMs đủ maxPerPeer thì chờ tối đa chừng này cho 1 kết nối được trả
+     */
+    public PeerConnectionPool(String name, int maxPerPeer, long idleTimeoutMs, long acquireTimeoutMs) {
+        this.name = name;
+        this.maxPerPeer = Math.max(1, maxPerPeer);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    /**
+     * Mượn 1 kết nối tới host:port: kết nối rảnh còn tốt, không có thì mở mới bằng connector.
+     *
+     * @return null nếu peer không hỗ trợ giữ kết nối (caller dùng kết nối 1 lần)
+     * @throws IOException không mở được, hoặc đủ kết nối tới peer này quá acquireTimeoutMs
+     */
+    public C acquire(String host, int port, Connector<C> connector) throws IOException {
+        String key = host + ":" + port;
+        long deadline = System.currentTimeMillis() + acquireTimeoutMs;
+        Endpoint ep;
+        while (true) {
+            C candidate = null;
+            // kết nối rảnh đã hết hạn: đóng sau khi ra khỏi lock (close có thể ghi ra socket, vd SESSION_CLOSE)
+            ArrayDeque<C> expired = new ArrayDeque<>();
+            synchronized (this) {
+                ep = endpoints.computeIfAbsent(key, k -> new Endpoint());
+                long now = System.currentTimeMillis();
+                if (ep.unsupportedUntil > now) return null;
+                Idle<C> idle;
+                while (candidate == null && (idle = ep.idle.pollLast()) != null) {
+                    if (now - idle.since <= idleTimeoutMs) {
+                        candidate = idle.connection;
+                        borrowed.put(candidate, ep);
+                    } else {
+                        ep.open--;
+                        expired.add(idle.connection);
+                    }
+                }
+                if (!expired.isEmpty()) notifyAll();
+                // có kết nối vừa hết hạn: đóng xong rồi lặp lại (đã trả chỗ, không phải chờ)
+                if (candidate == null && expired.isEmpty()) {
+                    if (ep.open < maxPerPeer) {
+                        // giữ chỗ rồi mở ngoài lock (connect có thể chậm)
+                        ep.open++;
+                        break;
+                    }
+                    long wait = deadline - now;
+                    if (wait <= 0) {
+                        throw new IOException("Too many connections to " + key);
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for connection to " + key);
+                    }
+                    continue;
+                }
+            }
+            for (C c : expired) c.close();
+            if (candidate == null) continue;
+            // kiểm tra ngoài lock: có thể phải chờ đọc thử 1 chút
+            if (candidate.isHealthy()) return candidate;
+            release(candidate, false);
+        }
+
+        C connection;
+        try {
+            connection = connector.connect(host, port);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                ep.open--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (connection != null) {
+                borrowed.put(connection, ep);
+                return connection;
+            }
+            ep.open--;
+            ep.unsupportedUntil = System.currentTimeMillis() + UNSUPPORTED_RECHECK_MS;
+            notifyAll();
+        }
+        System.out.println("[" + name + "] " + key + " does not keep connections, using one-shot connections");
+        return null;
+    }
+
+    /**
+     * Trả kết nối đã mượn.
+     *
+     * @param reusable request xong trọn vẹn, stream còn đồng bộ; false thì kết nối bị đóng
+     */
+    public void release(C connection, boolean reusable) {
+        if (connection == null) return;
+        boolean keep;
+        synchronized (this) {
+            Endpoint ep = borrowed.remove(connection);
+            if (ep == null) return;
+            keep = reusable;
+            if (keep) {
+                ep.idle.addLast(new Idle<>(connection, System.currentTimeMillis()));
+                startEvictor();
+            } else {
+                ep.open--;
+            }
+            notifyAll();
+        }
+        if (!keep) connection.close();
+    }
+
+    // đóng kết nối rảnh từ trước cutoff
+    private void evict(long cutoff) {
+        ArrayDeque<C> toClose = new ArrayDeque<>();
+        synchronized (this) {
+            for (Iterator<Endpoint> it = endpoints.values().iterator(); it.hasNext(); ) {
+                Endpoint ep = it.next();
+                // đầu deque là cũ nhất
+                while (!ep.idle.isEmpty() && ep.idle.peekFirst().since < cutoff) {
+                    toClose.add(ep.idle.pollFirst().connection);
+                    ep.open--;
+                }
+                if (ep.open == 0 && ep.unsupportedUntil <= System.currentTimeMillis()) it.remove();
+            }
+            if (!toClose.isEmpty()) notifyAll();
+        }
+        for (C c : toClose) c.close();
+    }
+
+    private void startEvictor() {
+        if (evictor != null) return;
+        evictor = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(Math.max(1000, idleTimeoutMs / 2));
+                    evict(System.currentTimeMillis() - idleTimeoutMs);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, name + "-pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+}
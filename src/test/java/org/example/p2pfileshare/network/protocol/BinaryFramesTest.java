@@ -0,0 +1,169 @@
+package org.example.p2pfileshare.network.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryFramesTest {
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] bytes(Writer w) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        w.write(out);
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private static DataInputStream in(byte[] b) {
+        return new DataInputStream(new ByteArrayInputStream(b));
+    }
+
+    @Test
+    void varIntRoundTrip() throws IOException {
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int v : values) {
+            byte[] b = bytes(out -> BinaryFrames.writeVarInt(out, v));
+            assertEquals(v, BinaryFrames.readVarInt(in(b)), "value " + v);
+        }
+    }
+
+    @Test
+    void varIntLength() throws IOException {
+        assertEquals(1, bytes(out -> BinaryFrames.writeVarInt(out, 127)).length);
+        assertEquals(2, bytes(out -> BinaryFrames.writeVarInt(out, 128)).length);
+        assertEquals(3, bytes(out -> BinaryFrames.writeVarInt(out, 1 << 20)).length);
+        // số âm không mã hoá zigzag: luôn đủ 5 byte
+        assertEquals(5, bytes(out -> BinaryFrames.writeVarInt(out, -1)).length);
+    }
+
+    @Test
+    void varLongRoundTrip() throws IOException {
+        long[] values = {0, 1, 127, 128, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for (long v : values) {
+            byte[] b = bytes(out -> BinaryFrames.writeVarLong(out, v));
+            assertEquals(v, BinaryFrames.readVarLong(in(b)), "value " + v);
+        }
+        assertEquals(10, bytes(out -> BinaryFrames.writeVarLong(out, -1)).length);
+    }
+
+    @Test
+    void zigZagRoundTrip() {
+        long[] values = {0, 1, -1, 2, -2, 1L << 40, -(1L << 40), Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long v : values) {
+            assertEquals(v, BinaryFrames.zigZagDecode(BinaryFrames.zigZagEncode(v)), "value " + v);
+        }
+        // số âm nhỏ mã hoá thành số dương nhỏ (offset GET_RANGE tính từ cuối file)
+        assertEquals(0, BinaryFrames.zigZagEncode(0));
+        assertEquals(1, BinaryFrames.zigZagEncode(-1));
+        assertEquals(2, BinaryFrames.zigZagEncode(1));
+        assertEquals(3, BinaryFrames.zigZagEncode(-2));
+        assertEquals(1, zigZagBytes(-64));
+    }
+
+    private static int zigZagBytes(long v) {
+        try {
+            return bytes(out -> BinaryFrames.writeVarLong(out, BinaryFrames.zigZagEncode(v))).length;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    void varIntTooLongIsRejected() {
+        byte[] b = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        assertThrows(ProtocolException.class, () -> BinaryFrames.readVarInt(in(b)));
+        byte[] l = new byte[11];
+        Arrays.fill(l, (byte) 0x80);
+        assertThrows(ProtocolException.class, () -> BinaryFrames.readVarLong(in(l)));
+    }
+
+    @Test
+    void truncatedVarIntThrowsEof() {
+        assertThrows(EOFException.class, () -> BinaryFrames.readVarInt(in(new byte[]{(byte) 0x80})));
+    }
+
+    @Test
+    void payloadRoundTrip() throws IOException {
+        byte[] payload = new BinaryFrames.Payload()
+                .varInt(BinaryFrames.INLINE_FILE_REF)
+                .string("phim tiếng Việt.mkv")
+                .varInt(1 << 20)
+                .zigZag(-4096)
+                .toByteArray();
+        DataInputStream in = in(payload);
+        assertEquals(BinaryFrames.INLINE_FILE_REF, BinaryFrames.readVarInt(in));
+        assertEquals("phim tiếng Việt.mkv", BinaryFrames.readString(in));
+        assertEquals(1 << 20, BinaryFrames.readVarInt(in));
+        assertEquals(-4096, BinaryFrames.zigZagDecode(BinaryFrames.readVarLong(in)));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    void frameRoundTrip() throws IOException {
+        byte[] payload = new BinaryFrames.Payload().varInt(3).varInt(7).toByteArray();
+        byte[] wire = bytes(out -> BinaryFrames.writeFrame(out, BinaryFrames.OP_GET_CHUNK, payload));
+
+        assertEquals(wire.length, BinaryFrames.frameLength(ByteBuffer.wrap(wire)));
+        BinaryFrames.Frame frame = BinaryFrames.readFrame(in(wire));
+        assertEquals(BinaryFrames.OP_GET_CHUNK, frame.opcode());
+        assertArrayEquals(payload, frame.payload());
+    }
+
+    @Test
+    void frameLengthNeedsCompleteHeader() throws IOException {
+        byte[] payload = new byte[300];
+        byte[] wire = bytes(out -> BinaryFrames.writeFrame(out, BinaryFrames.OP_GET_RANGE, payload));
+        // opcode + varint 2 byte + payload
+        assertEquals(3 + payload.length, BinaryFrames.frameLength(ByteBuffer.wrap(wire)));
+        assertEquals(-1, BinaryFrames.frameLength(ByteBuffer.wrap(wire, 0, 1)));
+        assertEquals(-1, BinaryFrames.frameLength(ByteBuffer.wrap(wire, 0, 2)));
+        // không đổi position
+        ByteBuffer buf = ByteBuffer.wrap(wire);
+        BinaryFrames.frameLength(buf);
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    void oversizedFrameIsRejected() throws IOException {
+        byte[] header = bytes(out -> {
+            out.writeByte(BinaryFrames.OP_GET_CHUNK);
+            BinaryFrames.writeVarInt(out, BinaryFrames.MAX_REQUEST_PAYLOAD + 1);
+        });
+        assertThrows(ProtocolException.class, () -> BinaryFrames.frameLength(ByteBuffer.wrap(header)));
+        assertThrows(ProtocolException.class, () -> BinaryFrames.readFrame(in(header)));
+    }
+
+    @Test
+    void oversizedStringIsRejected() throws IOException {
+        byte[] b = bytes(out -> BinaryFrames.writeVarInt(out, BinaryFrames.MAX_REQUEST_PAYLOAD + 1));
+        assertThrows(ProtocolException.class, () -> BinaryFrames.readString(in(b)));
+        byte[] negative = bytes(out -> BinaryFrames.writeVarInt(out, -1));
+        assertThrows(ProtocolException.class, () -> BinaryFrames.readString(in(negative)));
+    }
+
+    @Test
+    void digestRoundTrip() throws IOException {
+        String hex = "00ff10ab".repeat(8);
+        byte[] b = bytes(out -> BinaryFrames.writeDigest(out, hex));
+        assertEquals(BinaryFrames.DIGEST_BYTES, b.length);
+        assertEquals(hex, BinaryFrames.readDigest(in(b)));
+        assertThrows(IllegalArgumentException.class, () -> bytes(out -> BinaryFrames.writeDigest(out, "abc")));
+        assertThrows(IllegalArgumentException.class, () -> bytes(out -> BinaryFrames.writeDigest(out, "zz")));
+    }
+}
@@ -0,0 +1,215 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.model.DownloadProgress;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkSchedulerTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static DownloadProgress progress(int totalChunks) {
+        return new DownloadProgress("f.bin", (long) totalChunks * CHUNK_SIZE, CHUNK_SIZE, totalChunks, "00");
+    }
+
+    private static BitSet range(int from, int to) {
+        BitSet b = new BitSet();
+        b.set(from, to);
+        return b;
+    }
+
+    // progress còn thiếu đúng `missing` chunk cuối
+    private static DownloadProgress progressMissing(int totalChunks, int missing) {
+        DownloadProgress p = progress(totalChunks);
+        for (int i = 0; i < totalChunks - missing; i++) p.markChunkComplete(i);
+        return p;
+    }
+
+    @Test
+    void rarestChunksArePickedFirst() {
+        ChunkScheduler s = new ChunkScheduler(progress(16), ChunkScheduler.Order.RAREST_FIRST);
+        ChunkScheduler.Peer all = s.addPeer(range(0, 16));
+        s.addPeer(range(0, 8));
+
+        // 8..15 chỉ nguồn `all` có
+        int[] picked = s.claim(all, 8);
+        assertArrayEquals(new int[]{8, 9, 10, 11, 12, 13, 14, 15}, picked);
+    }
+
+    @Test
+    void equalRarityRunsContiguouslyFromRandomOrigin() {
+        int total = 64;
+        Set<Integer> firsts = new HashSet<>();
+        for (int round = 0; round < 40; round++) {
+            ChunkScheduler s = new ChunkScheduler(progress(total), ChunkScheduler.Order.RAREST_FIRST);
+            ChunkScheduler.Peer p = s.addPeer(range(0, total));
+            int[] picked = s.claim(p, 4);
+            assertEquals(4, picked.length);
+            // kết quả đã sort theo index: 4 chunk liền nhau tính vòng, có thể vắt qua cuối file
+            int gaps = 0;
+            for (int k = 0; k < picked.length; k++) {
+                int next = picked[(k + 1) % picked.length];
+                if (next != (picked[k] + 1) % total) gaps++;
+            }
+            assertEquals(1, gaps, "not a contiguous run: " + Arrays.toString(picked));
+            firsts.add(picked[0]);
+        }
+        // origin ngẫu nhiên mỗi lần tải: 40 lần cùng 1 điểm bắt đầu gần như không thể
+        assertTrue(firsts.size() > 1);
+    }
+
+    @Test
+    void sequentialPicksLowestIndexes() {
+        DownloadProgress progress = progress(16);
+        progress.markChunkComplete(1);
+        ChunkScheduler s = new ChunkScheduler(progress, ChunkScheduler.Order.SEQUENTIAL);
+        ChunkScheduler.Peer p = s.addPeer(range(0, 16));
+
+        assertArrayEquals(new int[]{0, 2, 3}, s.claim(p, 3));
+        assertArrayEquals(new int[]{4, 5}, s.claim(p, 2));
+    }
+
+    @Test
+    void onlyChunksThePeerHasAreClaimed() {
+        ChunkScheduler s = new ChunkScheduler(progress(16), ChunkScheduler.Order.SEQUENTIAL);
+        ChunkScheduler.Peer p = s.addPeer(range(4, 6));
+
+        assertArrayEquals(new int[]{4, 5}, s.claim(p, 8));
+        assertEquals(0, s.claim(p, 8).length);
+    }
+
+    @Test
+    void noDuplicateRequestsBeforeEndgame() {
+        int missing = ChunkScheduler.ENDGAME_CHUNKS + 1;
+        ChunkScheduler s = new ChunkScheduler(progressMissing(32, missing), ChunkScheduler.Order.RAREST_FIRST);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 32));
+        ChunkScheduler.Peer b = s.addPeer(range(0, 32));
+
+        assertEquals(missing, s.claim(a, 32).length);
+        // còn ENDGAME_CHUNKS + 1 chunk: chưa vào endgame, b không được xin trùng
+        assertEquals(0, s.claim(b, 32).length);
+        assertEquals(missing, s.outstanding());
+    }
+
+    @Test
+    void endgameDuplicatesOneInFlightChunk() {
+        int missing = ChunkScheduler.ENDGAME_CHUNKS;
+        ChunkScheduler s = new ChunkScheduler(progressMissing(32, missing), ChunkScheduler.Order.RAREST_FIRST);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 32));
+        ChunkScheduler.Peer b = s.addPeer(range(0, 32));
+
+        int[] first = s.claim(a, 32);
+        assertEquals(missing, first.length);
+        // mọi chunk còn thiếu đều đang bay ở a: b xin lại 1 chunk (mỗi lần 1)
+        int[] dup = s.claim(b, 32);
+        assertEquals(1, dup.length);
+        assertTrue(dup[0] >= 32 - missing);
+        assertEquals(missing + 1, s.outstanding());
+    }
+
+    @Test
+    void endgamePrefersChunksWithFewestRequests() {
+        ChunkScheduler s = new ChunkScheduler(progressMissing(16, 2), ChunkScheduler.Order.RAREST_FIRST);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 16));
+        ChunkScheduler.Peer b = s.addPeer(range(0, 16));
+        ChunkScheduler.Peer c = s.addPeer(range(0, 16));
+
+        assertEquals(2, s.claim(a, 4).length);
+        int[] fromB = s.claim(b, 4);
+        int[] fromC = s.claim(c, 4);
+        assertEquals(1, fromB.length);
+        assertEquals(1, fromC.length);
+        // chunk b xin đã có 2 request, c lấy chunk còn 1
+        assertNotEquals(fromB[0], fromC[0]);
+    }
+
+    @Test
+    void endgameCapsRequestsPerChunk() {
+        ChunkScheduler s = new ChunkScheduler(progressMissing(16, 1), ChunkScheduler.Order.RAREST_FIRST);
+        ChunkScheduler.Peer[] peers = new ChunkScheduler.Peer[ChunkScheduler.ENDGAME_MAX_REQUESTS + 1];
+        for (int i = 0; i < peers.length; i++) peers[i] = s.addPeer(range(0, 16));
+
+        for (int i = 0; i < ChunkScheduler.ENDGAME_MAX_REQUESTS; i++) {
+            assertArrayEquals(new int[]{15}, s.claim(peers[i], 4));
+        }
+        ChunkScheduler.Peer last = peers[peers.length - 1];
+        assertEquals(0, s.claim(last, 4).length);
+        assertEquals(ChunkScheduler.ENDGAME_MAX_REQUESTS, s.outstanding());
+
+        // 1 bản trùng xong (bản về sau bị bỏ): còn chỗ cho nguồn khác
+        s.done(peers[0], 15);
+        assertArrayEquals(new int[]{15}, s.claim(last, 4));
+    }
+
+    @Test
+    void failedChunkIsNotRequestedAgainFromSamePeer() {
+        ChunkScheduler s = new ChunkScheduler(progress(16), ChunkScheduler.Order.SEQUENTIAL);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 1));
+        ChunkScheduler.Peer b = s.addPeer(range(0, 1));
+
+        assertArrayEquals(new int[]{0}, s.claim(a, 1));
+        s.failed(a, 0);
+        assertEquals(0, s.outstanding());
+        assertEquals(0, s.claim(a, 1).length);
+        assertArrayEquals(new int[]{0}, s.claim(b, 1));
+    }
+
+    @Test
+    void releasedChunkCanBeRequestedAgain() {
+        ChunkScheduler s = new ChunkScheduler(progress(16), ChunkScheduler.Order.SEQUENTIAL);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 16));
+
+        assertArrayEquals(new int[]{0, 1}, s.claim(a, 2));
+        s.release(a, 0);
+        assertEquals(1, s.outstanding());
+        assertArrayEquals(new int[]{0, 2}, s.claim(a, 2));
+    }
+
+    @Test
+    void finishingAChunkTwiceOrUnrequestedIsIgnored() {
+        ChunkScheduler s = new ChunkScheduler(progress(16), ChunkScheduler.Order.SEQUENTIAL);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 16));
+
+        s.claim(a, 1);
+        s.done(a, 0);
+        s.done(a, 0);
+        s.release(a, 5);
+        s.failed(a, 6);
+        assertEquals(0, s.outstanding());
+    }
+
+    @Test
+    void removedPeerReturnsItsRequests() {
+        ChunkScheduler s = new ChunkScheduler(progress(16), ChunkScheduler.Order.SEQUENTIAL);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 16));
+        ChunkScheduler.Peer b = s.addPeer(range(0, 16));
+
+        assertEquals(4, s.claim(a, 4).length);
+        s.removePeer(a);
+        assertEquals(0, s.outstanding());
+        assertEquals(0, s.claim(a, 4).length);
+        assertArrayEquals(new int[]{0, 1, 2, 3}, s.claim(b, 4));
+    }
+
+    @Test
+    void removedPeerNoLongerCountsTowardsRarity() {
+        ChunkScheduler s = new ChunkScheduler(progress(8), ChunkScheduler.Order.RAREST_FIRST);
+        ChunkScheduler.Peer a = s.addPeer(range(0, 8));
+        ChunkScheduler.Peer b = s.addPeer(range(0, 4));
+        ChunkScheduler.Peer c = s.addPeer(range(4, 8));
+        s.removePeer(b);
+
+        // 0..3 giờ chỉ a có, 4..7 có ở a và c
+        assertArrayEquals(new int[]{0, 1, 2, 3}, s.claim(a, 4));
+        assertArrayEquals(new int[]{4, 5, 6, 7}, s.claim(c, 4));
+    }
+}
@@ -0,0 +1,124 @@
+package org.example.p2pfileshare.network.transfer;
+
+import org.example.p2pfileshare.util.FileHashUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * So sánh thời gian tạo metadata: cách cũ của handleMetaRequest (2 lượt đọc, InputStream 8 KB)
+ * với {@link ManifestBuilder} (1 lượt, đọc NIO lớn, băm chunk song song).
+ *
+ * Chạy tay (không phải unit test):
+ * <pre>
+ *   java ... ManifestBuilderBenchmark [file] [sizeMB]
+ * </pre>
+ * Không truyền file thì tạo file ngẫu nhiên sizeMB (mặc định 1024 MB) trong thư mục tạm.
+ * Lưu ý: lần chạy đầu bị ảnh hưởng page cache, nên nhìn các vòng sau.
+ */
+public class ManifestBuilderBenchmark {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        Path file;
+        boolean generated = false;
+        if (args.length > 0 && !args[0].isBlank()) {
+            file = Path.of(args[0]);
+        } else {
+            int sizeMb = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+            file = Files.createTempFile("manifest-bench", ".bin");
+            generate(file, sizeMb);
+            generated = true;
+        }
+
+        try {
+            long size = Files.size(file);
+            System.out.printf("File %s, %.1f MB, %d cores%n",
+                    file, size / 1048576.0, Runtime.getRuntime().availableProcessors());
+
+            FileManifest expected = null;
+            for (int round = 1; round <= ROUNDS; round++) {
+                long t0 = System.nanoTime();
+                FileManifest legacy = legacyTwoPass(file);
+                long t1 = System.nanoTime();
+                FileManifest fast = ManifestBuilder.build(file, CHUNK_SIZE);
+                long t2 = System.nanoTime();
+
+                if (!legacy.getFileSha256().equals(fast.getFileSha256())
+                        || !legacy.getChunkHashes().equals(fast.getChunkHashes())) {
+                    throw new IllegalStateException("ManifestBuilder result differs from legacy hashing");
+                }
+                expected = fast;
+
+                System.out.printf("round %d: legacy two-pass %8.1f ms (%7.1f MB/s) | single-pass parallel %8.1f ms (%7.1f MB/s) | x%.2f%n",
+                        round,
+                        (t1 - t0) / 1e6, mbPerSec(size, t1 - t0),
+                        (t2 - t1) / 1e6, mbPerSec(size, t2 - t1),
+                        (double) (t1 - t0) / (t2 - t1));
+            }
+            System.out.println("OK, chunks=" + expected.getTotalChunks() + " sha256=" + expected.getFileSha256());
+        } finally {
+            if (generated) Files.deleteIfExists(file);
+        }
+    }
+
+    /** Bản sao logic cũ của ChunkedFileServer.handleMetaRequest: hash cả file rồi đọc lại từng chunk */
+    private static FileManifest legacyTwoPass(Path file) throws Exception {
+        long fileSize = Files.size(file);
+        int totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream fis = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        String fileSha256 = FileHashUtil.toHex(digest.digest());
+
+        List<String> chunkHashes = new ArrayList<>(totalChunks);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            for (int i = 0; i < totalChunks; i++) {
+                long offset = (long) i * CHUNK_SIZE;
+                raf.seek(offset);
+                int toRead = (int) Math.min(CHUNK_SIZE, fileSize - offset);
+                int read = raf.read(buffer, 0, toRead);
+                byte[] chunkData = new byte[read];
+                System.arraycopy(buffer, 0, chunkData, 0, read);
+                chunkHashes.add(FileHashUtil.sha256(chunkData));
+            }
+        }
+
+        return new FileManifest(fileSize, Files.getLastModifiedTime(file).toMillis(), CHUNK_SIZE,
+                fileSha256, chunkHashes);
+    }
+
+    private static void generate(Path file, int sizeMb) throws IOException {
+        byte[] block = new byte[CHUNK_SIZE];
+        Random random = new Random(42);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+            // chunk cuối lẻ
+            out.write(block, 0, 12345);
+        }
+    }
+
+    private static double mbPerSec(long bytes, long nanos) {
+        return bytes / 1048576.0 / (nanos / 1e9);
+    }
+}